@@ -0,0 +1,167 @@
+package mechanicshop.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of the MechanicShop data access paths: the JDBC helpers, the
+ * insert statements of the desk operations and the five menu reports, at
+ * 1x, 10x and 100x the shipped data.  Report output goes to a discarding
+ * stream so only the database and formatting work is measured.
+ *
+ * <pre>
+ *   java -Dbench.port=$PGPORT -jar target/benchmarks.jar -p scale=1,10
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AccessPathBenchmark {
+	private static final Date TODAY = Date.valueOf("2024-01-15");
+
+	@Param({ "1", "10", "100" })
+	public int scale;
+
+	private Shop shop;
+	private Shop.IdAllocator rids;
+	private Shop.IdAllocator wids;
+	private PrintStream console;
+
+	//sample keys of copy 0, present at every scale
+	private String[] lastNames;
+	private int[] customerIds;
+	private String[] vins;
+	private int[] requestIds;
+	private int[] mechanicIds;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Throwable {
+		String dbname = BenchDatabase.prepare(scale);
+		shop = new Shop(dbname, BenchDatabase.PORT, BenchDatabase.USER, "", 1);
+		rids = shop.allocator("rid_gen", 20);
+		wids = shop.allocator("wid_gen", 20);
+		// create.sql ships 2016 and 2017 only, the month of the inserts is made here
+		for (String table : new String[] { "Service_Request", "Closed_Request" })
+			shop.query("SELECT createMonthPartitions(?, ?, ?)", table, TODAY, TODAY);
+
+		lastNames = Shop.strings(shop.query("SELECT DISTINCT lname FROM Customer WHERE id < 500"), 0);
+		customerIds = Shop.ints(shop.query("SELECT id FROM Customer WHERE id < 500"), 0);
+		vins = Shop.strings(shop.query("SELECT vin FROM Car WHERE vin NOT LIKE 'S%' LIMIT 1000"), 0);
+		requestIds = Shop.ints(shop.query("SELECT rid FROM Service_Request WHERE rid < 30000 LIMIT 5000"), 0);
+		mechanicIds = Shop.ints(shop.query("SELECT id FROM Mechanic WHERE id < 250"), 0);
+
+		console = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Throwable {
+		System.setOut(console);
+		shop.close();
+	}
+
+	// ---- JDBC helpers ----------------------------------------------------
+
+	@Benchmark
+	public Object returnResultCustomerByLastName() throws Throwable {
+		return shop.query("SELECT C.fname FROM Customer C WHERE C.lname = ?", pick(lastNames));
+	}
+
+	@Benchmark
+	public Object returnResultRequestById() throws Throwable {
+		return shop.query("SELECT * FROM Service_Request WHERE rid = ?", pick(requestIds));
+	}
+
+	@Benchmark
+	public Object returnResultOwnedCars() throws Throwable {
+		return shop.query("SELECT c.vin, c.make, c.model, c.year FROM Customer cust, Car c, Owns o WHERE o.customer_id = cust.id AND o.car_vin = c.vin AND cust.id = ?", pick(customerIds));
+	}
+
+	@Benchmark
+	public int printResultMechanicById() throws Throwable {
+		return shop.print("SELECT * FROM Mechanic WHERE id = ?", pick(mechanicIds));
+	}
+
+	// ---- insert paths ----------------------------------------------------
+
+	@Benchmark
+	public Object insertCustomer() throws Throwable {
+		return shop.query("INSERT INTO Customer(fname, lname, phone, address) Values(?, ?, ?, ?) RETURNING id",
+			"Bench", pick(lastNames), "(951)555-0100", "900 University Ave. Riverside");
+	}
+
+	@Benchmark
+	public Object insertServiceRequest() throws Throwable {
+		return shop.query("INSERT INTO Service_Request VALUES (?, ?, ?, ?, ?, ?) RETURNING rid",
+			rids.next(), pick(customerIds), pick(vins), TODAY, 42000, "Benchmark request");
+	}
+
+	@Benchmark
+	public Object insertClosedRequest() throws Throwable {
+		return shop.query("INSERT INTO Closed_Request VALUES (?, ?, ?, ?, ?, ?) RETURNING wid",
+			wids.next(), pick(requestIds), pick(mechanicIds), TODAY, "Benchmark close", 120);
+	}
+
+	// ---- reports (menu options 6 to 10) ------------------------------------
+
+	@Benchmark
+	public void reportBillLessThan100() throws Throwable {
+		shop.report(Shop.Report.BILL_LESS_THAN_100, "");
+	}
+
+	@Benchmark
+	public void reportMoreThan20Cars() throws Throwable {
+		shop.report(Shop.Report.MORE_THAN_20_CARS, "");
+	}
+
+	@Benchmark
+	public void reportBefore1995Under50000() throws Throwable {
+		shop.report(Shop.Report.BEFORE_1995_UNDER_50000, "");
+	}
+
+	@Benchmark
+	public void reportTop10MostServiced() throws Throwable {
+		shop.report(Shop.Report.K_MOST_SERVICED, "10\n");
+	}
+
+	@Benchmark
+	public void reportTotalBill() throws Throwable {
+		shop.report(Shop.Report.TOTAL_BILL, "");
+	}
+
+	private static String pick(String[] values) {
+		return values[ThreadLocalRandom.current().nextInt(values.length)];
+	}
+
+	private static int pick(int[] values) {
+		return values[ThreadLocalRandom.current().nextInt(values.length)];
+	}
+}
@@ -0,0 +1,97 @@
+package mechanicshop.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+/**
+ * Creates and seeds one benchmark database per scale factor on a locally
+ * started Postgres (see postgresql/startPostgreSQL.sh).  Settings are read
+ * from system properties:
+ *
+ * <pre>
+ *   bench.port    Postgres port                  (default $PGPORT, else 5432)
+ *   bench.user    Postgres user                  (default $USER)
+ *   bench.data    shipped CSV directory          (default ../../data)
+ *   bench.schema  schema script                  (default ../../sql/create.sql)
+ *   bench.reload  rebuild an existing database   (default false)
+ * </pre>
+ *
+ * The schema is create.sql without its server-side COPY statements; the
+ * data is generated by DataGenerator and loaded through the application's
+ * own CSV import.
+ */
+final class BenchDatabase {
+	static final String PORT = System.getProperty("bench.port", envOr("PGPORT", "5432"));
+	static final String USER = System.getProperty("bench.user", envOr("USER", "postgres"));
+	static final File DATA = new File(System.getProperty("bench.data", "../../data"));
+	static final File SCHEMA = new File(System.getProperty("bench.schema", "../../sql/create.sql"));
+	static final boolean RELOAD = Boolean.getBoolean("bench.reload");
+
+	private BenchDatabase() {
+	}
+
+	/**
+	 * @param scale the scale factor of the data
+	 * @return the name of a database seeded with that scale of data
+	 */
+	static String prepare(int scale) throws Throwable {
+		String dbname = "mechanicshop_bench_x" + scale;
+		if (!RELOAD && exists(dbname)) return dbname;
+
+		try (Connection admin = connect("postgres"); Statement stmt = admin.createStatement()) {
+			stmt.execute("DROP DATABASE IF EXISTS " + dbname);
+			stmt.execute("CREATE DATABASE " + dbname);
+		}
+		try (Connection db = connect(dbname); Statement stmt = db.createStatement()) {
+			stmt.execute(schemaScript());
+		}
+
+		File generated = Files.createTempDirectory("mechanicshop-bench-x" + scale).toFile();
+		DataGenerator.generate(DATA, generated, scale);
+		Shop shop = new Shop(dbname, PORT, USER, "", 3);
+		try {
+			shop.importDirectory(generated);
+			shop.update("ANALYZE");
+		} finally {
+			shop.close();
+			for (File f : generated.listFiles()) f.delete();
+			generated.delete();
+		}
+		return dbname;
+	}
+
+	/** create.sql minus the COPY statements that read files on the database host. */
+	static String schemaScript() throws IOException {
+		String script = new String(Files.readAllBytes(SCHEMA.toPath()), StandardCharsets.UTF_8);
+		script = script.replaceAll("(?is)COPY\\s+\\w+\\s*\\([^)]*\\)\\s*FROM\\s+'[^']*'\\s*WITH\\s+DELIMITER\\s+','\\s*;", "");
+		// plpgsql is installed by default on every supported Postgres
+		return script.replaceAll("(?i)CREATE\\s+LANGUAGE\\s+plpgsql\\s*;", "");
+	}
+
+	private static boolean exists(String dbname) throws SQLException {
+		try (Connection admin = connect("postgres"); Statement stmt = admin.createStatement();
+		     ResultSet rs = stmt.executeQuery("SELECT 1 FROM pg_database WHERE datname = '" + dbname + "'")) {
+			return rs.next();
+		}
+	}
+
+	private static Connection connect(String dbname) throws SQLException {
+		Properties props = new Properties();
+		props.setProperty("user", USER);
+		props.setProperty("password", "");
+		return DriverManager.getConnection("jdbc:postgresql://localhost:" + PORT + "/" + dbname, props);
+	}
+
+	private static String envOr(String name, String fallback) {
+		String value = System.getenv(name);
+		return value != null ? value : fallback;
+	}
+}
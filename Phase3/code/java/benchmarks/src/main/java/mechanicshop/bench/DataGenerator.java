@@ -0,0 +1,133 @@
+package mechanicshop.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes a scaled copy of the shipped data/*.csv files.  Scale factor n
+ * produces n disjoint copies of every table: copy 0 is the shipped data,
+ * copy i shifts every integer key by i times the key span of its table and
+ * renames every car to a VIN of the form S&lt;copy:3&gt;&lt;car index:12&gt;,
+ * so foreign keys stay consistent inside each copy and report results grow
+ * linearly with the scale factor.
+ */
+public final class DataGenerator {
+	static final int MAX_SCALE = 1000;
+
+	private DataGenerator() {
+	}
+
+	/**
+	 * @param source directory holding the shipped CSV files
+	 * @param target directory receiving the scaled files
+	 * @param scale number of copies, 1 to MAX_SCALE
+	 */
+	public static void generate(File source, File target, int scale) throws IOException {
+		if (scale < 1 || scale > MAX_SCALE) throw new IllegalArgumentException("scale must be between 1 and " + MAX_SCALE);
+		Files.createDirectories(target.toPath());
+
+		int customerSpan = maxKey(new File(source, "customer.csv")) + 1;
+		int mechanicSpan = maxKey(new File(source, "mechanic.csv")) + 1;
+		int ownsSpan = maxKey(new File(source, "owns.csv")) + 1;
+		int requestSpan = maxKey(new File(source, "service_request.csv")) + 1;
+		int closedSpan = maxKey(new File(source, "closed_request.csv")) + 1;
+		Map<String, Integer> carIndex = new HashMap<>();
+
+		try (Reader in = new Reader(source, "car.csv")) {
+			String[] f;
+			while ((f = in.next(4)) != null) carIndex.put(f[0], carIndex.size());
+		}
+		for (int copy = 0; copy < scale; ++copy) {
+			final int c = copy;
+			rewrite(source, target, "customer.csv", 5, copy, f -> f[0] = shift(f[0], customerSpan, c));
+			rewrite(source, target, "mechanic.csv", 4, copy, f -> f[0] = shift(f[0], mechanicSpan, c));
+			rewrite(source, target, "car.csv", 4, copy, f -> f[0] = vin(f[0], carIndex, c));
+			rewrite(source, target, "owns.csv", 3, copy, f -> {
+				f[0] = shift(f[0], ownsSpan, c);
+				f[1] = shift(f[1], customerSpan, c);
+				f[2] = vin(f[2], carIndex, c);
+			});
+			rewrite(source, target, "service_request.csv", 6, copy, f -> {
+				f[0] = shift(f[0], requestSpan, c);
+				f[1] = shift(f[1], customerSpan, c);
+				f[2] = vin(f[2], carIndex, c);
+			});
+			rewrite(source, target, "closed_request.csv", 6, copy, f -> {
+				f[0] = shift(f[0], closedSpan, c);
+				f[1] = shift(f[1], requestSpan, c);
+				f[2] = shift(f[2], mechanicSpan, c);
+			});
+		}
+	}
+
+	private interface RowRewriter {
+		void rewrite(String[] fields);
+	}
+
+	private static void rewrite(File source, File target, String file, int fields, int copy, RowRewriter rewriter) throws IOException {
+		// copy 0 starts the file, later copies append to it
+		boolean append = copy > 0;
+		try (Reader in = new Reader(source, file);
+		     Writer out = Files.newBufferedWriter(new File(target, file).toPath(), StandardCharsets.UTF_8,
+		             append ? new OpenOption[]{ StandardOpenOption.APPEND } : new OpenOption[0])) {
+			String[] f;
+			while ((f = in.next(fields)) != null) {
+				if (copy > 0) rewriter.rewrite(f);
+				out.write(String.join(",", f));
+				out.write('\n');
+			}
+		}
+	}
+
+	private static String shift(String key, int span, int copy) {
+		return Integer.toString(Integer.parseInt(key.trim()) + span * copy);
+	}
+
+	private static String vin(String vin, Map<String, Integer> carIndex, int copy) {
+		Integer index = carIndex.get(vin);
+		if (index == null) throw new IllegalStateException("Unknown VIN " + vin);
+		return String.format("S%03d%012d", copy, index);
+	}
+
+	private static int maxKey(File file) throws IOException {
+		int max = -1;
+		try (Reader in = new Reader(file.getParentFile(), file.getName())) {
+			String[] f;
+			while ((f = in.next(2)) != null) max = Math.max(max, Integer.parseInt(f[0].trim()));
+		}
+		return max;
+	}
+
+	/** Reads the comma separated shop files, which are unquoted and may end lines with CRLF. */
+	private static final class Reader implements AutoCloseable {
+		private final BufferedReader in;
+
+		Reader(File dir, String file) throws IOException {
+			this.in = Files.newBufferedReader(new File(dir, file).toPath(), StandardCharsets.UTF_8);
+		}
+
+		/** @return the next row split into at most fields parts, or null at the end */
+		String[] next(int fields) throws IOException {
+			String line;
+			do {
+				line = in.readLine();
+				if (line == null) return null;
+				if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+			} while (line.isEmpty());
+			return line.split(",", fields);
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package mechanicshop.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Handle on a MechanicShop instance.  The application classes live in the
+ * default package, which named packages (and JMH, which refuses benchmarks
+ * in the default package) cannot import, so they are bound once through
+ * method handles; the per-call overhead is a direct invocation.
+ */
+final class Shop {
+	private static final Class<?> SHOP = load("MechanicShop");
+	private static final Class<?> SESSION = load("Session");
+	private static final Class<?> IMPORTER = load("CsvImporter");
+	private static final Class<?> ALLOCATOR = load("IdAllocator");
+	private static final Class<?> RESULT = load("ResultTable");
+
+	private static final MethodHandle NEW_SHOP = constructor(SHOP, String.class, String.class, String.class, String.class, int.class);
+	private static final MethodHandle RETURN_RESULT = virtual(SHOP, "executeQueryAndReturnResult", RESULT, String.class, Object[].class);
+	private static final MethodHandle RESULT_SIZE = virtual(RESULT, "size", int.class);
+	private static final MethodHandle RESULT_STRING = virtual(RESULT, "getString", String.class, int.class, int.class);
+	private static final MethodHandle RESULT_INT = virtual(RESULT, "getInt", int.class, int.class, int.class);
+	private static final MethodHandle PRINT_RESULT = virtual(SHOP, "executeQueryAndPrintResult", int.class, String.class, Object[].class);
+	private static final MethodHandle UPDATE = virtual(SHOP, "executeUpdate", int.class, String.class, Object[].class);
+	private static final MethodHandle CLEANUP = virtual(SHOP, "cleanup", void.class);
+	private static final MethodHandle BIND = statik(SESSION, "bind", void.class, BufferedReader.class, OutputStream.class);
+	private static final MethodHandle UNBIND = statik(SESSION, "unbind", void.class);
+	private static final MethodHandle NEW_IMPORTER = constructor(IMPORTER, SHOP);
+	private static final MethodHandle IMPORT = virtual(IMPORTER, "importDirectory", long.class, File.class);
+	private static final MethodHandle NEW_ALLOCATOR = constructor(ALLOCATOR, SHOP, String.class, int.class);
+	private static final MethodHandle NEXT_ID = virtual(ALLOCATOR, "next", int.class);
+
+	/** The five report operations of the main menu (options 6 to 10). */
+	enum Report {
+		BILL_LESS_THAN_100("ListCustomersWithBillLessThan100"),
+		MORE_THAN_20_CARS("ListCustomersWithMoreThan20Cars"),
+		BEFORE_1995_UNDER_50000("ListCarsBefore1995With50000Milles"),
+		K_MOST_SERVICED("ListKCarsWithTheMostServices"),
+		TOTAL_BILL("ListCustomersInDescendingOrderOfTheirTotalBill");
+
+		final MethodHandle handle;
+
+		Report(String method) {
+			this.handle = statik(SHOP, method, void.class, SHOP);
+		}
+	}
+
+	private final Object esql;
+
+	Shop(String dbname, String port, String user, String password, int poolSize) throws Throwable {
+		this.esql = NEW_SHOP.invoke(dbname, port, user, password, poolSize);
+	}
+
+	/** Runs a query; the result is an application ResultTable, read through strings and ints. */
+	Object query(String sql, Object... params) throws Throwable {
+		return RETURN_RESULT.invoke(esql, sql, params);
+	}
+
+	/** The values of one column of a query result as text. */
+	static String[] strings(Object result, int column) throws Throwable {
+		String[] values = new String[(int) RESULT_SIZE.invoke(result)];
+		for (int i = 0; i < values.length; ++i) values[i] = (String) RESULT_STRING.invoke(result, i, column);
+		return values;
+	}
+
+	/** The values of one integer column of a query result. */
+	static int[] ints(Object result, int column) throws Throwable {
+		int[] values = new int[(int) RESULT_SIZE.invoke(result)];
+		for (int i = 0; i < values.length; ++i) values[i] = (int) RESULT_INT.invoke(result, i, column);
+		return values;
+	}
+
+	int print(String sql, Object... params) throws Throwable {
+		return (int) PRINT_RESULT.invoke(esql, sql, params);
+	}
+
+	int update(String sql, Object... params) throws Throwable {
+		return (int) UPDATE.invoke(esql, sql, params);
+	}
+
+	/** Runs a report menu operation; its console input (k for the top-K report) is fed from input. */
+	void report(Report report, String input) throws Throwable {
+		BIND.invoke(new BufferedReader(new StringReader(input)), (OutputStream) null);
+		try {
+			report.handle.invoke(esql);
+		} finally {
+			UNBIND.invoke();
+		}
+	}
+
+	long importDirectory(File dir) throws Throwable {
+		return (long) IMPORT.invoke(NEW_IMPORTER.invoke(esql), dir);
+	}
+
+	IdAllocator allocator(String sequence, int blockSize) throws Throwable {
+		final Object allocator = NEW_ALLOCATOR.invoke(esql, sequence, blockSize);
+		return () -> {
+			try {
+				return (int) NEXT_ID.invoke(allocator);
+			} catch (Throwable t) {
+				throw new IllegalStateException(t);
+			}
+		};
+	}
+
+	void close() throws Throwable {
+		CLEANUP.invoke(esql);
+	}
+
+	/** Hands out keys reserved from a sequence, see IdAllocator in the application. */
+	interface IdAllocator {
+		int next();
+	}
+
+	private static Class<?> load(String name) {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private static MethodHandle constructor(Class<?> owner, Class<?>... params) {
+		try {
+			return MethodHandles.publicLookup().findConstructor(owner, MethodType.methodType(void.class, params));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private static MethodHandle virtual(Class<?> owner, String name, Class<?> ret, Class<?>... params) {
+		try {
+			return MethodHandles.publicLookup().findVirtual(owner, name, MethodType.methodType(ret, params)).asFixedArity();
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private static MethodHandle statik(Class<?> owner, String name, Class<?> ret, Class<?>... params) {
+		try {
+			return MethodHandles.publicLookup().findStatic(owner, name, MethodType.methodType(ret, params));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+}
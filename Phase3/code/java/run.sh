@@ -5,4 +5,35 @@ USER=$3
 
 
 # Example: source ./run.sh flightDB 5432 user
-java -cp lib/*:bin/ MechanicShop $DBNAME $PORT $USER
+# Desk server: source ./run.sh flightDB 5432 user server 9000 8
+#   (desks connect with "nc <host> 9000"; 8 is the connection pool size)
+# Bulk import: source ./run.sh flightDB 5432 user import ../data
+# Index migration of an existing database: source ./run.sh flightDB 5432 user migrate
+# Archival of the months before 2017-01: source ./run.sh flightDB 5432 user archive 2017-01
+# Scripted commands, one JSON object per line (see ScriptRunner), results as JSON lines:
+#   source ./run.sh flightDB 5432 user script commands.jsonl [results.jsonl]  ("-" reads stdin;
+#   mechanicshop.scriptBatch=1000 commands at most are written and committed together)
+# Report export through COPY, gzipped when the file ends in .gz (TSV for .tsv, "-" writes CSV to stdout):
+#   source ./run.sh flightDB 5432 user export 6 billing-2017-01.csv.gz 2017-01-01 2017-02-01
+#   (reports 1..5 of the menu, 4 takes k; 6 is the billing history between two dates)
+#   (files are only written in -Dmechanicshop.exportDir=exports, names with a directory are refused)
+# Nightly columnar snapshot: source ./run.sh flightDB 5432 user snapshot /var/lib/mechanicshop/snapshot
+#   (reports over it need no database: java -cp bin/ SnapshotReports /var/lib/mechanicshop/snapshot 1..5 [k])
+#   (the path is a link to the latest snapshot.<time> directory, switched once every table is written)
+# JAVA_OPTS="-Dmechanicshop.listen=true" also drops cached lookups on writes made by other instances
+# JAVA_OPTS="-Dmechanicshop.metricsPort=9100" serves Prometheus metrics on http://localhost:9100/metrics,
+# JAVA_OPTS="-Dmechanicshop.metricsDumpSeconds=60" prints them to the console every minute
+# JAVA_OPTS="-Dmechanicshop.reportThreads=4 -Dmechanicshop.reportTimeoutSeconds=300" bound the background reports
+# JAVA_OPTS="-Dmechanicshop.pageSize=50" changes the default page size of BrowseReport
+# JAVA_OPTS="-Dmechanicshop.searchLimit=50" shows more matches per Search
+# JAVA_OPTS="-Dmechanicshop.warmUp=background" serves the first desk while warming up ("off" skips it)
+# JAVA_OPTS="-Dmechanicshop.intake=journal -Dmechanicshop.intakeDir=/var/lib/mechanicshop/intake" queues
+#   new and closed requests in a local journal written to the database in batches (mechanicshop.intakeBatch)
+# JAVA_OPTS="-Dmechanicshop.replicas=replica1:5432,replica2:5432" runs the reports on streaming replicas
+#   lagging at most mechanicshop.replicaMaxLagSeconds (30) behind, or on this database when none is
+#   (a replica must be streaming and have heard from the primary within mechanicshop.replicaMaxSilenceSeconds (60);
+#   the database user needs pg_read_all_stats on the replicas to see the WAL receiver)
+# JAVA_OPTS="-Dmechanicshop.matchExperience=false" lets mechanics claim any open request, whatever its complexity
+# Load test replaying the CSV timeline: java $JAVA_OPTS -cp lib/*:bin/ LoadGenerator flightDB 5432 user ../data
+#   (mechanicshop.loadDesks=8, loadSeconds=60, loadThinkMs=0, loadMix=open=50,close=40,report=10, loadScale=1)
+java $JAVA_OPTS -cp lib/*:bin/ MechanicShop $DBNAME $PORT $USER "${@:4}"
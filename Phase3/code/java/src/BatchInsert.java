@@ -0,0 +1,91 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class sends many rows of the same INSERT in one JDBC batch and one
+ * transaction.  When the batch fails, it is retried row by row behind
+ * savepoints so the failing rows are reported and the others still commit.
+ *
+ */
+
+public class BatchInsert{
+
+	/**
+	 * Method to insert a list of rows with one statement template.
+	 *
+	 * @param esql the database to insert into
+	 * @param sql the INSERT template with one '?' per value
+	 * @param rows the values of each row, in placeholder order
+	 * @param errors receives the error of each rejected row, keyed by its index in rows
+	 * @return the number of rows inserted
+	 * @throws java.sql.SQLException when the transaction itself fails
+	 */
+	public static int run(MechanicShop esql, final String sql, final List<Object[]> rows, final Map<Integer, String> errors) throws SQLException {
+		if (rows.isEmpty()) return 0;
+		return esql.withConnection("BatchInsert", conn -> {
+			Connection c = conn.connection();
+			c.setAutoCommit(false);
+			try {
+				PreparedStatement stmt = conn.prepare(sql);
+				try {
+					for (Object[] row : rows) {
+						bind(stmt, row);
+						stmt.addBatch();
+					}
+					stmt.executeBatch();
+					c.commit();
+					Metrics.fetched(rows.size(), 0);
+					return rows.size();
+				} catch (SQLException e) {
+					// rewritten batches do not say which row failed, find it row by row
+					stmt.clearBatch();
+					c.rollback();
+				}
+				int inserted = 0;
+				for (int i = 0; i < rows.size(); ++i) {
+					Savepoint sp = c.setSavepoint();
+					try {
+						bind(stmt, rows.get(i));
+						stmt.executeUpdate();
+						c.releaseSavepoint(sp);
+						++inserted;
+					} catch (SQLException e) {
+						c.rollback(sp);
+						errors.put(i, e.getMessage());
+					}
+				}
+				c.commit();
+				Metrics.fetched(inserted, 0);
+				return inserted;
+			} finally {
+				if (!c.getAutoCommit()) {
+					c.rollback();
+					c.setAutoCommit(true);
+				}
+			}
+		});
+	}
+
+	private static void bind(PreparedStatement stmt, Object[] row) throws SQLException {
+		stmt.clearParameters();
+		for (int i = 0; i < row.length; ++i)
+			stmt.setObject(i + 1, row[i]);
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class listens on the dimension_changed channel, which the
+ * notifyChange trigger of create.sql signals whenever Customer, Mechanic,
+ * Car or Owns is written, and drops the matching lookup cache entries.  It
+ * keeps caches of several application instances consistent with each
+ * other's writes.
+ *
+ */
+
+public class ChangeListener extends Thread{
+	final static String CHANNEL = "dimension_changed";
+	//how often the listener connection is polled for notifications
+	final static long POLL_INTERVAL_MS = 500;
+	//wait before reconnecting after the listener connection failed
+	final static long RETRY_INTERVAL_MS = 5000;
+
+	private final ConnectionPool _pool;
+	private final LookupCache _cache;
+	private volatile boolean _running = true;
+
+	public ChangeListener(ConnectionPool pool, LookupCache cache) {
+		super("cache-listener");
+		setDaemon(true);
+		this._pool = pool;
+		this._cache = cache;
+	}
+
+	/**
+	 * Method to stop listening.
+	 */
+	public void shutdown() {
+		this._running = false;
+		interrupt();
+	}
+
+	@Override
+	public void run() {
+		while (this._running) {
+			try {
+				listen();
+			} catch (SQLException e) {
+				// notifications may have been missed while disconnected
+				this._cache.clear();
+				System.err.println("Cache listener: " + e.getMessage());
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				Thread.sleep(RETRY_INTERVAL_MS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private void listen() throws SQLException, InterruptedException {
+		Connection conn = this._pool.connect();
+		try {
+			Statement stmt = conn.createStatement();
+			stmt.execute("LISTEN " + CHANNEL);
+			PGConnection pg = conn.unwrap(PGConnection.class);
+			while (this._running) {
+				// the driver only reads pending notifications during a round trip
+				stmt.execute("SELECT 1");
+				PGNotification[] notifications = pg.getNotifications();
+				if (notifications != null) {
+					for (PGNotification n : notifications) this._cache.invalidate(n.getParameter());
+				}
+				Thread.sleep(POLL_INTERVAL_MS);
+			}
+		} finally {
+			conn.close();
+		}
+	}
+}
@@ -0,0 +1,350 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class writes the shop tables to a snapshot directory in a compact
+ * columnar format and maps them back for SnapshotReports.  Each table is
+ * one &lt;table&gt;.col file:
+ *
+ * <pre>
+ *   "MSNAP1" rowCount:int columnCount:int
+ *   per column: name:UTF type:byte, then
+ *     I (int) / D (date as epoch day): rowCount ints
+ *     S (string): dictionarySize:int, dictionarySize x (length:int, UTF-8 bytes),
+ *                 rowCount ints indexing the dictionary, -1 for NULL
+ * </pre>
+ *
+ * Ints are big-endian and start on a 4-byte boundary, so a mapped file
+ * hands out its int columns as IntBuffer views without copying them.
+ *
+ */
+
+public class ColumnarSnapshot{
+	final static String MAGIC = "MSNAP1";
+	final static byte INT = 'I';
+	final static byte DATE = 'D';
+	final static byte STRING = 'S';
+
+	/**
+	 * Exported tables: name, then column name and type pairs
+	 */
+	final static String[][] TABLES = {
+		{ "Customer", "id", "I", "fname", "S", "lname", "S", "phone", "S", "address", "S" },
+		{ "Car", "vin", "S", "make", "S", "model", "S", "year", "I" },
+		{ "Owns", "ownership_id", "I", "customer_id", "I", "car_vin", "S" },
+		{ "Service_Request", "rid", "I", "customer_id", "I", "car_vin", "S", "date", "D", "odometer", "I", "complain", "S" },
+		{ "Closed_Request", "wid", "I", "rid", "I", "mid", "I", "date", "D", "comment", "S", "bill", "I" },
+	};
+
+	/**
+	 * Method to export every table to a snapshot directory.  The tables are
+	 * read in one REPEATABLE READ transaction, so they agree with each
+	 * other, and written to a new generation directory next to dir.  dir is
+	 * a symbolic link to the current generation and is switched to the new
+	 * one with a single rename, so readers see either the whole previous
+	 * snapshot or the whole new one.  The previous generation is kept for
+	 * readers still using it, older ones are deleted.
+	 *
+	 * @param esql the database to export
+	 * @param dir the snapshot directory, a link to the current generation
+	 * @return the number of rows exported
+	 * @throws java.lang.Exception when a table cannot be read or written
+	 */
+	public static long export(MechanicShop esql, File dir) throws Exception {
+		File link = dir.getAbsoluteFile();
+		File parent = link.getParentFile();
+		Files.createDirectories(parent.toPath());
+		File generation = new File(parent, link.getName() + "." + System.currentTimeMillis());
+		Files.createDirectory(generation.toPath());
+		long total;
+		try {
+			total = esql.withConnection("ColumnarSnapshot", conn -> {
+				Connection c = conn.connection();
+				int isolation = c.getTransactionIsolation();
+				c.setAutoCommit(false);
+				c.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+				try {
+					long rows = 0;
+					for (String[] table : TABLES) rows += export(conn, table, generation);
+					c.commit();
+					return rows;
+				} catch (IOException e) {
+					throw new SQLException("Unable to write the snapshot: " + e.getMessage(), e);
+				} finally {
+					c.rollback();
+					c.setAutoCommit(true);
+					c.setTransactionIsolation(isolation);
+				}
+			});
+		} catch (Exception e) {
+			delete(generation);
+			throw e;
+		}
+		publish(link, generation);
+		return total;
+	}
+
+	/**
+	 * Method to export one table inside the transaction of a snapshot.
+	 *
+	 * @return the number of rows exported
+	 */
+	private static int export(ConnectionPool.PooledConnection conn, String[] table, File dir) throws SQLException, IOException {
+		long start = System.nanoTime();
+		Column[] columns = new Column[(table.length - 1) / 2];
+		StringBuilder select = new StringBuilder("SELECT ");
+		for (int i = 0; i < columns.length; ++i) {
+			columns[i] = new Column(table[1 + 2 * i], (byte) table[2 + 2 * i].charAt(0));
+			select.append(i == 0 ? "" : ", ").append(columns[i].name);
+		}
+		select.append(" FROM ").append(table[0]);
+		PreparedStatement stmt = MechanicShop.prepare(conn, select.toString());
+		stmt.setFetchSize(MechanicShop.FETCH_SIZE);
+		int rows = 0;
+		ResultSet rs = stmt.executeQuery();
+		try {
+			while (rs.next()) {
+				for (int i = 0; i < columns.length; ++i) columns[i].add(rs, i + 1);
+				++rows;
+			}
+		} finally {
+			rs.close();
+		}
+		Metrics.fetched(rows, 0);
+
+		File file = new File(dir, table[0].toLowerCase() + ".col");
+		write(file, rows, columns);
+		System.out.println(String.format("Exported %d rows of %s (%d KB) in %.1fs", rows, table[0], file.length() / 1024, (System.nanoTime() - start) / 1e9));
+		return rows;
+	}
+
+	/**
+	 * Method to point the snapshot link at a new generation with one
+	 * rename, then delete the generations before the previous one.
+	 *
+	 * @param link the snapshot directory
+	 * @param generation the directory of the new snapshot
+	 */
+	private static void publish(File link, File generation) throws IOException {
+		Path path = link.toPath();
+		Path previous = null;
+		if (Files.isSymbolicLink(path)) {
+			previous = Files.readSymbolicLink(path).getFileName();
+		} else if (Files.exists(path)) {
+			// a snapshot written before generations existed becomes the previous one
+			previous = Paths.get(link.getName() + "." + link.lastModified());
+			Files.move(path, path.resolveSibling(previous));
+		}
+		Path tmp = path.resolveSibling(link.getName() + ".tmp");
+		Files.deleteIfExists(tmp);
+		Files.createSymbolicLink(tmp, Paths.get(generation.getName()));
+		Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+
+		String prefix = link.getName() + ".";
+		File[] siblings = link.getParentFile().listFiles();
+		for (File old : siblings == null ? new File[0] : siblings) {
+			String name = old.getName();
+			if (name.startsWith(prefix) && name.substring(prefix.length()).matches("[0-9]+")
+				&& !name.equals(generation.getName()) && (previous == null || !name.equals(previous.toString())))
+				delete(old);
+		}
+	}
+
+	private static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) for (File file : files) file.delete();
+		dir.delete();
+	}
+
+	/**
+	 * One column being exported.
+	 */
+	private static class Column{
+		final String name;
+		final byte type;
+		int[] values = new int[1024];
+		int size = 0;
+		final Map<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+
+		Column(String name, byte type) {
+			this.name = name;
+			this.type = type;
+		}
+
+		void add(ResultSet rs, int index) throws SQLException {
+			int value;
+			if (this.type == INT) {
+				value = rs.getInt(index);
+			} else if (this.type == DATE) {
+				value = (int) rs.getDate(index).toLocalDate().toEpochDay();
+			} else {
+				String s = rs.getString(index);
+				if (s == null) {
+					value = -1;
+				} else {
+					Integer code = this.dictionary.get(s);
+					if (code == null) {
+						code = this.dictionary.size();
+						this.dictionary.put(s, code);
+					}
+					value = code;
+				}
+			}
+			if (this.size == this.values.length) this.values = Arrays.copyOf(this.values, this.size * 2);
+			this.values[this.size++] = value;
+		}
+	}
+
+	private static void write(File file, int rows, Column[] columns) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+		try {
+			out.write(MAGIC.getBytes(StandardCharsets.US_ASCII));
+			out.writeInt(rows);
+			out.writeInt(columns.length);
+			for (Column column : columns) {
+				out.writeUTF(column.name);
+				out.writeByte(column.type);
+				if (column.type == STRING) {
+					out.writeInt(column.dictionary.size());
+					for (String s : column.dictionary.keySet()) {
+						byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+						out.writeInt(bytes.length);
+						out.write(bytes);
+					}
+				}
+				// pads to a 4-byte boundary so the ints can be mapped as an IntBuffer
+				while (out.size() % 4 != 0) out.writeByte(0);
+				for (int i = 0; i < rows; ++i) out.writeInt(column.values[i]);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * A table of a snapshot, mapped read-only into memory.
+	 */
+	static class Table{
+		final String name;
+		final int rows;
+		private final Map<String, IntBuffer> _ints = new HashMap<String, IntBuffer>();
+		private final Map<String, String[]> _dictionaries = new HashMap<String, String[]>();
+
+		Table(String name, MappedByteBuffer map) throws IOException {
+			this.name = name;
+			byte[] magic = new byte[MAGIC.length()];
+			map.get(magic);
+			if (!MAGIC.equals(new String(magic, StandardCharsets.US_ASCII))) throw new IOException(name + " is not a snapshot table");
+			this.rows = map.getInt();
+			int columnCount = map.getInt();
+			for (int c = 0; c < columnCount; ++c) {
+				byte[] utf = new byte[map.getShort() & 0xffff];
+				map.get(utf);
+				String column = new String(utf, StandardCharsets.UTF_8);
+				byte type = map.get();
+				if (type == STRING) {
+					String[] dictionary = new String[map.getInt()];
+					for (int i = 0; i < dictionary.length; ++i) {
+						byte[] bytes = new byte[map.getInt()];
+						map.get(bytes);
+						dictionary[i] = new String(bytes, StandardCharsets.UTF_8);
+					}
+					this._dictionaries.put(column, dictionary);
+				}
+				map.position((map.position() + 3) & ~3);
+				ByteBuffer slice = map.slice();
+				slice.limit(this.rows * 4);
+				this._ints.put(column, slice.asIntBuffer());
+				map.position(map.position() + this.rows * 4);
+			}
+		}
+
+		/**
+		 * @return the values of an int column, the epoch days of a date
+		 *         column or the dictionary codes of a string column
+		 */
+		IntBuffer ints(String column) {
+			IntBuffer values = this._ints.get(column);
+			if (values == null) throw new IllegalArgumentException(this.name + " has no column " + column);
+			return values;
+		}
+
+		/**
+		 * @return the dictionary of a string column
+		 */
+		String[] dictionary(String column) {
+			String[] dictionary = this._dictionaries.get(column);
+			if (dictionary == null) throw new IllegalArgumentException(this.name + " has no string column " + column);
+			return dictionary;
+		}
+
+		/**
+		 * @return the value of a string column in a row, or null
+		 */
+		String string(String column, int row) {
+			int code = ints(column).get(row);
+			return code < 0 ? null : dictionary(column)[code];
+		}
+
+		/**
+		 * @return the value of a date column in a row
+		 */
+		LocalDate date(String column, int row) {
+			return LocalDate.ofEpochDay(ints(column).get(row));
+		}
+	}
+
+	/**
+	 * Method to map one table of a snapshot.
+	 *
+	 * @param dir the snapshot directory
+	 * @param table the table name
+	 * @return the mapped table
+	 * @throws java.io.IOException when the file is missing or corrupt
+	 */
+	public static Table open(File dir, String table) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(new File(dir, table.toLowerCase() + ".col"), "r");
+		try {
+			FileChannel channel = file.getChannel();
+			// the mapping stays valid after the file is closed
+			return new Table(table, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,426 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class defines a bounded pool of physical PostgreSQL connections that
+ * is shared by every session of the application.  Connections are validated
+ * before they are handed out after sitting idle, evicted once they have been
+ * idle or alive for too long, and the time callers spend waiting for a free
+ * connection is recorded.
+ *
+ */
+
+public class ConnectionPool{
+	final static int DEFAULT_MAX_SIZE = 8;
+	final static long DEFAULT_ACQUIRE_TIMEOUT_MS = 30000;
+	final static long DEFAULT_IDLE_TIMEOUT_MS = 10 * 60 * 1000;
+	final static long DEFAULT_MAX_LIFETIME_MS = 30 * 60 * 1000;
+	final static long DEFAULT_VALIDATION_INTERVAL_MS = 5000;
+	final static String DEFAULT_VALIDATION_QUERY = "SELECT 1";
+
+	/**
+	 * A physical connection owned by the pool, together with its prepared
+	 * statement cache.
+	 */
+	public static class PooledConnection{
+		private final Connection _connection;
+		private final StatementCache _statements;
+		private final long _createdAt;
+		private long _lastUsed;
+		private boolean _broken = false;
+
+		PooledConnection(Connection connection, int cacheSize) {
+			this._connection = connection;
+			this._statements = new StatementCache(connection, cacheSize);
+			this._createdAt = System.currentTimeMillis();
+			this._lastUsed = this._createdAt;
+		}
+
+		/**
+		 * @return the underlying physical connection
+		 */
+		public Connection connection() {
+			return this._connection;
+		}
+
+		/**
+		 * Method to fetch the cached prepared statement for a SQL template.
+		 *
+		 * @param sql the SQL template
+		 * @return an open prepared statement owned by this connection
+		 * @throws java.sql.SQLException when the statement cannot be prepared
+		 */
+		public PreparedStatement prepare(String sql) throws SQLException {
+			return this._statements.prepare(sql);
+		}
+
+		/**
+		 * Method to record a failure on this connection.  Connection-level
+		 * errors (SQLState class 08) mark it broken so the pool discards it
+		 * instead of handing it out again.
+		 *
+		 * @param e the error raised while using the connection
+		 */
+		public void failed(SQLException e) {
+			String state = e.getSQLState();
+			if (state != null && state.startsWith("08")) this._broken = true;
+		}
+
+		void close() {
+			this._statements.close();
+			try {
+				this._connection.close();
+			} catch (SQLException e) {
+				// ignored.
+			}
+		}
+	}
+
+	private final String _url;
+	private final Properties _props;
+	private final int _maxSize;
+	private long _acquireTimeoutMs = DEFAULT_ACQUIRE_TIMEOUT_MS;
+	private long _idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+	private long _maxLifetimeMs = DEFAULT_MAX_LIFETIME_MS;
+	private long _validationIntervalMs = DEFAULT_VALIDATION_INTERVAL_MS;
+	private String _validationQuery = DEFAULT_VALIDATION_QUERY;
+	private int _statementCacheSize = StatementCache.DEFAULT_CAPACITY;
+
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Condition _available = _lock.newCondition();
+	//idle connections, most recently used first
+	private final ArrayDeque<PooledConnection> _idle = new ArrayDeque<PooledConnection>();
+	private int _total = 0;
+	private boolean _closed = false;
+	private ScheduledExecutorService _evictor = null;
+
+	//wait-time metrics, guarded by _lock
+	private long _borrows = 0;
+	private long _waits = 0;
+	private long _timeouts = 0;
+	private long _totalWaitNanos = 0;
+	private long _maxWaitNanos = 0;
+	private long _created = 0;
+	private long _evicted = 0;
+
+	public ConnectionPool(String url, Properties props, int maxSize) {
+		this._url = url;
+		this._props = props;
+		this._maxSize = maxSize;
+	}
+
+	public void setAcquireTimeout(long ms) { this._acquireTimeoutMs = ms; }
+	public void setIdleTimeout(long ms) { this._idleTimeoutMs = ms; }
+	public void setMaxLifetime(long ms) { this._maxLifetimeMs = ms; }
+	public void setValidationInterval(long ms) { this._validationIntervalMs = ms; }
+	public void setValidationQuery(String query) { this._validationQuery = query; }
+	public void setStatementCacheSize(int size) { this._statementCacheSize = size; }
+
+	/**
+	 * @return the maximum number of physical connections
+	 */
+	public int maxSize() {
+		return this._maxSize;
+	}
+
+	/**
+	 * Method to start the background evictor that closes connections which
+	 * exceeded the idle timeout or the maximum lifetime.
+	 *
+	 * @param periodMs how often the idle connections are inspected
+	 */
+	public void startEvictor(long periodMs) {
+		this._evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "pool-evictor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this._evictor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				evictIdle();
+			}
+		}, periodMs, periodMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Method to open a physical connection that is not managed by the pool,
+	 * for long-lived background work such as LISTEN.
+	 *
+	 * @return a new connection owned by the caller
+	 * @throws java.sql.SQLException when the connection cannot be opened
+	 */
+	public Connection connect() throws SQLException {
+		return DriverManager.getConnection(this._url, this._props);
+	}
+
+	/**
+	 * Method to borrow a connection, waiting up to the acquire timeout for
+	 * one to be released when the pool is exhausted.
+	 *
+	 * @return a validated connection; hand it back with release()
+	 * @throws java.sql.SQLException when no connection became available in time
+	 */
+	public PooledConnection borrow() throws SQLException {
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(this._acquireTimeoutMs);
+		boolean waited = false;
+		while (true) {
+			PooledConnection candidate = null;
+			boolean create = false;
+			this._lock.lock();
+			try {
+				while (candidate == null && !create) {
+					if (this._closed) throw new SQLException("Connection pool is closed", "08003");
+					candidate = this._idle.pollFirst();
+					if (candidate != null) break;
+					if (this._total < this._maxSize) {
+						// reserve the slot now, connect outside the lock
+						this._total++;
+						create = true;
+						break;
+					}
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						this._timeouts++;
+						throw new SQLException("Timed out after " + this._acquireTimeoutMs + "ms waiting for a database connection", "08001");
+					}
+					waited = true;
+					try {
+						this._available.awaitNanos(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while waiting for a database connection", "08001");
+					}
+				}
+			} finally {
+				this._lock.unlock();
+			}
+
+			if (create) {
+				try {
+					candidate = new PooledConnection(DriverManager.getConnection(this._url, this._props), this._statementCacheSize);
+				} catch (SQLException e) {
+					discard(null);
+					throw e;
+				}
+				this._lock.lock();
+				try {
+					this._created++;
+				} finally {
+					this._lock.unlock();
+				}
+			} else if (!isUsable(candidate)) {
+				candidate.close();
+				discard(candidate);
+				continue;
+			}
+
+			candidate._lastUsed = System.currentTimeMillis();
+			recordBorrow(System.nanoTime() - start, waited);
+			return candidate;
+		}
+	}
+
+	/**
+	 * Method to open one more physical connection while the pool has room
+	 * for it, without taking an idle one, so that every connection of the
+	 * pool can be opened one at a time.
+	 *
+	 * @return a new connection; hand it back with release().  null when
+	 *         the pool already holds maxSize connections
+	 * @throws java.sql.SQLException when the connection cannot be opened
+	 */
+	public PooledConnection open() throws SQLException {
+		this._lock.lock();
+		try {
+			if (this._closed) throw new SQLException("Connection pool is closed", "08003");
+			if (this._total >= this._maxSize) return null;
+			this._total++;
+		} finally {
+			this._lock.unlock();
+		}
+		PooledConnection conn;
+		try {
+			conn = new PooledConnection(DriverManager.getConnection(this._url, this._props), this._statementCacheSize);
+		} catch (SQLException e) {
+			discard(null);
+			throw e;
+		}
+		this._lock.lock();
+		try {
+			this._created++;
+		} finally {
+			this._lock.unlock();
+		}
+		return conn;
+	}
+
+	/**
+	 * Method to hand a borrowed connection back to the pool.  Broken or
+	 * expired connections are closed instead of being reused, and a
+	 * connection left inside a transaction is rolled back first.
+	 *
+	 * @param conn the connection obtained from borrow()
+	 */
+	public void release(PooledConnection conn) {
+		if (conn == null) return;
+		long now = System.currentTimeMillis();
+		boolean keep = !conn._broken && now - conn._createdAt < this._maxLifetimeMs;
+		if (keep) {
+			try {
+				if (!conn._connection.getAutoCommit()) {
+					conn._connection.rollback();
+					conn._connection.setAutoCommit(true);
+				}
+			} catch (SQLException e) {
+				keep = false;
+			}
+		}
+		conn._lastUsed = now;
+		this._lock.lock();
+		try {
+			if (keep && !this._closed) {
+				this._idle.addFirst(conn);
+				this._available.signal();
+				return;
+			}
+		} finally {
+			this._lock.unlock();
+		}
+		conn.close();
+		discard(conn);
+	}
+
+	/**
+	 * Method to close every idle connection and refuse further borrows.
+	 * Connections still borrowed are closed when they are released.
+	 */
+	public void close() {
+		List<PooledConnection> toClose = new ArrayList<PooledConnection>();
+		this._lock.lock();
+		try {
+			this._closed = true;
+			toClose.addAll(this._idle);
+			this._total -= this._idle.size();
+			this._idle.clear();
+			this._available.signalAll();
+		} finally {
+			this._lock.unlock();
+		}
+		if (this._evictor != null) this._evictor.shutdownNow();
+		for (PooledConnection conn : toClose) conn.close();
+	}
+
+	/**
+	 * @return a one-line summary of the pool size and wait-time metrics
+	 */
+	public String stats() {
+		this._lock.lock();
+		try {
+			double avgWaitMs = this._borrows == 0 ? 0 : this._totalWaitNanos / 1e6 / this._borrows;
+			return String.format("pool: size=%d/%d idle=%d borrows=%d waited=%d timeouts=%d avgWait=%.3fms maxWait=%.3fms created=%d evicted=%d",
+				this._total, this._maxSize, this._idle.size(), this._borrows, this._waits, this._timeouts,
+				avgWaitMs, this._maxWaitNanos / 1e6, this._created, this._evicted);
+		} finally {
+			this._lock.unlock();
+		}
+	}
+
+	private boolean isUsable(PooledConnection conn) {
+		long now = System.currentTimeMillis();
+		if (now - conn._createdAt >= this._maxLifetimeMs) return false;
+		if (now - conn._lastUsed < this._validationIntervalMs) return true;
+		Statement stmt = null;
+		try {
+			stmt = conn._connection.createStatement();
+			stmt.setQueryTimeout(5);
+			stmt.execute(this._validationQuery);
+			return true;
+		} catch (SQLException e) {
+			return false;
+		} finally {
+			if (stmt != null) {
+				try {
+					stmt.close();
+				} catch (SQLException e) {
+					// ignored.
+				}
+			}
+		}
+	}
+
+	private void evictIdle() {
+		List<PooledConnection> toClose = new ArrayList<PooledConnection>();
+		long now = System.currentTimeMillis();
+		this._lock.lock();
+		try {
+			Iterator<PooledConnection> it = this._idle.iterator();
+			while (it.hasNext()) {
+				PooledConnection conn = it.next();
+				if (now - conn._lastUsed >= this._idleTimeoutMs || now - conn._createdAt >= this._maxLifetimeMs) {
+					it.remove();
+					toClose.add(conn);
+				}
+			}
+		} finally {
+			this._lock.unlock();
+		}
+		for (PooledConnection conn : toClose) {
+			conn.close();
+			discard(conn);
+		}
+	}
+
+	private void discard(PooledConnection conn) {
+		this._lock.lock();
+		try {
+			this._total--;
+			if (conn != null) this._evicted++;
+			this._available.signal();
+		} finally {
+			this._lock.unlock();
+		}
+	}
+
+	private void recordBorrow(long waitNanos, boolean waited) {
+		Metrics.poolWait(waitNanos);
+		this._lock.lock();
+		try {
+			this._borrows++;
+			if (waited) this._waits++;
+			this._totalWaitNanos += waitNanos;
+			if (waitNanos > this._maxWaitNanos) this._maxWaitNanos = waitNanos;
+		} finally {
+			this._lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,288 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * This class bulk loads the shop CSV files (the format of the files under
+ * data/) from the client machine through the COPY protocol.  Tables are
+ * loaded level by level in foreign key order, with the tables of a level
+ * streamed in parallel over separate pooled connections.  Dates written as
+ * M/d/yyyy HH:mm are rewritten to yyyy-MM-dd on the way, and the months
+ * of a file are partitioned before it is copied.
+ *
+ */
+
+public class CsvImporter{
+	//bytes buffered before they are sent to the server
+	final static int COPY_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * A table loaded from one CSV file.
+	 */
+	static class Table{
+		final String name;
+		final String file;
+		final String columns;
+		//index of the column holding a M/d/yyyy HH:mm date, -1 for none
+		final int dateColumn;
+
+		Table(String name, String file, String columns, int dateColumn) {
+			this.name = name;
+			this.file = file;
+			this.columns = columns;
+			this.dateColumn = dateColumn;
+		}
+	}
+
+	//tables grouped by foreign key level, each level only references earlier ones
+	final static Table[][] LEVELS = {
+		{
+			new Table("Customer", "customer.csv", "id, fname, lname, phone, address", -1),
+			new Table("Mechanic", "mechanic.csv", "id, fname, lname, experience", -1),
+			new Table("Car", "car.csv", "vin, make, model, year", -1)
+		},
+		{
+			new Table("Owns", "owns.csv", "ownership_id, customer_id, car_vin", -1),
+			new Table("Service_Request", "service_request.csv", "rid, customer_id, car_vin, date, odometer, complain", 3)
+		},
+		{
+			new Table("Closed_Request", "closed_request.csv", "wid, rid, mid, date, comment, bill", 3)
+		}
+	};
+
+	//sequences moved past the imported keys so later inserts do not collide
+	final static String[][] SEQUENCES = {
+		{ "cid_gen", "Customer", "id" },
+		{ "mid_gen", "Mechanic", "id" },
+		{ "rid_gen", "Service_Request", "rid" },
+		{ "wid_gen", "Closed_Request", "wid" }
+	};
+
+	private final MechanicShop _esql;
+
+	public CsvImporter(MechanicShop esql) {
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to load every known CSV file found in a directory.  Files that
+	 * are missing are skipped.
+	 *
+	 * @param dir the directory holding the CSV files
+	 * @return the total number of rows loaded
+	 * @throws java.lang.Exception when a file cannot be read or loaded
+	 */
+	public long importDirectory(File dir) throws Exception {
+		long total = 0;
+		int threads = 0;
+		for (Table[] level : LEVELS) threads = Math.max(threads, level.length);
+		ExecutorService readers = Executors.newFixedThreadPool(threads);
+		try {
+			for (Table[] level : LEVELS) {
+				List<Future<Long>> loads = new ArrayList<Future<Long>>();
+				for (final Table table : level) {
+					final File file = new File(dir, table.file);
+					if (!file.isFile()) {
+						System.out.println("Skipping " + table.name + ": " + file + " not found");
+						continue;
+					}
+					loads.add(readers.submit(() -> importTable(table, file)));
+				}
+				// the next level references this one, so wait for all of it
+				for (Future<Long> load : loads) {
+					try {
+						total += load.get();
+					} catch (ExecutionException e) {
+						Throwable cause = e.getCause();
+						throw cause instanceof Exception ? (Exception) cause : e;
+					}
+				}
+			}
+		} finally {
+			readers.shutdownNow();
+		}
+		resetSequences();
+		this._esql.lookups().clear();
+		return total;
+	}
+
+	/**
+	 * Method to stream one CSV file into its table.
+	 *
+	 * @param table the table description
+	 * @param file the CSV file
+	 * @return the number of rows loaded
+	 * @throws java.lang.Exception when the file cannot be read or loaded
+	 */
+	long importTable(final Table table, final File file) throws Exception {
+		final long start = System.nanoTime();
+		// COPY goes straight to the parent table, so the months of the file must exist first
+		if (table.dateColumn >= 0) {
+			Date[] range = dateRange(table, file);
+			if (range != null) {
+				int created = this._esql.partitions().create(table.name, range[0], range[1]);
+				if (created > 0) System.out.println("Created " + created + " month partitions of " + table.name + " from " + range[0] + " to " + range[1]);
+			}
+		}
+		final String sql = "COPY " + table.name + " (" + table.columns + ") FROM STDIN WITH DELIMITER ','";
+		long rows = this._esql.withConnection("CsvImporter", conn -> {
+			CopyIn copy = conn.connection().unwrap(PGConnection.class).getCopyAPI().copyIn(sql);
+			try {
+				long n = streamFile(table, file, copy);
+				copy.endCopy();
+				return n;
+			} catch (IOException e) {
+				throw new SQLException("Unable to read " + file + ": " + e.getMessage(), e);
+			} finally {
+				if (copy.isActive()) copy.cancelCopy();
+			}
+		});
+		System.out.println(String.format("Loaded %d rows into %s in %.1fs", rows, table.name, (System.nanoTime() - start) / 1e9));
+		return rows;
+	}
+
+	private static long streamFile(Table table, File file, CopyIn copy) throws IOException, SQLException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), COPY_BUFFER_SIZE);
+		StringBuilder buffer = new StringBuilder(COPY_BUFFER_SIZE + 1024);
+		long rows = 0;
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty()) continue;
+				appendRow(buffer, line, table.dateColumn);
+				++rows;
+				if (buffer.length() >= COPY_BUFFER_SIZE) flush(buffer, copy);
+			}
+			flush(buffer, copy);
+		} finally {
+			reader.close();
+		}
+		return rows;
+	}
+
+	/**
+	 * Method to read the date column of a file, normalized as appendDate
+	 * writes it.
+	 *
+	 * @return the first and last dates of the file, or null when it has none
+	 */
+	static Date[] dateRange(Table table, File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), COPY_BUFFER_SIZE);
+		StringBuilder date = new StringBuilder();
+		String first = null;
+		String last = null;
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int from = fieldStart(line, table.dateColumn);
+				if (from < 0) continue;
+				int to = line.indexOf(',', from);
+				if (to < 0) to = line.length();
+				date.setLength(0);
+				appendDate(date, line, from, to);
+				if (date.length() < 10) continue;
+				// yyyy-MM-dd sorts as text, bad values are left for the server to report
+				String day = date.substring(0, 10);
+				if (!MechanicShop.checkDate(day)) continue;
+				if (first == null || day.compareTo(first) < 0) first = day;
+				if (last == null || day.compareTo(last) > 0) last = day;
+			}
+		} finally {
+			reader.close();
+		}
+		return first == null ? null : new Date[]{ Date.valueOf(first), Date.valueOf(last) };
+	}
+
+	private static void flush(StringBuilder buffer, CopyIn copy) throws SQLException {
+		if (buffer.length() == 0) return;
+		byte[] bytes = buffer.toString().getBytes(StandardCharsets.UTF_8);
+		copy.writeToCopy(bytes, 0, bytes.length);
+		buffer.setLength(0);
+	}
+
+	/**
+	 * Method to append one CSV line to the COPY buffer, normalizing the
+	 * date column if the table has one.
+	 */
+	static void appendRow(StringBuilder buffer, String line, int dateColumn) {
+		if (dateColumn < 0) {
+			buffer.append(line).append('\n');
+			return;
+		}
+		int from = fieldStart(line, dateColumn);
+		if (from < 0) { // short line, let the server report it
+			buffer.append(line).append('\n');
+			return;
+		}
+		int to = line.indexOf(',', from);
+		if (to < 0) to = line.length();
+		buffer.append(line, 0, from);
+		appendDate(buffer, line, from, to);
+		buffer.append(line, to, line.length()).append('\n');
+	}
+
+	/**
+	 * @return the index where a column of a CSV line starts, -1 for a short line
+	 */
+	static int fieldStart(String line, int column) {
+		int from = 0;
+		for (int i = 0; i < column && from >= 0; ++i) {
+			from = line.indexOf(',', from);
+			if (from >= 0) ++from;
+		}
+		return from;
+	}
+
+	/**
+	 * Method to rewrite a M/d/yyyy [HH:mm] date as yyyy-MM-dd.  Values in
+	 * any other shape are copied unchanged.
+	 */
+	static void appendDate(StringBuilder buffer, String line, int from, int to) {
+		int slash1 = line.indexOf('/', from);
+		int slash2 = slash1 < 0 ? -1 : line.indexOf('/', slash1 + 1);
+		if (slash1 < 0 || slash2 < 0 || slash2 >= to) {
+			buffer.append(line, from, to);
+			return;
+		}
+		int yearEnd = slash2 + 1;
+		while (yearEnd < to && Character.isDigit(line.charAt(yearEnd))) ++yearEnd;
+		buffer.append(line, slash2 + 1, yearEnd).append('-');
+		if (slash1 - from < 2) buffer.append('0');
+		buffer.append(line, from, slash1).append('-');
+		if (slash2 - slash1 - 1 < 2) buffer.append('0');
+		buffer.append(line, slash1 + 1, slash2);
+	}
+
+	private void resetSequences() throws SQLException {
+		for (String[] seq : SEQUENCES) {
+			this._esql.executeQuery("SELECT setval('" + seq[0] + "', GREATEST((SELECT last_value FROM " + seq[0] + "), (SELECT COALESCE(MAX(" + seq[2] + "), 0) FROM " + seq[1] + ")))");
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class serves the main menu to many service desks at once.  Every
+ * desk connects over TCP (e.g. with telnet or nc) and gets its own menu
+ * session on its own thread, while all sessions share the connection pool
+ * of a single MechanicShop instance.
+ *
+ */
+
+public class DeskServer{
+	//maximum number of desks served at the same time, later desks queue
+	final static int MAX_SESSIONS = 256;
+
+	/**
+	 * Method to accept desk connections until the process is stopped.
+	 *
+	 * @param esql the database shared by every session
+	 * @param listenPort the TCP port the desks connect to
+	 * @throws java.io.IOException when the port cannot be opened
+	 */
+	public static void serve(final MechanicShop esql, int listenPort) throws IOException {
+		final ServerSocket listener = new ServerSocket(listenPort);
+		final ExecutorService sessions = Executors.newFixedThreadPool(MAX_SESSIONS);
+		Session.install();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				try {
+					listener.close();
+				} catch (IOException e) {
+					// ignored.
+				}
+			}
+		});
+		Session.console().println("Serving desks on port " + listenPort + " (" + esql.pool().stats() + ")");
+
+		try {
+			while (!listener.isClosed()) {
+				final Socket desk;
+				try {
+					desk = listener.accept();
+				} catch (IOException e) {
+					break; // listener closed by the shutdown hook
+				}
+				sessions.submit(new Runnable() {
+					public void run() {
+						serveDesk(esql, desk);
+					}
+				});
+			}
+		} finally {
+			sessions.shutdownNow();
+			try {
+				sessions.awaitTermination(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static void serveDesk(MechanicShop esql, Socket desk) {
+		String name = desk.getRemoteSocketAddress().toString();
+		Session.console().println("Desk " + name + " connected");
+		try {
+			Session.bind(new BufferedReader(new InputStreamReader(desk.getInputStream())), desk.getOutputStream());
+			MechanicShop.runMenu(esql);
+		} catch (Exception e) {
+			Session.console().println("Desk " + name + " failed: " + e.getMessage());
+		} finally {
+			Session.unbind();
+			try {
+				desk.close();
+			} catch (IOException e) {
+				// ignored.
+			}
+			Session.console().println("Desk " + name + " disconnected (" + esql.pool().stats() + ")");
+		}
+	}
+}
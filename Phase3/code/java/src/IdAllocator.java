@@ -0,0 +1,71 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * This class hands out primary keys reserved in blocks from a database
+ * sequence.  One round trip reserves a whole block, so most inserts get
+ * their key without touching the database; ids left unused when the
+ * application stops are simply skipped.
+ *
+ */
+
+public class IdAllocator{
+	final static int DEFAULT_BLOCK_SIZE = 20;
+
+	private final MechanicShop _esql;
+	private final String _sequence;
+	private final int _blockSize;
+	private int[] _block = new int[0];
+	private int _next = 0;
+
+	public IdAllocator(MechanicShop esql, String sequence, int blockSize) {
+		this._esql = esql;
+		this._sequence = sequence;
+		this._blockSize = Math.max(1, blockSize);
+	}
+
+	/**
+	 * Method to return the next reserved id, reserving a new block from the
+	 * sequence when the current one is used up.
+	 *
+	 * @return an id no other caller will receive
+	 * @throws java.sql.SQLException when a new block cannot be reserved
+	 */
+	public synchronized int next() throws SQLException {
+		if (this._next == this._block.length) {
+			this._block = reserve();
+			this._next = 0;
+		}
+		return this._block[this._next++];
+	}
+
+	private int[] reserve() throws SQLException {
+		return this._esql.withConnection("IdAllocator", conn -> {
+			PreparedStatement stmt = MechanicShop.prepare(conn, "SELECT nextval(CAST(? AS regclass)) FROM generate_series(1, ?)", this._sequence, this._blockSize);
+			int[] block = new int[this._blockSize];
+			int n = 0;
+			ResultSet rs = stmt.executeQuery();
+			try {
+				while (rs.next()) block[n++] = rs.getInt(1);
+			} finally {
+				rs.close();
+			}
+			if (n != block.length) throw new SQLException("Sequence " + this._sequence + " returned " + n + " of " + block.length + " ids");
+			return block;
+		});
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+
+/**
+ * This class keeps the indexes behind the report and lookup queries in
+ * place on existing databases, and explains how the reports are executed.
+ * sql/create.sql creates the same indexes on fresh databases; keep the two
+ * lists in sync.  The indexes of the report aggregates are only in
+ * create.sql, next to the tables, which older databases do not have.
+ *
+ */
+
+public class IndexAdvisor{
+	/**
+	 * Index name and definition, each tailored to one of the queries
+	 */
+	final static String[][] INDEXES = {
+		//InsertServiceRequest lookups by last name, and by first and last name
+		{ "customer_lname_fname", "Customer (lname, fname)" },
+		//InsertServiceRequest lists the cars of a customer
+		{ "owns_customer_id", "Owns (customer_id, car_vin)" },
+		//ListCarsBefore1995With50000Milles: old cars, then their requests under 50000 miles
+		{ "car_year", "Car (year)" },
+		{ "service_request_car_vin_odometer", "Service_Request (car_vin, odometer)" },
+		{ "service_request_customer_id", "Service_Request (customer_id)" },
+		//CloseServiceRequest and the bill totals join closed requests to their request
+		{ "closed_request_rid", "Closed_Request (rid)" },
+		//ListCustomersWithBillLessThan100 only ever reads the cheap bills, paged by (bill, wid)
+		{ "closed_request_bill_wid_under_100", "Closed_Request (bill, wid) WHERE bill < 100" },
+		//Search: fuzzy customer names and phones, and the words of complaints and comments
+		{ "customer_name_trgm", "Customer USING gin ((" + Search.NAME + ") gin_trgm_ops)" },
+		{ "customer_phone_trgm", "Customer USING gin (" + Search.PHONE + " gin_trgm_ops)" },
+		{ "service_request_complain_fts", "Service_Request USING gin (" + Search.COMPLAIN + ")" },
+		{ "closed_request_comment_fts", "Closed_Request USING gin (" + Search.COMMENT + ")" },
+	};
+
+	/**
+	 * Extensions the indexes and WarmUp need
+	 */
+	final static String[] EXTENSIONS = { "pg_trgm", "pg_prewarm" };
+
+	/**
+	 * The reports of the main menu: menu name, query and parameters
+	 */
+	final static Object[][] REPORTS = {
+		{ "ListCustomersWithBillLessThan100", MechanicShop.BILL_LESS_THAN_100_SQL, new Object[0] },
+		{ "ListCustomersWithMoreThan20Cars", MechanicShop.MORE_THAN_20_CARS_SQL, new Object[0] },
+		{ "ListCarsBefore1995With50000Milles", MechanicShop.BEFORE_1995_SQL, new Object[0] },
+		{ "ListKCarsWithTheMostServices (k = 10)", MechanicShop.K_MOST_SERVICED_SQL, new Object[]{ 10 } },
+		{ "ListCustomersInDescendingOrderOfTheirTotalBill", MechanicShop.TOTAL_BILL_SQL, new Object[0] },
+	};
+
+	/**
+	 * Method to create the missing indexes without blocking writes, then
+	 * refresh the planner statistics.  Only the partitioned tables are
+	 * locked while their indexes are built.  An index left invalid by an
+	 * earlier interrupted build is dropped and built again, and an index of
+	 * a missing table is skipped.
+	 *
+	 * @param esql the database to migrate
+	 * @return the number of indexes created
+	 * @throws java.sql.SQLException when an index cannot be built
+	 */
+	public static int migrate(MechanicShop esql) throws SQLException {
+		int created = 0;
+		for (String extension : EXTENSIONS) esql.executeUpdate("CREATE EXTENSION IF NOT EXISTS " + extension);
+		for (String[] index : INDEXES) {
+			// partitioned tables (Service_Request, Closed_Request) cannot be indexed concurrently
+			String table = index[1].substring(0, index[1].indexOf(' ')).toLowerCase();
+			if (esql.executeQuery("SELECT 1 FROM pg_class WHERE relname = ? AND relkind IN ('r', 'p')", table) == 0) {
+				System.out.println("Skipping index " + index[0] + ": table " + table + " does not exist");
+				continue;
+			}
+			String concurrently = esql.executeQuery("SELECT 1 FROM pg_class WHERE relname = ? AND relkind = 'p'", table) > 0 ? "" : "CONCURRENTLY ";
+			if (esql.executeQuery("SELECT 1 FROM pg_index I, pg_class C WHERE C.oid = I.indexrelid AND C.relname = ? AND NOT I.indisvalid", index[0]) > 0) {
+				System.out.println("Dropping invalid index " + index[0]);
+				esql.executeUpdate("DROP INDEX " + concurrently + index[0]);
+			}
+			if (esql.executeQuery("SELECT 1 FROM pg_class WHERE relname = ? AND relkind IN ('i', 'I')", index[0]) > 0) continue;
+			System.out.println("Creating index " + index[0] + " ON " + index[1]);
+			esql.executeUpdate("CREATE INDEX " + concurrently + "IF NOT EXISTS " + index[0] + " ON " + index[1]);
+			++created;
+		}
+		if (created > 0) esql.executeUpdate("ANALYZE");
+		return created;
+	}
+
+	/**
+	 * Method to run EXPLAIN (ANALYZE, BUFFERS) on every report, print the
+	 * plans and flag the sequential scans in them.
+	 *
+	 * @param esql the database to explain the reports on
+	 * @return the number of sequential scans found
+	 * @throws java.sql.SQLException when a report cannot be explained
+	 */
+	public static int explainReports(MechanicShop esql) throws SQLException {
+		int seqScans = 0;
+		for (Object[] report : REPORTS) {
+			System.out.println("== " + report[0]);
+			int found = 0;
+			for (ResultTable.Row line : esql.executeQueryAndReturnResult("EXPLAIN (ANALYZE, BUFFERS) " + report[1], (Object[]) report[2])) {
+				String plan = line.getString(0);
+				boolean seqScan = plan.contains("Seq Scan on ");
+				if (seqScan) ++found;
+				System.out.println((seqScan ? "SEQ> " : "     ") + plan);
+			}
+			if (found > 0) System.out.println(found + " sequential scan(s) in " + report[0]);
+			seqScans += found;
+		}
+		return seqScans;
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.Arrays;
+
+/**
+ * This class maps int keys to int values with open addressing and linear
+ * probing over two primitive arrays, so lookups and updates neither box
+ * nor allocate.  It is not thread-safe.
+ *
+ */
+
+public class IntIntHashMap{
+	//value returned for missing keys
+	final static int MISSING = -1;
+
+	private int[] _keys;
+	private int[] _values;
+	private boolean[] _used;
+	private int _size = 0;
+
+	public IntIntHashMap(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+		this._keys = new int[capacity];
+		this._values = new int[capacity];
+		this._used = new boolean[capacity];
+	}
+
+	/**
+	 * @return the value of a key, or MISSING
+	 */
+	public int get(int key) {
+		int mask = this._keys.length - 1;
+		for (int slot = hash(key) & mask; this._used[slot]; slot = (slot + 1) & mask) {
+			if (this._keys[slot] == key) return this._values[slot];
+		}
+		return MISSING;
+	}
+
+	/**
+	 * Method to set the value of a key.
+	 */
+	public void put(int key, int value) {
+		this._values[slot(key)] = value;
+	}
+
+	/**
+	 * Method to add to the value of a key, which starts at 0.
+	 *
+	 * @return the new value
+	 */
+	public int add(int key, int delta) {
+		int slot = slot(key);
+		return this._values[slot] += delta;
+	}
+
+	/**
+	 * @return the number of keys
+	 */
+	public int size() {
+		return this._size;
+	}
+
+	/**
+	 * @return the keys, in no particular order
+	 */
+	public int[] keys() {
+		int[] keys = new int[this._size];
+		int n = 0;
+		for (int slot = 0; slot < this._keys.length; ++slot)
+			if (this._used[slot]) keys[n++] = this._keys[slot];
+		return keys;
+	}
+
+	//the slot of a key, claimed with value 0 when the key is new
+	private int slot(int key) {
+		int mask = this._keys.length - 1;
+		int slot = hash(key) & mask;
+		for (; this._used[slot]; slot = (slot + 1) & mask) {
+			if (this._keys[slot] == key) return slot;
+		}
+		if ((this._size + 1) * 2 > this._keys.length) {
+			grow();
+			return slot(key);
+		}
+		this._used[slot] = true;
+		this._keys[slot] = key;
+		this._values[slot] = 0;
+		this._size++;
+		return slot;
+	}
+
+	private void grow() {
+		int[] keys = this._keys;
+		int[] values = this._values;
+		boolean[] used = this._used;
+		this._keys = new int[keys.length * 2];
+		this._values = new int[keys.length * 2];
+		this._used = new boolean[keys.length * 2];
+		this._size = 0;
+		for (int slot = 0; slot < keys.length; ++slot)
+			if (used[slot]) this._values[slot(keys[slot])] = values[slot];
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	@Override
+	public String toString() {
+		return "IntIntHashMap" + Arrays.toString(keys());
+	}
+}
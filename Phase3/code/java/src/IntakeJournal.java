@@ -0,0 +1,555 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * This class lets InsertServiceRequest and CloseServiceRequest return as
+ * soon as their validated write is in a local append-only journal, instead
+ * of waiting for a database commit of their own.  An append is durable once
+ * fsynced, and one fsync covers every append waiting at that moment (group
+ * commit).  A background writer applies the journal to the database in
+ * batches of up to mechanicshop.intakeBatch records, one transaction and so
+ * one WAL flush per batch, and records how far it got in the "applied" file.
+ *
+ * The journal is a sequence of numbered segment files in
+ * mechanicshop.intakeDir, each a sequence of records framed by their length
+ * and CRC; a record torn by a crash ends the journal.  Every record carries
+ * the key the desk reserved for it, so the records replayed after a crash
+ * that were already applied are skipped.  Records the database rejects are
+ * reported on the console and kept in rejected.log.
+ *
+ */
+
+public class IntakeJournal{
+	//"journal" queues the requests in the journal, "direct" (the default) writes each at once
+	final static String MODE = System.getProperty("mechanicshop.intake", "direct");
+	final static String DIR = System.getProperty("mechanicshop.intakeDir", "intake");
+	//records applied per database transaction at most
+	final static int BATCH = Integer.getInteger("mechanicshop.intakeBatch", 500);
+	//size after which appends go on in a new segment
+	final static long SEGMENT_BYTES = 16L * 1024 * 1024;
+	//how long the writer waits for appends once it has caught up, and after a failure
+	final static long IDLE_MS = 200;
+	final static long RETRY_MS = 5000;
+	//longest time shutdown waits for the writer to apply the rest
+	final static long DRAIN_SECONDS = 30;
+
+	//record kinds, with the values of MechanicShop.OPEN_REQUEST_SQL or CLOSE_REQUEST_SQL
+	final static byte OPEN = 'O';
+	final static byte CLOSE = 'C';
+	//the date of the request or of its closing, among the values of both kinds
+	final static int DATE_VALUE = 3;
+	private final static byte NULL = 'N';
+
+	//each kind applied for a whole batch by one statement, skipping the records already applied
+	final static String OPEN_BATCH_SQL =
+		"SELECT count(openServiceRequest(B.request, B.requester, B.vehicle, CAST(B.requested AS date), B.miles, B.complaint)) " +
+		"FROM unnest(CAST(? AS int[]), CAST(? AS int[]), CAST(? AS text[]), CAST(? AS text[]), CAST(? AS int[]), CAST(? AS text[])) AS B(request, requester, vehicle, requested, miles, complaint) " +
+		"WHERE NOT EXISTS (SELECT 1 FROM Service_Request S WHERE S.rid = B.request)";
+	final static String CLOSE_BATCH_SQL =
+		"SELECT count(closeServiceRequest(B.work, B.request, B.worker, CAST(B.closed AS date), B.remark, B.amount)) " +
+		"FROM unnest(CAST(? AS int[]), CAST(? AS int[]), CAST(? AS int[]), CAST(? AS text[]), CAST(? AS text[]), CAST(? AS int[])) AS B(work, request, worker, closed, remark, amount) " +
+		"WHERE NOT EXISTS (SELECT 1 FROM Closed_Request CR WHERE CR.wid = B.work)";
+	//array element type of each value of the two kinds
+	final static String[] OPEN_TYPES = { "int4", "int4", "text", "text", "int4", "text" };
+	final static String[] CLOSE_TYPES = { "int4", "int4", "int4", "text", "text", "int4" };
+
+	/**
+	 * A position in the journal: an offset in a segment.
+	 */
+	static class Position{
+		final long segment;
+		final long offset;
+
+		Position(long segment, long offset) {
+			this.segment = segment;
+			this.offset = offset;
+		}
+
+		@Override
+		public String toString() {
+			return this.segment + " " + this.offset;
+		}
+	}
+
+	/**
+	 * A record read back from the journal.
+	 */
+	static class Record{
+		final byte kind;
+		final Object[] values;
+		//the position right after the record
+		final Position end;
+
+		Record(byte kind, Object[] values, Position end) {
+			this.kind = kind;
+			this.values = values;
+			this.end = end;
+		}
+	}
+
+	private final MechanicShop _esql;
+	private final File _dir;
+	//segment appended to, the records appended to the journal and the part of them fsynced
+	private FileChannel _channel;
+	private long _segment;
+	private long _appended = 0;
+	private long _forced = 0;
+	private Position _durable;
+	//one fsync at a time, so the appends made during one are covered by the next
+	private final Object _forceLock = new Object();
+	//the writer: how far it applied the journal, and the segment it reads
+	private volatile Position _applied;
+	private volatile long _appliedRecords = 0;
+	private volatile long _rejected = 0;
+	private FileChannel _reader = null;
+	private long _readerSegment = -1;
+	private Thread _writer = null;
+	private boolean _stopping = false;
+
+	/**
+	 * Method to open the journal of a directory, cutting a record torn by a
+	 * crash off its end.
+	 *
+	 * @param esql the database the journal is applied to
+	 * @param dir the directory of the journal, created if needed
+	 * @throws java.io.IOException when the journal cannot be opened
+	 */
+	public IntakeJournal(MechanicShop esql, File dir) throws IOException {
+		this._esql = esql;
+		this._dir = dir;
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create the intake journal directory " + dir);
+		TreeSet<Long> segments = segments();
+		this._applied = readCheckpoint(segments);
+		for (long segment : segments.headSet(this._applied.segment)) Files.deleteIfExists(segmentFile(segment).toPath());
+		this._segment = segments.isEmpty() ? this._applied.segment : Math.max(segments.last(), this._applied.segment);
+		this._channel = FileChannel.open(segmentFile(this._segment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		forceDirectory();
+		long end = 0;
+		Record record;
+		while ((record = read(this._channel, this._segment, end, this._channel.size())) != null) end = record.end.offset;
+		if (end < this._channel.size()) Session.console().println("Intake journal: cutting a torn record off " + segmentFile(this._segment));
+		this._channel.truncate(end);
+		this._channel.position(end);
+		this._durable = new Position(this._segment, end);
+	}
+
+	/**
+	 * Method to start the background writer.
+	 */
+	public void start() {
+		this._writer = new Thread(this::write, "intake-writer");
+		this._writer.setDaemon(true);
+		this._writer.start();
+	}
+
+	/**
+	 * Method to let the writer apply what is left, for at most
+	 * DRAIN_SECONDS, then close the journal.  Records not applied by then
+	 * are applied at the next start.
+	 */
+	public void shutdown() {
+		synchronized (this) {
+			this._stopping = true;
+			notifyAll();
+		}
+		try {
+			if (this._writer != null) this._writer.join(DRAIN_SECONDS * 1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (this._writer != null && this._writer.isAlive()) this._writer.interrupt();
+		try {
+			synchronized (this) {
+				this._channel.close();
+			}
+		} catch (IOException e) {
+			// ignored, every append was fsynced
+		}
+		System.out.println("Intake journal: " + stats());
+	}
+
+	/**
+	 * Method to append a record and wait until it is durable.
+	 *
+	 * @param kind OPEN or CLOSE
+	 * @param values the values of the statement of the kind, in placeholder order
+	 * @throws java.io.IOException when the record cannot be written
+	 */
+	public void append(byte kind, Object... values) throws IOException {
+		byte[] payload = encode(kind, values);
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		ByteBuffer frame = ByteBuffer.allocate(8 + payload.length);
+		frame.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+		frame.flip();
+		long record;
+		synchronized (this) {
+			if (this._channel.position() >= SEGMENT_BYTES) rotate();
+			while (frame.hasRemaining()) this._channel.write(frame);
+			record = ++this._appended;
+		}
+		force(record);
+	}
+
+	//waits until a record is fsynced, fsyncing it along with every record appended meanwhile
+	private void force(long record) throws IOException {
+		synchronized (this._forceLock) {
+			FileChannel channel;
+			long upTo;
+			Position end;
+			synchronized (this) {
+				if (this._forced >= record) return;
+				channel = this._channel;
+				upTo = this._appended;
+				end = new Position(this._segment, channel.position());
+			}
+			try {
+				channel.force(false);
+			} catch (ClosedChannelException e) {
+				// rotate() fsynced the segment before closing it
+			}
+			synchronized (this) {
+				if (upTo > this._forced) {
+					this._forced = upTo;
+					this._durable = end;
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	//goes on in a new segment, once the current one is durable; holds the lock of the journal
+	private void rotate() throws IOException {
+		this._channel.force(false);
+		this._forced = this._appended;
+		this._durable = new Position(this._segment, this._channel.position());
+		this._channel.close();
+		this._segment++;
+		this._channel = FileChannel.open(segmentFile(this._segment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		// the new segment must survive a crash before any of its records is acknowledged
+		forceDirectory();
+	}
+
+	//fsyncs the directory, making the segment files created in it durable
+	private void forceDirectory() throws IOException {
+		FileChannel dir = FileChannel.open(this._dir.toPath(), StandardOpenOption.READ);
+		try {
+			dir.force(true);
+		} finally {
+			dir.close();
+		}
+	}
+
+	/**
+	 * @return the records appended and applied since startup, and the ones rejected
+	 */
+	public synchronized String stats() {
+		return this._appended + " appended, " + this._appliedRecords + " applied, " + this._rejected + " rejected, applied up to " + this._applied + " of " + this._durable;
+	}
+
+	//applies the journal batch after batch until shutdown
+	private void write() {
+		while (true) {
+			try {
+				List<Record> batch = readBatch();
+				if (batch.isEmpty()) {
+					synchronized (this) {
+						if (this._stopping) return;
+						wait(IDLE_MS);
+					}
+					continue;
+				}
+				apply(batch);
+				checkpoint(batch.get(batch.size() - 1).end);
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException | SQLException e) {
+				Session.console().println("Intake writer failed: " + e.getMessage());
+				synchronized (this) {
+					// left for the next start
+					if (this._stopping) return;
+				}
+				try {
+					Thread.sleep(RETRY_MS);
+				} catch (InterruptedException stop) {
+					return;
+				}
+			}
+		}
+	}
+
+	//the durable records following the applied ones, BATCH at most
+	private List<Record> readBatch() throws IOException {
+		List<Record> batch = new ArrayList<Record>();
+		Position at = this._applied;
+		while (batch.size() < BATCH) {
+			Position durable;
+			synchronized (this) {
+				durable = this._durable;
+			}
+			if (at.segment == durable.segment && at.offset >= durable.offset) break;
+			FileChannel channel = reader(at.segment);
+			// segments before the one appended to are complete
+			long limit = at.segment == durable.segment ? durable.offset : channel.size();
+			if (at.offset >= limit) {
+				at = new Position(at.segment + 1, 0);
+				continue;
+			}
+			Record record = read(channel, at.segment, at.offset, limit);
+			if (record == null) throw new IOException("Intake journal " + segmentFile(at.segment) + " is damaged at offset " + at.offset);
+			batch.add(record);
+			at = record.end;
+		}
+		return batch;
+	}
+
+	private FileChannel reader(long segment) throws IOException {
+		if (this._readerSegment != segment) {
+			if (this._reader != null) this._reader.close();
+			this._reader = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.READ);
+			this._readerSegment = segment;
+		}
+		return this._reader;
+	}
+
+	//applies a batch in one transaction, creating the months of its dates when needed
+	private void apply(final List<Record> batch) throws SQLException {
+		Date first = null;
+		Date last = null;
+		for (Record record : batch) {
+			Date date = (Date) record.values[DATE_VALUE];
+			if (first == null || date.before(first)) first = date;
+			if (last == null || date.after(last)) last = date;
+		}
+		final List<Object[]> rejected = new ArrayList<Object[]>();
+		int applied = this._esql.partitions().insert(Partitions.TABLES, first, last, () -> {
+			rejected.clear();
+			return this._esql.withConnection("IntakeJournal", conn -> applyBatch(conn, batch, rejected));
+		});
+		this._appliedRecords += applied;
+		for (Object[] reject : rejected) reject((Record) reject[0], (String) reject[1]);
+	}
+
+	private int applyBatch(ConnectionPool.PooledConnection conn, List<Record> batch, List<Object[]> rejected) throws SQLException {
+		Connection c = conn.connection();
+		c.setAutoCommit(false);
+		try {
+			int applied;
+			try {
+				// the requests first, as some of the closings may be theirs
+				applied = run(conn, OPEN, batch) + run(conn, CLOSE, batch);
+			} catch (SQLException e) {
+				c.rollback();
+				if (Partitions.missingPartition(e)) throw e;
+				// find the rejected records one by one, the others still commit
+				applied = 0;
+				for (Record record : batch) {
+					Savepoint sp = c.setSavepoint();
+					try {
+						applied += run(conn, record.kind, Collections.singletonList(record));
+						c.releaseSavepoint(sp);
+					} catch (SQLException reject) {
+						c.rollback(sp);
+						if (Partitions.missingPartition(reject)) throw reject;
+						rejected.add(new Object[]{ record, reject.getMessage() });
+					}
+				}
+			}
+			c.commit();
+			Metrics.written("IntakeJournal", applied);
+			return applied;
+		} finally {
+			if (!c.getAutoCommit()) {
+				c.rollback();
+				c.setAutoCommit(true);
+			}
+		}
+	}
+
+	//runs the batch statement of a kind over the records of that kind
+	private static int run(ConnectionPool.PooledConnection conn, byte kind, List<Record> records) throws SQLException {
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (Record record : records) if (record.kind == kind) rows.add(record.values);
+		return run(conn, kind, rows.toArray(new Object[rows.size()][]));
+	}
+
+	/**
+	 * Method to write many requests or closings of the same kind with one
+	 * statement, one array per value, skipping the ones already written.
+	 *
+	 * @param conn the connection, in the transaction of the caller
+	 * @param kind OPEN or CLOSE
+	 * @param rows the values of OPEN_REQUEST_SQL or CLOSE_REQUEST_SQL of each row
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when one of the rows was rejected
+	 */
+	static int run(ConnectionPool.PooledConnection conn, byte kind, Object[][] rows) throws SQLException {
+		String[] types = kind == OPEN ? OPEN_TYPES : CLOSE_TYPES;
+		if (rows.length == 0) return 0;
+		Object[] arrays = new Object[types.length];
+		for (int i = 0; i < types.length; ++i) {
+			Object[] column = types[i].equals("int4") ? new Integer[rows.length] : new String[rows.length];
+			for (int r = 0; r < rows.length; ++r) {
+				Object value = rows[r][i];
+				column[r] = value == null || value instanceof Integer ? value : value.toString();
+			}
+			arrays[i] = conn.connection().createArrayOf(types[i], column);
+		}
+		ResultSet rs = MechanicShop.prepare(conn, kind == OPEN ? OPEN_BATCH_SQL : CLOSE_BATCH_SQL, arrays).executeQuery();
+		try {
+			rs.next();
+			return rs.getInt(1);
+		} finally {
+			rs.close();
+		}
+	}
+
+	private void reject(Record record, String message) {
+		this._rejected++;
+		String what = (record.kind == OPEN ? "service request " : "closed request ") + record.values[0];
+		Session.console().println("Intake rejected " + what + ": " + message + " (see " + new File(this._dir, "rejected.log") + ")");
+		try {
+			PrintWriter out = new PrintWriter(new FileWriter(new File(this._dir, "rejected.log"), true));
+			try {
+				out.println(LocalDateTime.now() + "\t" + (char) record.kind + "\t" + Arrays.toString(record.values) + "\t" + message);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			Session.console().println("Cannot write rejected.log: " + e.getMessage());
+		}
+	}
+
+	//records how far the journal is applied, and drops the segments wholly applied
+	private void checkpoint(Position end) throws IOException {
+		File tmp = new File(this._dir, "applied.tmp");
+		Files.write(tmp.toPath(), end.toString().getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), new File(this._dir, "applied").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		for (long segment = this._applied.segment; segment < end.segment; ++segment) Files.deleteIfExists(segmentFile(segment).toPath());
+		this._applied = end;
+	}
+
+	private Position readCheckpoint(TreeSet<Long> segments) throws IOException {
+		File applied = new File(this._dir, "applied");
+		if (!applied.exists()) return new Position(segments.isEmpty() ? 1 : segments.first(), 0);
+		String[] fields = new String(Files.readAllBytes(applied.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+		return new Position(Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+	}
+
+	private TreeSet<Long> segments() {
+		TreeSet<Long> segments = new TreeSet<Long>();
+		String[] names = this._dir.list();
+		if (names == null) return segments;
+		for (String name : names) if (name.matches("[0-9]{12}\\.journal")) segments.add(Long.parseLong(name.substring(0, 12)));
+		return segments;
+	}
+
+	private File segmentFile(long segment) {
+		return new File(this._dir, String.format("%012d.journal", segment));
+	}
+
+	//the record at an offset of a segment, or null when no whole record ends by limit
+	private static Record read(FileChannel channel, long segment, long offset, long limit) throws IOException {
+		if (offset + 8 > limit) return null;
+		ByteBuffer header = ByteBuffer.allocate(8);
+		readFully(channel, header, offset);
+		int length = header.getInt(0);
+		if (length < 0 || offset + 8 + length > limit) return null;
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		readFully(channel, payload, offset + 8);
+		CRC32 crc = new CRC32();
+		crc.update(payload.array(), 0, length);
+		if ((int) crc.getValue() != header.getInt(4)) return null;
+		return decode(payload.array(), new Position(segment, offset + 8 + length));
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) throw new EOFException();
+		}
+	}
+
+	private static byte[] encode(byte kind, Object[] values) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(kind);
+		out.writeByte(values.length);
+		for (Object value : values) {
+			if (value == null) {
+				out.writeByte(NULL);
+			} else if (value instanceof Integer) {
+				out.writeByte(ResultTable.INT);
+				out.writeInt((Integer) value);
+			} else if (value instanceof Date) {
+				out.writeByte(ResultTable.DATE);
+				out.writeLong(((Date) value).toLocalDate().toEpochDay());
+			} else {
+				byte[] text = value.toString().getBytes(StandardCharsets.UTF_8);
+				out.writeByte(ResultTable.STRING);
+				out.writeInt(text.length);
+				out.write(text);
+			}
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static Record decode(byte[] payload, Position end) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		byte kind = in.readByte();
+		Object[] values = new Object[in.readByte()];
+		for (int i = 0; i < values.length; ++i) {
+			byte type = in.readByte();
+			if (type == ResultTable.INT) {
+				values[i] = in.readInt();
+			} else if (type == ResultTable.DATE) {
+				values[i] = Date.valueOf(LocalDate.ofEpochDay(in.readLong()));
+			} else if (type == ResultTable.STRING) {
+				byte[] text = new byte[in.readInt()];
+				in.readFully(text);
+				values[i] = new String(text, StandardCharsets.UTF_8);
+			}
+		}
+		return new Record(kind, values, end);
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class records latencies in a fixed-size, lock-free histogram with
+ * HDR-style log-linear buckets: every power of two is split into 64 equal
+ * sub-buckets, so any recorded value is reported within about 1.6% of its
+ * true value, from 1ns up to about 4.9 hours.
+ *
+ */
+
+public class LatencyHistogram{
+	//sub-buckets per power of two, as a power of two
+	private final static int SUB_BITS = 6;
+	private final static int SUB_COUNT = 1 << SUB_BITS;
+	//largest exponent tracked, larger values are clamped (2^44ns is about 4.9 hours)
+	private final static int MAX_EXPONENT = 43;
+	private final static long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+	private final static int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder _count = new LongAdder();
+	private final LongAdder _sum = new LongAdder();
+	private final AtomicLong _max = new AtomicLong();
+
+	/**
+	 * Method to record one latency.
+	 *
+	 * @param nanos the latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		long v = Math.max(0, Math.min(nanos, MAX_VALUE));
+		this._counts.incrementAndGet(index(v));
+		this._count.increment();
+		this._sum.add(v);
+		long max;
+		while (v > (max = this._max.get()) && !this._max.compareAndSet(max, v)) {
+			// retry
+		}
+	}
+
+	/**
+	 * @return the number of recorded values
+	 */
+	public long count() {
+		return this._count.sum();
+	}
+
+	/**
+	 * @return the sum of the recorded values, in nanoseconds
+	 */
+	public long sum() {
+		return this._sum.sum();
+	}
+
+	/**
+	 * @return the largest recorded value, in nanoseconds
+	 */
+	public long max() {
+		return this._max.get();
+	}
+
+	/**
+	 * Method to estimate a percentile of the recorded values.
+	 *
+	 * @param p the percentile, between 0 and 1 (e.g. 0.99)
+	 * @return the highest value of the bucket holding the percentile, in nanoseconds
+	 */
+	public long percentile(double p) {
+		long total = 0;
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; ++i) {
+			counts[i] = this._counts.get(i);
+			total += counts[i];
+		}
+		if (total == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(p * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			seen += counts[i];
+			if (seen >= rank) return Math.min(lowerBound(i + 1) - 1, this._max.get());
+		}
+		return this._max.get();
+	}
+
+	static int index(long v) {
+		if (v < SUB_COUNT) return (int) v;
+		int exponent = 63 - Long.numberOfLeadingZeros(v);
+		int sub = (int) (v >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+		return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+	}
+
+	static long lowerBound(int index) {
+		if (index < SUB_COUNT) return index;
+		int exponent = index / SUB_COUNT + SUB_BITS - 1;
+		long sub = index % SUB_COUNT;
+		return (SUB_COUNT + sub) << (exponent - SUB_BITS);
+	}
+}
@@ -0,0 +1,359 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class replays the timeline of data/service_request.csv and
+ * data/closed_request.csv as concurrent simulated desks, to size the
+ * database before peak season.  Each desk repeatedly thinks for a while,
+ * then runs InsertServiceRequest, CloseServiceRequest or one of the five
+ * reports, picked by weight, with the statements the menu runs for them:
+ *
+ *   open    the customer lookup by last name, then a new request with the
+ *           car, date, odometer and complaint of the next request of the
+ *           timeline;
+ *   close   the request and mechanic lookups, then the closing of a
+ *           request opened by the replay, as closed_request.csv closes it;
+ *   report  one of the five reports, read to the end.
+ *
+ * The timeline is replayed mechanicshop.loadScale times over, each time
+ * with new keys, or until mechanicshop.loadSeconds have passed.  A closing
+ * waits for its request to be replayed first; a desk with nothing to close
+ * opens a request instead.  Throughput, latency percentiles and the number
+ * of conflicts (the database refused a write because of another one) and
+ * other errors are printed per operation every ten seconds and at the end.
+ *
+ */
+
+public class LoadGenerator{
+	final static int DESKS = Integer.getInteger("mechanicshop.loadDesks", 8);
+	final static int SECONDS = Integer.getInteger("mechanicshop.loadSeconds", 60);
+	//mean think time between two operations of a desk, exponentially distributed
+	final static int THINK_MS = Integer.getInteger("mechanicshop.loadThinkMs", 0);
+	//weights of the operations, as name=weight pairs
+	final static String MIX = System.getProperty("mechanicshop.loadMix", "open=50,close=40,report=10");
+	//times the timeline is replayed
+	final static int SCALE = Integer.getInteger("mechanicshop.loadScale", 1);
+	final static int PROGRESS_SECONDS = 10;
+	final static DateTimeFormatter CSV_DATE = DateTimeFormatter.ofPattern("M/d/yyyy HH:mm");
+
+	final static String[] OPERATIONS = { "open", "close", "report" };
+	//SQLStates of a write refused because of a concurrent one: serialization
+	//failure, deadlock, lock not available, and unique violation (already closed)
+	final static String[] CONFLICTS = { "40001", "40P01", "55P03", "23505" };
+
+	/**
+	 * A request of service_request.csv, and its closings in closed_request.csv.
+	 */
+	static class Request{
+		final int customer;
+		final String vin;
+		final Date date;
+		final int odometer;
+		final String complain;
+		final List<Closing> closings = new ArrayList<Closing>();
+
+		Request(int customer, String vin, Date date, int odometer, String complain) {
+			this.customer = customer;
+			this.vin = vin;
+			this.date = date;
+			this.odometer = odometer;
+			this.complain = complain;
+		}
+	}
+
+	/**
+	 * A closing of closed_request.csv, ready once its request is replayed.
+	 */
+	static class Closing{
+		final int mechanic;
+		final Date date;
+		final String comment;
+		final int bill;
+		//the rid the replay gave to the request
+		volatile int rid = -1;
+
+		Closing(int mechanic, Date date, String comment, int bill) {
+			this.mechanic = mechanic;
+			this.date = date;
+			this.comment = comment;
+			this.bill = bill;
+		}
+	}
+
+	/**
+	 * What one operation cost.
+	 */
+	static class Stats{
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LongAdder conflicts = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		volatile String lastError = null;
+	}
+
+	private final MechanicShop _esql;
+	private final List<Request> _timeline;
+	private final Map<Integer, String> _lnames;
+	private final int[] _weights = new int[OPERATIONS.length];
+	private final Map<String, Stats> _stats = new ConcurrentHashMap<String, Stats>();
+	//next request of the timeline, counting the passes over it
+	private final AtomicLong _next = new AtomicLong();
+	//closings whose request was replayed, earliest first
+	private final PriorityBlockingQueue<Closing> _ready = new PriorityBlockingQueue<Closing>(1024, Comparator.comparing((Closing c) -> c.date));
+	private volatile boolean _done = false;
+
+	public LoadGenerator(MechanicShop esql, List<Request> timeline, Map<Integer, String> lnames) {
+		this._esql = esql;
+		this._timeline = timeline;
+		this._lnames = lnames;
+		for (String pair : MIX.split(",")) {
+			String[] kv = pair.trim().split("=");
+			for (int i = 0; i < OPERATIONS.length; ++i) if (OPERATIONS[i].equals(kv[0])) this._weights[i] = Integer.parseInt(kv[1]);
+		}
+		for (String operation : OPERATIONS) this._stats.put(operation, new Stats());
+	}
+
+	/**
+	 * Method to read the timeline: the requests in date order, each with
+	 * its closings.
+	 *
+	 * @param dir the directory of the CSV files
+	 * @return the requests
+	 * @throws java.io.IOException when a file cannot be read
+	 */
+	static List<Request> readTimeline(File dir) throws IOException {
+		Map<Integer, Request> byRid = new HashMap<Integer, Request>();
+		List<Request> requests = new ArrayList<Request>();
+		for (String[] f : readCsv(new File(dir, "service_request.csv"), 6)) {
+			Request request = new Request(Integer.parseInt(f[1]), f[2], date(f[3]), Integer.parseInt(f[4]), f[5]);
+			byRid.put(Integer.parseInt(f[0]), request);
+			requests.add(request);
+		}
+		for (String[] f : readCsv(new File(dir, "closed_request.csv"), 6)) {
+			Request request = byRid.get(Integer.parseInt(f[1]));
+			if (request != null) request.closings.add(new Closing(Integer.parseInt(f[2]), date(f[3]), f[4], Integer.parseInt(f[5])));
+		}
+		requests.sort(Comparator.comparing((Request r) -> r.date));
+		return requests;
+	}
+
+	//the lines of a CSV file; the text column before the last one may hold commas
+	private static List<String[]> readCsv(File file, int columns) throws IOException {
+		List<String[]> rows = new ArrayList<String[]>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty()) continue;
+				String[] f = line.split(",", columns);
+				// closed_request.csv ends with the bill, after a comment that may hold commas
+				if (file.getName().startsWith("closed")) {
+					int last = line.lastIndexOf(',');
+					String[] head = line.substring(0, last).split(",", columns - 1);
+					f = new String[columns];
+					System.arraycopy(head, 0, f, 0, columns - 1);
+					f[columns - 1] = line.substring(last + 1);
+				}
+				rows.add(f);
+			}
+		} finally {
+			reader.close();
+		}
+		return rows;
+	}
+
+	private static Date date(String csv) {
+		return Date.valueOf(LocalDate.parse(csv.trim(), CSV_DATE));
+	}
+
+	/**
+	 * Method to run the desks until the timeline is replayed or the time is
+	 * up, and print the results.
+	 */
+	public void run() throws InterruptedException {
+		List<Thread> desks = new ArrayList<Thread>();
+		for (int i = 0; i < DESKS; ++i) {
+			Thread desk = new Thread(this::desk, "desk-" + (i + 1));
+			desk.setDaemon(true);
+			desks.add(desk);
+		}
+		System.out.println(String.format("Replaying %d requests x %d with %d desks, mix %s, think time %d ms, for at most %d s",
+			this._timeline.size(), SCALE, DESKS, MIX, THINK_MS, SECONDS));
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.SECONDS.toNanos(SECONDS);
+		for (Thread desk : desks) desk.start();
+		long lastCount = 0;
+		long last = start;
+		for (Thread desk : desks) {
+			while (desk.isAlive()) {
+				desk.join(1000);
+				long now = System.nanoTime();
+				if (now >= deadline) this._done = true;
+				if (now - last >= TimeUnit.SECONDS.toNanos(PROGRESS_SECONDS)) {
+					long count = total();
+					System.out.println(String.format("[%3d s] %8d operations, %8.1f/s", (now - start) / 1000000000, count, (count - lastCount) * 1e9 / (now - last)));
+					lastCount = count;
+					last = now;
+				}
+			}
+		}
+		print((System.nanoTime() - start) / 1e9);
+	}
+
+	private long total() {
+		long count = 0;
+		for (Stats stats : this._stats.values()) count += stats.latency.count() + stats.conflicts.sum() + stats.errors.sum();
+		return count;
+	}
+
+	//one simulated desk
+	private void desk() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int sum = 0;
+		for (int weight : this._weights) sum += weight;
+		while (!this._done) {
+			if (THINK_MS > 0) {
+				try {
+					Thread.sleep((long) (-Math.log(1 - random.nextDouble()) * THINK_MS));
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			int pick = random.nextInt(Math.max(1, sum));
+			int operation = 0;
+			while (operation < OPERATIONS.length - 1 && pick >= this._weights[operation]) pick -= this._weights[operation++];
+			Closing closing = operation == 1 ? this._ready.poll() : null;
+			// nothing replayed is waiting to be closed
+			if (operation == 1 && closing == null) operation = 0;
+			long start = System.nanoTime();
+			try {
+				if (operation == 0) {
+					long n = this._next.getAndIncrement();
+					if (n >= (long) this._timeline.size() * SCALE) {
+						// the whole timeline is replayed, only the closings are left
+						if (this._ready.isEmpty()) this._done = true;
+						continue;
+					}
+					open(this._timeline.get((int) (n % this._timeline.size())));
+				} else if (operation == 1) {
+					close(closing);
+				} else {
+					report(random.nextInt(5));
+				}
+				this._stats.get(OPERATIONS[operation]).latency.record(System.nanoTime() - start);
+			} catch (SQLException e) {
+				Stats stats = this._stats.get(OPERATIONS[operation]);
+				if (conflict(e)) stats.conflicts.increment();
+				else stats.errors.increment();
+				stats.lastError = e.getMessage();
+			} catch (Exception e) {
+				Stats stats = this._stats.get(OPERATIONS[operation]);
+				stats.errors.increment();
+				stats.lastError = e.getMessage();
+			}
+		}
+	}
+
+	//InsertServiceRequest for an existing customer and car
+	private void open(Request request) throws Exception {
+		String lname = this._lnames.get(request.customer);
+		if (lname != null) this._esql.executeCachedQuery(MechanicShop.CUSTOMERS_WITH_CARS_TABLES, MechanicShop.CUSTOMERS_BY_LNAME_SQL, lname);
+		int rid = this._esql.openServiceRequest(request.customer, request.vin, request.date, request.odometer, request.complain);
+		for (Closing closing : request.closings) {
+			Closing replayed = new Closing(closing.mechanic, closing.date, closing.comment, closing.bill);
+			replayed.rid = rid;
+			this._ready.add(replayed);
+		}
+	}
+
+	//CloseServiceRequest of a replayed request
+	private void close(Closing closing) throws Exception {
+		this._esql.executeQueryAndReturnResult(MechanicShop.REQUEST_TO_CLOSE_SQL, closing.rid);
+		this._esql.executeCachedQuery(MechanicShop.MECHANIC_TABLES, MechanicShop.MECHANIC_BY_ID_SQL, closing.mechanic);
+		this._esql.closeServiceRequest(closing.rid, closing.mechanic, closing.date, closing.comment, closing.bill);
+	}
+
+	//one of the reports, run in the background like the menu runs them
+	private void report(int report) throws SQLException {
+		String[] queries = { MechanicShop.BILL_LESS_THAN_100_SQL, MechanicShop.MORE_THAN_20_CARS_SQL, MechanicShop.BEFORE_1995_SQL,
+			MechanicShop.K_MOST_SERVICED_SQL, MechanicShop.TOTAL_BILL_SQL };
+		Object[] params = report == 3 ? new Object[]{ 10 } : new Object[0];
+		Replicas.bind();
+		try {
+			this._esql.executeQueryAndStream(queries[report], rs -> {}, params);
+		} finally {
+			Replicas.unbind();
+		}
+	}
+
+	private static boolean conflict(SQLException e) {
+		for (String state : CONFLICTS) if (state.equals(e.getSQLState())) return true;
+		return false;
+	}
+
+	private void print(double seconds) {
+		System.out.println(String.format("%-8s %9s %9s %9s %9s %9s %9s %9s %9s", "", "ok", "ops/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "conflicts", "errors"));
+		for (String operation : OPERATIONS) {
+			Stats stats = this._stats.get(operation);
+			LatencyHistogram h = stats.latency;
+			System.out.println(String.format("%-8s %9d %9.1f %9.2f %9.2f %9.2f %9.2f %9d %9d", operation, h.count(), h.count() / seconds,
+				h.percentile(0.5) / 1e6, h.percentile(0.99) / 1e6, h.percentile(0.999) / 1e6, h.max() / 1e6, stats.conflicts.sum(), stats.errors.sum()));
+			if (stats.lastError != null) System.out.println("         last error: " + stats.lastError.split("\n")[0]);
+		}
+		System.out.println(String.format("%d operations in %.1f s: %.1f/s, %d left to close", total(), seconds, total() / seconds, this._ready.size()));
+	}
+
+	/**
+	 * Replays the timeline of a CSV directory against a database.
+	 *
+	 * @param args the database name, port and user, and the CSV directory
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 4) {
+			System.err.println("Usage: java [-Dmechanicshop.loadDesks=8 ...] " + LoadGenerator.class.getName() + " <dbname> <port> <user> <csv directory>");
+			return;
+		}
+		List<Request> timeline = readTimeline(new File(args[3]));
+		MechanicShop esql = new MechanicShop(args[0], args[1], args[2], "", DESKS);
+		try {
+			WarmUp.run(esql);
+			Map<Integer, String> lnames = new HashMap<Integer, String>();
+			for (ResultTable.Row row : esql.executeQueryAndReturnResult("SELECT id, lname FROM Customer"))
+				lnames.put(row.getInt(0), row.getString(1).replaceAll("\\s+$", ""));
+			new LoadGenerator(esql, timeline, lnames).run();
+		} finally {
+			esql.cleanup();
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class caches the results of lookups on the small dimension tables
+ * (Customer, Mechanic, Car, Owns).  Entries are keyed by the lookup query and
+ * its parameters, e.g. a customer by last name or a mechanic by id, expire
+ * after a time to live, and the least recently used ones are dropped once
+ * the cache is full.  Every entry is tagged with the tables it was read
+ * from so a write to a table drops exactly the lookups it may have changed.
+ *
+ */
+
+public class LookupCache{
+	final static int DEFAULT_MAX_ENTRIES = 10000;
+	final static long DEFAULT_TTL_MS = 60000;
+
+	/**
+	 * Loads a value on a cache miss.
+	 */
+	interface Loader {
+		ResultTable load () throws SQLException;
+	}
+
+	private static class CachedLookup{
+		final ResultTable value;
+		final long expiresAt;
+		final String[] tables;
+
+		CachedLookup(ResultTable value, long expiresAt, String[] tables) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+			this.tables = tables;
+		}
+	}
+
+	private final int _maxEntries;
+	private final long _ttlMs;
+	private final LinkedHashMap<String, CachedLookup> _entries;
+	//keys of the entries read from each table
+	private final Map<String, Set<String>> _byTable = new HashMap<String, Set<String>>();
+	//bumped by every invalidation, so loads that raced with one are not cached
+	private long _version = 0;
+	private long _hits = 0;
+	private long _misses = 0;
+
+	public LookupCache(int maxEntries, long ttlMs) {
+		this._maxEntries = maxEntries;
+		this._ttlMs = ttlMs;
+		this._entries = new LinkedHashMap<String, CachedLookup>(256, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedLookup> eldest) {
+				if (size() <= LookupCache.this._maxEntries) return false;
+				untag(eldest.getKey(), eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Method to return the cached result of a lookup, loading and caching
+	 * it when it is missing or expired.  Loads run outside the cache lock.
+	 *
+	 * @param tables the tables the lookup reads, used for invalidation
+	 * @param key identifies the lookup, e.g. the query and its parameters
+	 * @param loader runs the lookup against the database
+	 * @return the lookup result, shared with other callers
+	 * @throws java.sql.SQLException when the lookup fails
+	 */
+	public ResultTable get(String[] tables, String key, Loader loader) throws SQLException {
+		long now = System.currentTimeMillis();
+		long version;
+		synchronized (this) {
+			CachedLookup entry = this._entries.get(key);
+			if (entry != null && entry.expiresAt > now) {
+				this._hits++;
+				return entry.value;
+			}
+			this._misses++;
+			version = this._version;
+		}
+		ResultTable value = loader.load();
+		put(tables, key, value, version);
+		return value;
+	}
+
+	/**
+	 * @return the invalidation version, read before loading a value for put()
+	 */
+	public synchronized long version() {
+		return this._version;
+	}
+
+	/**
+	 * Method to cache a lookup result loaded by the caller, e.g. ahead of
+	 * time by WarmUp.  Nothing is cached when a table was invalidated since
+	 * the version was read.
+	 *
+	 * @param tables the tables the lookup reads, used for invalidation
+	 * @param key identifies the lookup, see key()
+	 * @param value the lookup result
+	 * @param version the result of version() before the value was loaded
+	 */
+	public void put(String[] tables, String key, ResultTable value, long version) {
+		// table names are case-insensitive, and pg_notify reports them in lower case
+		String[] tags = new String[tables.length];
+		for (int i = 0; i < tables.length; ++i) tags[i] = tables[i].toLowerCase();
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			if (version != this._version) return;
+			CachedLookup entry = new CachedLookup(value, now + this._ttlMs, tags);
+			CachedLookup old = this._entries.put(key, entry);
+			if (old != null) untag(key, old);
+			for (String table : tags) {
+				Set<String> keys = this._byTable.get(table);
+				if (keys == null) {
+					keys = new HashSet<String>();
+					this._byTable.put(table, keys);
+				}
+				keys.add(key);
+			}
+		}
+	}
+
+	/**
+	 * Method to drop every lookup that read from a table.
+	 *
+	 * @param table the table that was written
+	 */
+	public synchronized void invalidate(String table) {
+		this._version++;
+		Set<String> keys = this._byTable.remove(table.toLowerCase());
+		if (keys == null) return;
+		for (String key : keys) {
+			CachedLookup entry = this._entries.remove(key);
+			if (entry != null) untag(key, entry);
+		}
+	}
+
+	/**
+	 * Method to drop every entry, e.g. after a bulk load.
+	 */
+	public synchronized void clear() {
+		this._version++;
+		this._entries.clear();
+		this._byTable.clear();
+	}
+
+	/**
+	 * @return a one-line summary of the cache size and hit rate
+	 */
+	public synchronized String stats() {
+		long lookups = this._hits + this._misses;
+		return String.format("cache: entries=%d/%d hits=%d misses=%d hitRate=%.1f%%",
+			this._entries.size(), this._maxEntries, this._hits, this._misses,
+			lookups == 0 ? 0.0 : 100.0 * this._hits / lookups);
+	}
+
+	/**
+	 * @param sql the lookup query
+	 * @param params its parameters
+	 * @return a key identifying the lookup
+	 */
+	static String key(String sql, Object... params) {
+		return sql + '\u0000' + Arrays.deepToString(params);
+	}
+
+	private void untag(String key, CachedLookup entry) {
+		for (String table : entry.tables) {
+			Set<String> keys = this._byTable.get(table);
+			if (keys == null) continue;
+			keys.remove(key);
+			if (keys.isEmpty()) this._byTable.remove(table);
+		}
+	}
+}
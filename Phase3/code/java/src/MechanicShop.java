@@ -14,13 +14,25 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Scanner;
@@ -29,6 +41,10 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.Objects;
+import java.util.Properties;
+import java.util.Map;
+import java.util.TreeMap;
+import java.time.LocalDate;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -37,19 +53,90 @@ import java.util.Objects;
  */
 
 public class MechanicShop{
-	//reference to physical database connection
-	private Connection _connection = null;
-	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	//pool of physical database connections shared by every session
+	private ConnectionPool _pool = null;
+	//blocks of Service_Request and Closed_Request keys reserved from rid_gen / wid_gen
+	private IdAllocator _ridAllocator = null;
+	private IdAllocator _widAllocator = null;
+	//cached Customer / Mechanic / Car / Owns lookups, dropped on writes to those tables
+	private LookupCache _lookups = new LookupCache(LookupCache.DEFAULT_MAX_ENTRIES, LookupCache.DEFAULT_TTL_MS);
+	//drops cached lookups on writes made by other application instances
+	private ChangeListener _listener = null;
+	//monthly partitions of Service_Request and Closed_Request
+	private Partitions _partitions = null;
+	//journal of the requests waiting to be written, null when they are written at once
+	private IntakeJournal _intake = null;
+	//streaming replicas serving the background reports, null without any
+	private Replicas _replicas = null;
+	//reads from the desk served by the current thread (stdin by default)
+	static BufferedReader in = Session.reader();
+	
+	//number of executions after which pgJDBC switches to a named server-side statement
+	final static String PREPARE_THRESHOLD = "1";
+	//number of ids reserved from a sequence per round trip
+	final static int ID_BLOCK_SIZE = Integer.getInteger("mechanicshop.idBlockSize", IdAllocator.DEFAULT_BLOCK_SIZE);
+	//rows fetched per round trip by server-side cursors of streamed queries
+	final static int FETCH_SIZE = 1000;
+	//size of the buffer between printed reports and the desk output
+	final static int OUTPUT_BUFFER_SIZE = 64 * 1024;
+	//how often idle pooled connections are checked for eviction
+	final static long EVICTION_PERIOD_MS = 60000;
+	//menu entry that leaves the menu, also chosen when the desk input ends
+	final static int EXIT_CHOICE = 11;
+	
+	/**
+	 * Work done with a borrowed connection.
+	 */
+	interface ConnectionWork<T> {
+		T run (ConnectionPool.PooledConnection conn) throws SQLException;
+	}
+	
+	/**
+	 * Callback invoked once per row of a streamed query, positioned on
+	 * that row.  The result set must not be kept after the call returns.
+	 */
+	interface RowHandler {
+		void row (ResultSet rs) throws SQLException;
+	}
 	
 	public MechanicShop(String dbname, String dbport, String user, String passwd) throws SQLException {
+		this(dbname, dbport, user, passwd, 1);
+	}
+	
+	public MechanicShop(String dbname, String dbport, String user, String passwd, int poolSize) throws SQLException {
 		System.out.print("Connecting to database...");
 		try{
 			// constructs the connection URL
 			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
 			System.out.println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+			Properties props = new Properties();
+			props.setProperty("user", user);
+			props.setProperty("password", passwd);
+			props.setProperty("prepareThreshold", PREPARE_THRESHOLD);
+			// lets executeBatch send batched INSERTs as multi-row statements
+			props.setProperty("reWriteBatchedInserts", "true");
+			
+			// obtain a first physical connection so a bad URL fails here
+			this._pool = new ConnectionPool(url, props, poolSize);
+			this._pool.release(this._pool.borrow());
+			this._pool.startEvictor(EVICTION_PERIOD_MS);
+			this._ridAllocator = new IdAllocator(this, "rid_gen", ID_BLOCK_SIZE);
+			this._widAllocator = new IdAllocator(this, "wid_gen", ID_BLOCK_SIZE);
+			this._partitions = new Partitions(this);
+			this._partitions.start();
+			if (Boolean.getBoolean("mechanicshop.listen")) {
+				this._listener = new ChangeListener(this._pool, this._lookups);
+				this._listener.start();
+			}
+			if (!Replicas.HOSTS.isEmpty()) {
+				this._replicas = new Replicas(dbname, props, Replicas.HOSTS.split(","), poolSize);
+				this._replicas.start();
+			}
+			if (IntakeJournal.MODE.equals("journal")) {
+				this._intake = new IntakeJournal(this, new File(IntakeJournal.DIR));
+				this._intake.start();
+			}
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -58,7 +145,7 @@ public class MechanicShop{
 		}
 	}
 	
-	final static String DATE_FORMAT = "dd-MM-yyyy";
+	final static String DATE_FORMAT = "yyyy-MM-dd";
 
 	public static boolean checkDate(String date) 
 	{
@@ -84,127 +171,304 @@ public class MechanicShop{
 	  }  
 	  return true;  
 	}
+	
+	/**
+	 * Method to run some work with a connection borrowed from the pool.
+	 * The connection is returned to the pool afterwards, and marked broken
+	 * when the work failed with a connection error.
+	 * 
+	 * @param work the work to run
+	 * @return the result of the work
+	 * @throws java.sql.SQLException when the work failed
+	 */
+	public <T> T withConnection (ConnectionWork<T> work) throws SQLException {
+		return withConnection ("withConnection", work);
+	}
+	
+	/**
+	 * Method to run some work with a connection borrowed from the pool,
+	 * recording its latency and failures in the metrics of a JDBC helper.
+	 * 
+	 * @param name the name the work is recorded under
+	 * @param work the work to run
+	 * @return the result of the work
+	 * @throws java.sql.SQLException when the work failed
+	 */
+	public <T> T withConnection (String name, ConnectionWork<T> work) throws SQLException {
+		// the reports go to a replica, see Replicas
+		ConnectionPool pool = this._replicas == null ? this._pool : this._replicas.route (this._pool);
+		ConnectionPool.PooledConnection conn;
+		try {
+			conn = pool.borrow ();
+		} catch (SQLException e) {
+			if (pool == this._pool) throw e;
+			this._replicas.failed (pool, e);
+			pool = this._pool;
+			conn = pool.borrow ();
+		}
+		long start = System.nanoTime ();
+		boolean failed = true;
+		try {
+			T result = work.run (conn);
+			failed = false;
+			return result;
+		} catch (SQLException e) {
+			conn.failed (e);
+			throw e;
+		} finally {
+			pool.release (conn);
+			Metrics.query (name, System.nanoTime () - start, failed);
+		}
+	}
+	
+	/**
+	 * @return the pool backing this instance
+	 */
+	public ConnectionPool pool () {
+		return this._pool;
+	}
+	
+	/**
+	 * Method to fetch the cached prepared statement for a SQL template and
+	 * bind its '?' placeholders to the given values, in order.
+	 * 
+	 * @param conn the borrowed connection
+	 * @param sql the SQL template
+	 * @param params the values of the placeholders
+	 * @return the bound statement, owned by the statement cache
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	static PreparedStatement prepare (ConnectionPool.PooledConnection conn, String sql, Object... params) throws SQLException {
+		PreparedStatement stmt = conn.prepare (sql);
+		stmt.clearParameters ();
+		for (int i = 0; i < params.length; ++i)
+			stmt.setObject (i + 1, params[i]);
+		return stmt;
+	}
+	
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
 	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
 	 * 
-	 * @param sql the input SQL string
+	 * @param sql the input SQL template
+	 * @param params the values of the '?' placeholders in sql
+	 * @return the number of rows affected
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeUpdate (final String sql, final Object... params) throws SQLException { 
+		return withConnection ("executeUpdate", conn -> {
+			// fetches the cached statement and binds the parameters
+			PreparedStatement stmt = prepare (conn, sql, params);
 
-		// issues the update instruction
-		stmt.executeUpdate (sql);
-
-		// close the instruction
-	    stmt.close ();
+			// issues the update instruction
+			int rowCount = stmt.executeUpdate ();
+			Metrics.fetched (rowCount, 0);
+			return rowCount;
+		});
 	}//end executeUpdate
 
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) and
+	 * hand each row to a callback as it arrives.  The query runs through a
+	 * server-side cursor that fetches FETCH_SIZE rows per round trip, so
+	 * memory use does not depend on the size of the result.
+	 * 
+	 * @param query the input query template
+	 * @param handler the callback invoked for every row
+	 * @param params the values of the '?' placeholders in query
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndStream (String query, RowHandler handler, Object... params) throws SQLException {
+		return withConnection ("executeQueryAndStream", conn -> {
+			// pgJDBC only uses a cursor inside a transaction
+			conn.connection ().setAutoCommit (false);
+			try {
+				PreparedStatement stmt = prepare (conn, query, params);
+				stmt.setFetchSize (FETCH_SIZE);
+
+				// lets a background report be followed, cancelled and timed out
+				QueryHandle handle = QueryHandle.current ();
+				if (handle != null) handle.attach (stmt);
+				int rowCount = 0;
+				try {
+					ResultSet rs = stmt.executeQuery ();
+					try {
+						while (rs.next ()){
+							handler.row (rs);
+							++rowCount;
+							if (handle != null) handle.row ();
+						}//end while
+					} finally {
+						rs.close ();
+					}
+				} finally {
+					if (handle != null) handle.detach (stmt);
+				}
+				conn.connection ().commit ();
+				Metrics.fetched (rowCount, 0);
+				return rowCount;
+			} finally {
+				if (!conn.connection ().getAutoCommit ()) {
+					conn.connection ().rollback ();
+					conn.connection ().setAutoCommit (true);
+				}
+			}
+		});
+	}
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
-	 * standard out.
+	 * standard out.  Rows are streamed and written through a buffer that is
+	 * flushed after the first row and then whenever it fills up.
 	 * 
-	 * @param query the input query string
+	 * @param query the input query template
+	 * @param params the values of the '?' placeholders in query
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		final PrintWriter out = new PrintWriter (new BufferedWriter (new OutputStreamWriter (System.out), OUTPUT_BUFFER_SIZE));
+		final int[] numCol = { -1 };
+		try {
+			return executeQueryAndStream (query, rs -> {
+				/*
+				 *  obtains the metadata object for the returned result set.  The metadata
+				 *  contains row and column info.
+				 */
+				boolean first = numCol[0] < 0;
+				if (first) {
+					ResultSetMetaData rsmd = rs.getMetaData ();
+					numCol[0] = rsmd.getColumnCount ();
+					for (int i = 1; i <= numCol[0]; i++){
+						out.print (rsmd.getColumnName (i));
+						out.print ('\t');
+					}
+					out.println ();
+				}
+				long bytes = 0;
+				for (int i = 1; i <= numCol[0]; ++i){
+					String value = rs.getString (i);
+					if (value != null) bytes += value.length ();
+					out.print (value);
+					out.print ('\t');
+				}
+				Metrics.fetched (0, bytes);
+				out.println ();
+				// the first row goes out immediately, the rest once the buffer fills
+				if (first) out.flush ();
+			}, params);
+		} finally {
+			out.flush ();
+		}
 	}
 	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the results as
-	 * a list of records. Each record in turn is a list of attribute values
+	 * a typed, column-oriented table (see ResultTable)
 	 * 
-	 * @param query the input query string
-	 * @return the query result as a list of records
+	 * @param query the input query template
+	 * @param params the values of the '?' placeholders in query
+	 * @return the query result
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
+	public ResultTable executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+		return withConnection ("executeQueryAndReturnResult", conn -> {
+			//fetches the cached statement and binds the parameters
+			PreparedStatement stmt = prepare (conn, query, params);
 		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
+			//issues the query instruction 
+			ResultSet rs = stmt.executeQuery (); 
 	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
-	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
-		return result; 
+			//reads every row into primitive columns
+			ResultTable result = ResultTable.read (rs);
+			rs.close (); 
+			Metrics.fetched (result.size (), result.bytes ());
+			return result; 
+		});
 	}//end executeQueryAndReturnResult
 	
+	/**
+	 * Method to execute a lookup on the dimension tables (Customer, Mechanic,
+	 * Car, Owns) through the lookup cache.  The result is shared with other
+	 * callers and must not be modified.
+	 * 
+	 * @param tables the tables the query reads from
+	 * @param query the input query template
+	 * @param params the values of the '?' placeholders in query
+	 * @return the query result
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public ResultTable executeCachedQuery (String[] tables, String query, Object... params) throws SQLException {
+		return this._lookups.get (tables, LookupCache.key (query, params), () -> executeQueryAndReturnResult (query, params));
+	}
+	
+	/**
+	 * Method to drop the cached lookups that read from a table.  Called
+	 * after every write to a dimension table.
+	 * 
+	 * @param table the table that was written
+	 */
+	public void invalidate (String table) {
+		this._lookups.invalidate (table);
+	}
+	
+	/**
+	 * @return the partition maintenance of this instance
+	 */
+	public Partitions partitions () {
+		return this._partitions;
+	}
+	
+	/**
+	 * @return the allocator of the rids of new service requests
+	 */
+	public IdAllocator requestIds () {
+		return this._ridAllocator;
+	}
+	
+	/**
+	 * @return the allocator of the wids of closed requests
+	 */
+	public IdAllocator closingIds () {
+		return this._widAllocator;
+	}
+	
+	/**
+	 * @return the lookup cache of this instance
+	 */
+	public LookupCache lookups () {
+		return this._lookups;
+	}
+	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the number of results
 	 * 
-	 * @param query the input query string
+	 * @param query the input query template
+	 * @param params the values of the '?' placeholders in query
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeQuery (String query, Object... params) throws SQLException {
+		return withConnection ("executeQuery", conn -> {
+			//fetches the cached statement and binds the parameters
+			PreparedStatement stmt = prepare (conn, query, params);
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery ();
 
-		int rowCount = 0;
+			int rowCount = 0;
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+			//iterates through the result set and count nuber of results.
+			if(rs.next()){
+				rowCount++;
+			}//end while
+			rs.close ();
+			return rowCount;
+		});
 	}
 	
 	/**
@@ -218,40 +482,71 @@ public class MechanicShop{
 	 */
 	
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+		return withConnection ("getCurrSeqVal", conn -> {
+			ResultSet rs = prepare (conn, "SELECT currval(?)", sequence).executeQuery ();
+			try {
+				if (rs.next()) return rs.getInt(1);
+				return -1;
+			} finally {
+				rs.close ();
+			}
+		});
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to close the pooled physical connections.
 	 */
 	public void cleanup(){
-		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
+		if (this._partitions != null){
+			this._partitions.shutdown ();
+		}//end if
+		if (this._listener != null){
+			this._listener.shutdown ();
+		}//end if
+		if (this._intake != null){
+			this._intake.shutdown ();
+		}//end if
+		if (this._replicas != null){
+			this._replicas.shutdown ();
+		}//end if
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
 	}//end cleanup
 
 	/**
 	 * The main execution method
 	 * 
-	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+	 * @param args the command line arguments this inclues the <dbname> <port> <user>,
+	 *             optionally followed by server <listen port> [pool size]
+	 *             or import <csv directory> or migrate or archive <first month kept>
+	 *             or snapshot <snapshot directory>
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		String mode = args.length > 3 ? args[3] : "menu";
+		boolean server = mode.equals("server") && args.length >= 5;
+		boolean bulkImport = mode.equals("import") && args.length == 5;
+		boolean migrate = mode.equals("migrate") && args.length == 4;
+		boolean archive = mode.equals("archive") && args.length == 5;
+		boolean snapshot = mode.equals("snapshot") && args.length == 5;
+		boolean script = mode.equals("script") && (args.length == 5 || args.length == 6);
+		// k for report 4, the two dates of report 6, nothing for the others
+		Object[] exportParams = mode.equals("export") ? ReportExport.params(args) : null;
+		boolean export = exportParams != null;
+		if (args.length != 3 && !server && !bulkImport && !migrate && !archive && !snapshot && !script && !export) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + MechanicShop.class.getName () +
-		            " <dbname> <port> <user>");
+		            " <dbname> <port> <user> [server <listen port> [pool size] | import <csv directory> | migrate | archive <yyyy-MM> | snapshot <directory> | script <commands|-> [results] | export <report 1..6> <file|-> [k for 4 | yyyy-MM-dd from and to for 6]]");
 			return;
 		}//end if
 		
 		MechanicShop esql = null;
+		// the results of a script written to stdout are not mixed with the messages
+		PrintStream results = System.out;
+		if ((script && args.length == 5) || (export && args[5].equals("-"))) {
+			System.setOut(System.err);
+			Session.consoleToStderr();
+		}
 		
 		try{
 			System.out.println("(1)");
@@ -269,41 +564,53 @@ public class MechanicShop{
 			String dbname = args[0];
 			String dbport = args[1];
 			String user = args[2];
+			Metrics.startExporters();
 			
-			esql = new MechanicShop (dbname, dbport, user, "");
-			
-			boolean keepon = true;
-			while(keepon){
-				System.out.println("MAIN MENU");
-				System.out.println("---------");
-				System.out.println("1. AddCustomer");
-				System.out.println("2. AddMechanic");
-				System.out.println("3. AddCar");
-				System.out.println("4. InsertServiceRequest");
-				System.out.println("5. CloseServiceRequest");
-				System.out.println("6. ListCustomersWithBillLessThan100");
-				System.out.println("7. ListCustomersWithMoreThan20Cars");
-				System.out.println("8. ListCarsBefore1995With50000Milles");
-				System.out.println("9. ListKCarsWithTheMostServices");
-				System.out.println("10. ListCustomersInDescendingOrderOfTheirTotalBill");
-				System.out.println("11. < EXIT");
-				
-				/*
-				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
-				 */
-				switch (readChoice()){
-					case 1: AddCustomer(esql); break;
-					case 2: AddMechanic(esql); break;
-					case 3: AddCar(esql); break;
-					case 4: InsertServiceRequest(esql); break;
-					case 5: CloseServiceRequest(esql); break;
-					case 6: ListCustomersWithBillLessThan100(esql); break;
-					case 7: ListCustomersWithMoreThan20Cars(esql); break;
-					case 8: ListCarsBefore1995With50000Milles(esql); break;
-					case 9: ListKCarsWithTheMostServices(esql); break;
-					case 10: ListCustomersInDescendingOrderOfTheirTotalBill(esql); break;
-					case 11: keepon = false; break;
+			if (server) {
+				int listenPort = Integer.parseInt(args[4]);
+				int poolSize = args.length > 5 ? Integer.parseInt(args[5]) : ConnectionPool.DEFAULT_MAX_SIZE;
+				esql = new MechanicShop (dbname, dbport, user, "", poolSize);
+				WarmUp.run(esql);
+				DeskServer.serve(esql, listenPort);
+			} else if (bulkImport) {
+				int poolSize = 0;
+				for (CsvImporter.Table[] level : CsvImporter.LEVELS) poolSize = Math.max(poolSize, level.length);
+				esql = new MechanicShop (dbname, dbport, user, "", poolSize);
+				long rows = new CsvImporter(esql).importDirectory(new File(args[4]));
+				System.out.println ("Imported rows: " + rows);
+			} else if (migrate) {
+				esql = new MechanicShop (dbname, dbport, user, "");
+				int created = IndexAdvisor.migrate(esql);
+				System.out.println ("Created indexes: " + created);
+			} else if (archive) {
+				esql = new MechanicShop (dbname, dbport, user, "");
+				int detached = esql.partitions().archive(args[4]);
+				System.out.println ("Detached partitions: " + detached);
+			} else if (snapshot) {
+				esql = new MechanicShop (dbname, dbport, user, "");
+				long rows = ColumnarSnapshot.export(esql, new File(args[4]));
+				System.out.println ("Exported rows: " + rows);
+			} else if (export) {
+				esql = new MechanicShop (dbname, dbport, user, "");
+				long rows = ReportExport.export(esql, Integer.parseInt(args[4]), exportParams, args[5]);
+				System.out.println ("Exported rows: " + rows);
+			} else if (script) {
+				esql = new MechanicShop (dbname, dbport, user, "");
+				Reader commands = args[4].equals("-") ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+					: new InputStreamReader(new FileInputStream(args[4]), StandardCharsets.UTF_8);
+				OutputStream output = args.length == 6 ? new FileOutputStream(args[5]) : results;
+				try {
+					long rejected = ScriptRunner.run(esql, commands, output);
+					System.out.println ("Rejected commands: " + rejected);
+				} finally {
+					commands.close();
+					if (output != results) output.close();
 				}
+			} else {
+				// one connection for the menu, one per background report
+				esql = new MechanicShop (dbname, dbport, user, "", ReportRunner.THREADS + 1);
+				WarmUp.run(esql);
+				runMenu(esql);
 			}
 		}catch(Exception e){
 			System.err.println (e.getMessage ());
@@ -317,9 +624,82 @@ public class MechanicShop{
 			}catch(Exception e){
 				// ignored.
 			}
+			Metrics.stopExporters();
 		}
 	}
 
+	/**
+	 * Method to run the main menu until the user exits or the input of the
+	 * current session ends.
+	 * 
+	 * @param esql the database the menu operations run against
+	 * @throws java.lang.Exception when an operation fails unexpectedly
+	 */
+	public static void runMenu (MechanicShop esql) throws Exception {
+		ReportRunner reports = new ReportRunner();
+		boolean keepon = true;
+		while(keepon){
+			reports.deliver();
+			System.out.println("MAIN MENU");
+			System.out.println("---------");
+			System.out.println("1. AddCustomer");
+			System.out.println("2. AddMechanic");
+			System.out.println("3. AddCar");
+			System.out.println("4. InsertServiceRequest");
+			System.out.println("5. CloseServiceRequest");
+			System.out.println("6. ListCustomersWithBillLessThan100");
+			System.out.println("7. ListCustomersWithMoreThan20Cars");
+			System.out.println("8. ListCarsBefore1995With50000Milles");
+			System.out.println("9. ListKCarsWithTheMostServices");
+			System.out.println("10. ListCustomersInDescendingOrderOfTheirTotalBill");
+			System.out.println("11. < EXIT");
+			System.out.println("12. BatchEntry (customers, mechanics or cars)");
+			System.out.println("13. ExplainReports (flags sequential scans)");
+			System.out.println("14. RunningReports (progress, cancel)");
+			System.out.println("15. BrowseReport (page by page)");
+			System.out.println("16. ReportForPeriod (bills, top cars, total bill between two dates)");
+			System.out.println("17. Search (customers by name or phone, requests by complaint or comment)");
+			System.out.println("18. WorkQueue (mechanics claim, list and release open requests)");
+			System.out.println("19. ExportReport (CSV or TSV file, optionally gzipped)");
+			
+			/*
+			 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
+			 */
+			try {
+				switch (readChoice()){
+					case 1: Metrics.operation("AddCustomer", () -> AddCustomer(esql)); break;
+					case 2: Metrics.operation("AddMechanic", () -> AddMechanic(esql)); break;
+					case 3: Metrics.operation("AddCar", () -> AddCar(esql)); break;
+					case 4: Metrics.operation("InsertServiceRequest", () -> InsertServiceRequest(esql)); break;
+					case 5: Metrics.operation("CloseServiceRequest", () -> CloseServiceRequest(esql)); break;
+					// reports run in the background, see ReportRunner
+					case 6: reports.submit("ListCustomersWithBillLessThan100", () -> ListCustomersWithBillLessThan100(esql)); break;
+					case 7: reports.submit("ListCustomersWithMoreThan20Cars", () -> ListCustomersWithMoreThan20Cars(esql)); break;
+					case 8: reports.submit("ListCarsBefore1995With50000Milles", () -> ListCarsBefore1995With50000Milles(esql)); break;
+					case 9: {
+						// k is asked here, the report itself cannot read the desk
+						Integer k = readK();
+						if (k != null) reports.submit("ListKCarsWithTheMostServices", () -> ListKCarsWithTheMostServices(esql, k));
+						break;
+					}
+					case 10: reports.submit("ListCustomersInDescendingOrderOfTheirTotalBill", () -> ListCustomersInDescendingOrderOfTheirTotalBill(esql)); break;
+					case EXIT_CHOICE: keepon = false; break;
+					case 12: Metrics.operation("BatchEntry", () -> BatchEntry(esql)); break;
+					case 13: Metrics.operation("ExplainReports", () -> ExplainReports(esql)); break;
+					case 14: reports.manage(in); break;
+					case 15: Metrics.operation("BrowseReport", () -> ReportPager.browse(esql, in)); break;
+					case 16: ReportForPeriod(esql, reports); break;
+					case 17: Metrics.operation("Search", () -> Search.run(esql, in)); break;
+					case 18: Metrics.operation("WorkQueue", () -> WorkQueue.run(esql, in)); break;
+					case 19: ReportExport.run(esql, reports, in); break;
+				}
+			} catch (EOFException e) { // the desk went away during an operation, leave the menu
+				keepon = false;
+			}
+		}
+		reports.close();
+	}
+
 	public static int readChoice() {
 		int input;
 		// returns only if a correct value is given.
@@ -328,6 +708,8 @@ public class MechanicShop{
 			try { // read the integer, parse it and break.
 				input = Integer.parseInt(in.readLine());
 				break;
+			}catch (EOFException e) { // the desk went away, leave the menu
+				return EXIT_CHOICE;
 			}catch (Exception e) {
 				System.out.println("Your input is invalid!");
 				continue;
@@ -336,7 +718,7 @@ public class MechanicShop{
 		return input;
 	}//end readChoice
 	
-	public static void AddCustomer(MechanicShop esql){//1
+	public static int AddCustomer(MechanicShop esql) throws IOException{//1
 		boolean valid = true; 
 		String fakeid = "0"; 
 		String firstName = ""; 
@@ -345,116 +727,69 @@ public class MechanicShop{
 		String address = ""; 
 
 		System.out.print("Please enter your first name: ");
-		try
-		{
-			firstName = in.readLine();
-		} catch(Exception e) {
-			System.err.println (e.getMessage ());
-		}
+		firstName = in.readLine();
 		if(firstName.length() > 32) {
 			do {
 				System.out.print("Please enter your first name: ");
-				try
-				{
-					firstName = in.readLine();
-				} catch(Exception e) {
-					System.err.println (e.getMessage ());
-				}
+				firstName = in.readLine();
 				valid = false; 
 			} while(valid);
 			valid = true;
 		}
 		System.out.print("Please enter your last name: ");
-		try
-				{
-					lastName = in.readLine();
-				} catch(Exception e) {
-					System.err.println (e.getMessage ());
-				}
+		lastName = in.readLine();
 		if(lastName.length() > 32) {
 			do {
 				System.out.print("Please enter your last name: ");
-				try
-				{
-					lastName = in.readLine();
-				} catch(Exception e) {
-					System.err.println (e.getMessage ());
-				}
+				lastName = in.readLine();
 				valid = false; 
 			} while(valid);
 			valid = true;
 		}
 		System.out.print("Please enter your phone number: ");
-		try
-			{
-				phone = in.readLine();
-			} catch(Exception e) {
-				System.err.println (e.getMessage ());
-			}
+		phone = in.readLine();
 		if(phone.length() > 13) {
 			do {
 				System.out.print("Please enter your phone number: ");
-				try
-				{
-					phone = in.readLine();
-				} catch(Exception e) {
-					System.err.println (e.getMessage ());
-				}
+				phone = in.readLine();
 				valid = false; 
 			} while(valid);
 			valid = true; 
 		}
 		System.out.print("Please enter your address: ");
-		try
-			{
-				address = in.readLine();
-			} catch(Exception e) {
-				System.err.println (e.getMessage ());
-			}
+		address = in.readLine();
 		if(address.length() > 256)
 		{
 			do {
 				System.out.print("Please enter your address: ");
-				try
-				{
-					address = in.readLine();
-				} catch(Exception e) {
-					System.err.println (e.getMessage ());
-				}
+				address = in.readLine();
 				valid = false; 
 			}while(valid);
 		}
-		String SQL = "INSERT INTO Customer(fname, lname, phone, address) Values(\'" + firstName + "\', \'" + lastName + "\', \'" + phone + "\', \'" + address + "\')";
+		String SQL = ADD_CUSTOMER_SQL;
 		try {
-		esql.executeUpdate(SQL);
+		ResultTable inserted = esql.executeQueryAndReturnResult(SQL, firstName, lastName, phone, address);
+		esql.invalidate("Customer");
+		return inserted.getInt(0, 0);
 		}catch(Exception e) {
 				System.err.println (e.getMessage ());
 		}
+		return -1;
 	}
-	public static void AddMechanic(MechanicShop esql){//2
+	public static void AddMechanic(MechanicShop esql) throws IOException{//2
 		String firstName = "";
 		String lastName = "";
 		int yearExp = 0;
 		do
 		{
 			System.out.print("Please enter your first name: ");
-			try
-			{
-				firstName = in.readLine();
-			} catch(Exception e) {
-				System.err.println (e.getMessage ());
-			}
+			firstName = in.readLine();
 		} while(firstName.length() > 32);
 	
 		do
 		{
 			System.out.print("Please enter your last name: ");
-			try
-			{
-				lastName = in.readLine();
-			} catch(Exception e) {
-				System.err.println (e.getMessage ());
-			}
+			lastName = in.readLine();
 		} while(lastName.length() > 32);
 		
 		
@@ -464,22 +799,21 @@ public class MechanicShop{
 			try
 			{
 				 yearExp = Integer.parseInt(in.readLine());
-			} catch(Exception e) {
+			} catch(NumberFormatException e) {
 				System.err.println (e.getMessage ());
 			}
 		} while((yearExp < 0 || yearExp > 100));
 		
-		String yExp = Integer.toString(yearExp); 
-		
-		String SQL = "INSERT INTO Mechanic(fname, lname, experience) Values('" + firstName + "\', \'" + lastName + "\', \'" + yExp + "\')";
+		String SQL = ADD_MECHANIC_SQL;
 		try {
-		esql.executeUpdate(SQL);
+		esql.executeUpdate(SQL, firstName, lastName, yearExp);
+		esql.invalidate("Mechanic");
 		}catch(Exception e){
 				System.err.println (e.getMessage ());
 		}
 	}
 	
-	public static void AddCar(MechanicShop esql){//3
+	public static void AddCar(MechanicShop esql) throws IOException{//3
 
 		String VIN = "";
 		String make = "";
@@ -489,34 +823,19 @@ public class MechanicShop{
 		do
 		{
 			System.out.print("Please enter the VIN: ");
-			try
-			{
-				VIN = in.readLine();
-			} catch(Exception e) {
-				System.err.println (e.getMessage ());
-			}
+			VIN = in.readLine();
 		}while(VIN.length() > 16);
 		
 		do
 		{
 			System.out.print("Please enter the make: ");
-			try
-			{
-				make = in.readLine();
-			} catch(Exception e) {
-				System.err.println (e.getMessage ());
-			}
+			make = in.readLine();
 		}while(make.length() > 32);
 		
 		do
 		{
 			System.out.print("Please enter the model: ");
-			try
-			{
-				model = in.readLine();
-			} catch(Exception e) {
-				System.err.println (e.getMessage ());
-			}
+			model = in.readLine();
 		
 		} while(model.length() > 32);
 		
@@ -526,141 +845,290 @@ public class MechanicShop{
 			try
 			{
 				year = Integer.parseInt(in.readLine());
-			} catch(Exception e) {
+			} catch(NumberFormatException e) {
 				System.err.println (e.getMessage ());
 			} 
 		} while (year < 1970);
 		
-		String yr = Integer.toString(year); 
-		String SQL = "INSERT INTO Car(make,model,year) Values('" + make + "\', \'" + model + "\', \'" + yr + "')";
+		String SQL = ADD_CAR_SQL;
 		try {
-			esql.executeUpdate(SQL);
+			esql.executeUpdate(SQL, VIN, make, model, year);
+			esql.invalidate("Car");
 		}catch(Exception e) {
 				System.err.println (e.getMessage ());
 		}
 	}
 
-	public static void InsertServiceRequest(MechanicShop esql){//4
-		String lname,input,fname,vin,cid;
+	public static void BatchEntry(MechanicShop esql){//12
+		String SQL;
+		String table;
+		String format;
+		int fields;
 		try{
-
-			System.out.print("\tEnter last name: ");
-         	lname = in.readLine();
-
-		String query = "SELECT C.fname FROM Customer C WHERE C.lname = '" + lname + "'";         	
-		List<List<String>> q2 = esql.executeQueryAndReturnResult(query);
-
-		for(int i = 0; i<q2.size(); i++)
-       		{
-          		System.out.println((i+1)+ ". " + q2.get(i).get(0));
-       		}
-		
-		if (q2.isEmpty()) {
-			System.out.print("No customer with the last name " + lname + ".  Add as new customer? (Y/N):");
-			input = in.readLine();
-			
-			if (input.contains("Y") || input.contains("y")) {
-				AddCustomer(esql);
-			query = "SELECT C.id, C.fname, C.lname FROM Customer C WHERE C.id = (SELECT MAX(C2.id) FROM Customer C2)";
-                        q2 = esql.executeQueryAndReturnResult(query);
-                        cid = q2.get(q2.size()-1).get(0);
-                        fname = q2.get(q2.size()-1).get(1);
-                        lname = q2.get(q2.size()-1).get(2);
+			System.out.print("Batch entry for 1. Customers, 2. Mechanics or 3. Cars: ");
+			String input = in.readLine();
+			if (input.contains("1")) {
+				SQL = "INSERT INTO Customer(fname, lname, phone, address) Values(?, ?, ?, ?)";
+				table = "Customer";
+				format = "first name,last name,phone,address";
+				fields = 4;
+			}
+			else if (input.contains("2")) {
+				SQL = "INSERT INTO Mechanic(fname, lname, experience) Values(?, ?, ?)";
+				table = "Mechanic";
+				format = "first name,last name,years of experience";
+				fields = 3;
+			}
+			else if (input.contains("3")) {
+				SQL = "INSERT INTO Car(vin,make,model,year) Values(?, ?, ?, ?)";
+				table = "Car";
+				format = "VIN,make,model,year";
+				fields = 4;
 			}
 			else {
+				System.out.println("Error: Invalid input.");
 				return;
 			}
+			
+			System.out.println("Enter one row per line as " + format + ". Finish with an empty line.");
+			List<Object[]> rows = new ArrayList<Object[]>();
+			List<Integer> lineNumbers = new ArrayList<Integer>();
+			int lineNumber = 0;
+			while (true) {
+				String line;
+				try {
+					line = in.readLine();
+				} catch (EOFException e) { // end of input ends the batch too, the rows read are still written
+					break;
+				}
+				if (line.trim().isEmpty()) break;
+				++lineNumber;
+				// the last field (address, experience, year) takes the rest of the line
+				String[] v = line.split(",", fields);
+				if (v.length != fields) {
+					System.out.println("\tRow " + lineNumber + " skipped: expected " + format);
+					continue;
+				}
+				for (int i = 0; i < v.length; ++i) v[i] = v[i].trim();
+				String error = null;
+				Object[] row = null;
+				try {
+					if (fields == 3) {
+						int yearExp = Integer.parseInt(v[2]);
+						if (v[0].length() > 32 || v[1].length() > 32) error = "names are limited to 32 characters";
+						else if (yearExp < 0 || yearExp >= 100) error = "experience must be between 0 and 99";
+						else row = new Object[]{ v[0], v[1], yearExp };
+					}
+					else if (table.equals("Car")) {
+						int year = Integer.parseInt(v[3]);
+						if (v[0].isEmpty() || v[0].length() > 16) error = "VIN must be 1 to 16 characters";
+						else if (v[1].length() > 32 || v[2].length() > 32) error = "make and model are limited to 32 characters";
+						else if (year < 1970) error = "year must be 1970 or later";
+						else row = new Object[]{ v[0], v[1], v[2], year };
+					}
+					else {
+						if (v[0].length() > 32 || v[1].length() > 32) error = "names are limited to 32 characters";
+						else if (v[2].length() > 13) error = "phone is limited to 13 characters";
+						else if (v[3].length() > 256) error = "address is limited to 256 characters";
+						else row = new Object[]{ v[0], v[1], v[2], v[3] };
+					}
+				} catch (NumberFormatException e) {
+					error = "not a number: " + e.getMessage();
+				}
+				if (error != null) {
+					System.out.println("\tRow " + lineNumber + " skipped: " + error);
+					continue;
+				}
+				rows.add(row);
+				lineNumbers.add(lineNumber);
+			}
+			
+			Map<Integer, String> errors = new TreeMap<Integer, String>();
+			int inserted = BatchInsert.run(esql, SQL, rows, errors);
+			esql.invalidate(table);
+			for (Map.Entry<Integer, String> error : errors.entrySet()) {
+				System.out.println("\tRow " + lineNumbers.get(error.getKey()) + " rejected: " + error.getValue());
+			}
+			System.out.println("Inserted " + inserted + " of " + lineNumber + " rows.");
+		}catch(Exception e){
+			System.err.println (e.getMessage());
 		}
-		else {
-		System.out.print("Type 1 to choose an existing customer or 2 to add a new customer: ");
-		input = in.readLine();
-		
-		if (input.contains("1")) {
-			System.out.print("\tChoose the number corresponding to your first name: ");
-   			fname = in.readLine();
-			int num = Integer.parseInt(fname);
-                	fname = q2.get(num-1).get(0);
-
-			query = "SELECT C.id FROM Customer C WHERE C.fname = '" + fname + "' AND C.lname = '" + lname + "'";
-			q2 = esql.executeQueryAndReturnResult(query);
-			cid = q2.get(q2.size()-1).get(0);
-		}
-		else if (input.contains("2")) {
-			AddCustomer(esql);
-			query = "SELECT C.id, C.fname, C.lname FROM Customer C WHERE C.id = (SELECT MAX(C2.id) FROM Customer C2)";
-			q2 = esql.executeQueryAndReturnResult(query);
-			cid = q2.get(q2.size()-1).get(0);
-			fname = q2.get(q2.size()-1).get(1);
-			lname = q2.get(q2.size()-1).get(2);
-		}
-		else {
-			System.out.println("Error: Invalid input.");
-			return;
-		}
-		}
-		System.out.println("Your name is " + fname + " " + lname + ".");
-		System.out.println("Customer id is " + cid + ".");
-		System.out.println("List of related cars: ");
-
-		query = "SELECT c.vin, c.make, c.model, c.year FROM Customer cust, Car c, Owns o WHERE o.customer_id = cust.id AND o.car_vin = c.vin AND cust.fname = '" + fname + "' AND cust.lname = '" + lname + "'";
-		q2 = esql.executeQueryAndReturnResult(query);
-
-		for(int i = 0; i<q2.size(); i++)
-       {
-           System.out.println((i+1)+ ". " + q2.get(i).get(0)+ " " + q2.get(i).get(1) + ", " + q2.get(i).get(2) + ", " + q2.get(i).get(3));
-       }
-
-		System.out.print("Type 1 to choose an existing car or 2 to add a new car: ");
-		input = in.readLine();
-		if (input.contains("1")) {
-			System.out.print("\tChoose the number corresponding to the car of your choice: ");
-                	input = in.readLine();
-                	int num = Integer.parseInt(input);
-        	        vin = q2.get(num-1).get(0);
-	
+	}
+
+	public static void ExplainReports(MechanicShop esql){//13
+		try{
+			int seqScans = IndexAdvisor.explainReports(esql);
+			System.out.println("Sequential scans in the reports: " + seqScans);
+			if (seqScans > 0) System.out.println("Run \"migrate\" mode to create the missing indexes.");
+		}catch(Exception e){
+			System.err.println (e.getMessage());
 		}
-		else if (input.contains("2")) {
-			AddCar(esql);
-			System.out.print("\tRe-enter your car's VIN: ");
-			vin = in.readLine();
+	}
+
+	//statements of the desk operations, also prepared by WarmUp
+	final static String ADD_CUSTOMER_SQL = "INSERT INTO Customer(fname, lname, phone, address) Values(?, ?, ?, ?) RETURNING id";
+	final static String ADD_MECHANIC_SQL = "INSERT INTO Mechanic(fname, lname, experience) Values(?, ?, ?)";
+	final static String ADD_CAR_SQL = "INSERT INTO Car(vin,make,model,year) Values(?, ?, ?, ?)";
+	//the customers matching a condition with their cars, one row per car or a
+	//row without a car for a customer who owns none, ordered by customer
+	final static String CUSTOMERS_WITH_CARS_SQL = "SELECT C.id, C.fname, C.lname, Car.vin, Car.make, Car.model, Car.year FROM Customer C LEFT JOIN Owns O ON O.customer_id = C.id LEFT JOIN Car ON Car.vin = O.car_vin WHERE ";
+	final static String[] CUSTOMERS_WITH_CARS_TABLES = { "Customer", "Car", "Owns" };
+	final static String CUSTOMERS_BY_LNAME_SQL = CUSTOMERS_WITH_CARS_SQL + "C.lname = ? ORDER BY C.id, Car.vin";
+	final static String CUSTOMER_BY_ID_SQL = CUSTOMERS_WITH_CARS_SQL + "C.id = ? ORDER BY Car.vin";
+	final static String OPEN_REQUEST_SQL = "SELECT openServiceRequest(?, ?, ?, ?, ?, ?)";
+	//the request date, and the closed request if it was already closed
+	final static String REQUEST_TO_CLOSE_SQL = "SELECT S.date, CR.wid FROM Service_Request S LEFT JOIN Closed_Request CR ON CR.rid = S.rid WHERE S.rid = ?";
+	final static String MECHANIC_BY_ID_SQL = "SELECT * FROM Mechanic WHERE id = ?";
+	final static String[] MECHANIC_TABLES = { "Mechanic" };
+	final static String CLOSE_REQUEST_SQL = "SELECT closeServiceRequest(?, ?, ?, ?, ?, ?)";
+
+	/**
+	 * Method to write a new service request, checking its customer and car
+	 * in the same statement, or to queue it in the intake journal.
+	 *
+	 * @return the rid of the request
+	 * @throws java.lang.Exception when the request was rejected or could not be queued
+	 */
+	public int openServiceRequest(int customer, String vin, java.sql.Date date, int odometer, String complain) throws Exception {
+		final Object[] values = { this._ridAllocator.next(), customer, vin, date, odometer, complain };
+		if (this._intake != null) {
+			//written later by the intake writer, the desk only waits for the journal
+			this._intake.append(IntakeJournal.OPEN, values);
+			return (Integer) values[0];
 		}
-		else {
-			System.out.println("\tError: Invalid input.");
-			return;
+		return this._partitions.insert("Service_Request", date, () -> executeQueryAndReturnResult(OPEN_REQUEST_SQL, values)).getInt(0, 0);
+	}
+
+	/**
+	 * Method to close a service request, checking the request, the mechanic
+	 * and the dates in the same statement, or to queue it in the intake
+	 * journal.
+	 *
+	 * @return the wid of the closed request
+	 * @throws java.lang.Exception when the closing was rejected or could not be queued
+	 */
+	public int closeServiceRequest(int rid, int mechanic, java.sql.Date date, String comment, int bill) throws Exception {
+		final Object[] values = { this._widAllocator.next(), rid, mechanic, date, comment, bill };
+		if (this._intake != null) {
+			this._intake.append(IntakeJournal.CLOSE, values);
+			return (Integer) values[0];
 		}
+		return this._partitions.insert("Closed_Request", date, () -> executeQueryAndReturnResult(CLOSE_REQUEST_SQL, values)).getInt(0, 0);
+	}
 
-			
-		query = "SELECT MAX(rid) AS maxID FROM Service_Request";
-                List<List<String>> maxIDStr = esql.executeQueryAndReturnResult(query);
-                int rid = Integer.parseInt(maxIDStr.get(0).get(0)) + 1;
-		
+	/**
+	 * @return whether new and closed requests are queued in the intake journal
+	 */
+	public boolean queued() {
+		return this._intake != null;
+	}
 
-		System.out.print("\tEnter today's date in the format YYYY-MM-DD: ");
-		String date = in.readLine();
+	public static void InsertServiceRequest(MechanicShop esql){//4
+		String lname,input,vin;
+		try{
+
+			System.out.print("\tEnter last name: ");
+			lname = in.readLine();
+
+			//everything the next screens show, in one round trip
+			ResultTable found = esql.executeCachedQuery(CUSTOMERS_WITH_CARS_TABLES, CUSTOMERS_BY_LNAME_SQL, lname);
+			List<Integer> customers = new ArrayList<Integer>();
+			for (int r = 0; r < found.size(); r++) {
+				if (r == 0 || found.getInt(r, 0) != found.getInt(r - 1, 0)) customers.add(r);
+			}
+			for (int i = 0; i < customers.size(); i++) {
+				System.out.println((i+1)+ ". " + found.getString(customers.get(i), 1));
+			}
+
+			//the first row of the chosen customer in found
+			int customer = 0;
+			if (customers.isEmpty()) {
+				System.out.print("No customer with the last name " + lname + ".  Add as new customer? (Y/N):");
+				input = in.readLine();
+				if (!(input.contains("Y") || input.contains("y"))) return;
+				found = AddCustomerForRequest(esql);
+				if (found == null) return;
+			}
+			else {
+				System.out.print("Type 1 to choose an existing customer or 2 to add a new customer: ");
+				input = in.readLine();
+				if (input.contains("1")) {
+					System.out.print("\tChoose the number corresponding to your first name: ");
+					int num = Integer.parseInt(in.readLine());
+					customer = customers.get(num-1);
+				}
+				else if (input.contains("2")) {
+					found = AddCustomerForRequest(esql);
+					if (found == null) return;
+				}
+				else {
+					System.out.println("Error: Invalid input.");
+					return;
+				}
+			}
+			int cid = found.getInt(customer, 0);
+			System.out.println("Your name is " + found.getString(customer, 1) + " " + found.getString(customer, 2) + ".");
+			System.out.println("Customer id is " + cid + ".");
+			System.out.println("List of related cars: ");
 
+			List<Integer> cars = new ArrayList<Integer>();
+			for (int r = customer; r < found.size() && found.getInt(r, 0) == cid; r++) {
+				if (found.isNull(r, 3)) continue;
+				cars.add(r);
+				System.out.println(cars.size()+ ". " + found.getString(r, 3)+ " " + found.getString(r, 4) + ", " + found.getString(r, 5) + ", " + found.getString(r, 6));
+			}
 
-		while (!checkDate(date)) {
-                        System.out.print("\t Error: invalid. Enter today's date in the format YYYY-MM-DD: ");
-                        date = in.readLine();
-                }	
+			System.out.print("Type 1 to choose an existing car or 2 to add a new car: ");
+			input = in.readLine();
+			if (input.contains("1")) {
+				System.out.print("\tChoose the number corresponding to the car of your choice: ");
+				int num = Integer.parseInt(in.readLine());
+				vin = found.getString(cars.get(num-1), 3);
+			}
+			else if (input.contains("2")) {
+				AddCar(esql);
+				System.out.print("\tRe-enter your car's VIN: ");
+				vin = in.readLine();
+			}
+			else {
+				System.out.println("\tError: Invalid input.");
+				return;
+			}
 
-		System.out.print("\tEnter the number of miles on your odometer: ");
-		String odometer = in.readLine();
+			System.out.print("\tEnter today's date in the format YYYY-MM-DD: ");
+			String date = in.readLine();
+			while (!checkDate(date)) {
+				System.out.print("\t Error: invalid. Enter today's date in the format YYYY-MM-DD: ");
+				date = in.readLine();
+			}
 
-		while (!isNumeric(odometer)) {
-			System.out.print("\t Error: invalid. Enter the number of miles on your odometer: ");
-                	odometer = in.readLine();
-		}
+			System.out.print("\tEnter the number of miles on your odometer: ");
+			String odometer = in.readLine();
+			while (!isNumeric(odometer)) {
+				System.out.print("\t Error: invalid. Enter the number of miles on your odometer: ");
+				odometer = in.readLine();
+			}
 
-		System.out.print("\tReason for service: ");
-		String complain = in.readLine();
+			System.out.print("\tReason for service: ");
+			String complain = in.readLine();
 
-		query = "INSERT INTO Service_Request VALUES (" + rid + "," + cid + ",'" + vin + "','" + date + "'," + odometer + ",'" + complain + "')";
-                esql.executeUpdate(query);
+			int rid = esql.openServiceRequest(cid, vin, java.sql.Date.valueOf(date), Integer.parseInt(odometer), complain);
+			System.out.println("Service request number is " + rid + (esql.queued() ? " (queued)." : "."));
 
-     }catch(Exception e){
-         System.err.println (e.getMessage());
-      }
+		}catch(Exception e){
+			System.err.println (e.getMessage());
+		}
+	}
+
+	/**
+	 * Method to add a customer during InsertServiceRequest.
+	 *
+	 * @return the new customer as rows of CUSTOMERS_WITH_CARS_SQL, or null when none was added
+	 */
+	private static ResultTable AddCustomerForRequest(MechanicShop esql) throws SQLException, IOException {
+		int newId = AddCustomer(esql);
+		if (newId < 0) return null;
+		return esql.executeCachedQuery(CUSTOMERS_WITH_CARS_TABLES, CUSTOMER_BY_ID_SQL, newId);
 	}
 	
 	public static void CloseServiceRequest(MechanicShop esql) throws Exception{//5
@@ -673,16 +1141,15 @@ public class MechanicShop{
            System.out.print("\tError: Not a number. Please Enter Service Request Number: ");
            srNum = in.readLine();
          }
-         String query = "SELECT * FROM Service_Request WHERE rid =  '" + srNum + "'";
-         List<List<String>> s1 = esql.executeQueryAndReturnResult(query);
+         String query = REQUEST_TO_CLOSE_SQL;
+         ResultTable s1 = esql.executeQueryAndReturnResult(query, Integer.parseInt(srNum));
          while(s1.isEmpty()){
            System.out.print("Service Request Number: " + srNum + " DNE.              \nRe-Enter the Service Request Number? (Y/N): ");
            choice = in.readLine();
            if(choice.contains("Y") || choice.contains("y")){
              System.out.print("Enter Service Request Number: ");
              srNum = in.readLine();
-             query = "SELECT * FROM Service_Request WHERE rid =  '" + srNum + "'";
-             s1 = esql.executeQueryAndReturnResult(query);
+             s1 = esql.executeQueryAndReturnResult(query, Integer.parseInt(srNum));
              }
            else if(choice.contains("N") || choice.contains ("n")){
              return;
@@ -693,20 +1160,21 @@ public class MechanicShop{
            }
          }
          
-         String d = s1.get(0).get(3);
-         int year = Integer.parseInt(d.substring(0,4));
-         int month = Integer.parseInt(d.substring(5,7));
-         int day = Integer.parseInt(d.substring(8,10));
+         if (!s1.isNull(0, 1)) {
+           System.out.println("Service Request Number: " + srNum + " is already closed (closed request " + s1.getInt(0, 1) + ").");
+           return;
+         }
+         LocalDate d = s1.getDate(0, 0);
 
 	System.out.print("Enter Employee ID: ");
          empid = in.readLine();
-         while(isNumeric(srNum) == false)
+         while(isNumeric(empid) == false)
          {
-           System.out.print("\tError: Not a number.Enter Service Request Number: ");
-           srNum = in.readLine();
+           System.out.print("\tError: Not a number. Enter Employee ID: ");
+           empid = in.readLine();
          }
-         query = "SELECT * FROM Mechanic WHERE id =  '" + empid + "'";
-         List<List<String>> m1 = esql.executeQueryAndReturnResult(query);
+         query = MECHANIC_BY_ID_SQL;
+         ResultTable m1 = esql.executeCachedQuery(MECHANIC_TABLES, query, Integer.parseInt(empid));
          
          while(m1.isEmpty()){
            System.out.print("Employee ID: " + empid + " does not exist.                         \nRe-Enter ID? (Y/N): ");
@@ -714,8 +1182,7 @@ public class MechanicShop{
            if(choice.contains("Y") || choice.contains("y")){
              System.out.print("Enter Employee ID: ");
              empid = in.readLine();
-             query = "SELECT * FROM Mechanic WHERE rid =  '" + empid + "'";
-             m1 = esql.executeQueryAndReturnResult(query);
+             m1 = esql.executeCachedQuery(MECHANIC_TABLES, query, Integer.parseInt(empid));
              }
            else if(choice.contains("N") || choice.contains ("n")){
              return;
@@ -725,28 +1192,18 @@ public class MechanicShop{
              return;
            }
          }
-         query = "SELECT MAX(wid) AS maxID FROM Closed_Request";
-         List<List<String>> maxIDStr = esql.executeQueryAndReturnResult(query);
-         int wid = Integer.parseInt(maxIDStr.get(0).get(0)) + 1;
-                
          System.out.print("This Service Request was made on " +d+ ".\nEnter Today's date in the format YYYY-MM-DD: ");
          String date = in.readLine();
-         int year2 = Integer.parseInt(date.substring(0,4));
-         int month2 = Integer.parseInt(date.substring(5,7));
-         int day2 = Integer.parseInt(date.substring(8,10));
-         while(year2<year || (year2==year && month2<month) || (year2==year && month2==month && day2<day)){
+         while(LocalDate.parse(date).isBefore(d)){
          System.out.print("Inputed Date is after Service date. Please enter a valid date: ");
          date = in.readLine();
-         year2 = Integer.parseInt(date.substring(0,4));
-         month2 = Integer.parseInt(date.substring(5,7));
-         day2 = Integer.parseInt(date.substring(8,10));
         }
          System.out.print("Enter comments:");
          String comments = in.readLine();
          System.out.print("Enter Bill: $");
          String bill = in.readLine();
-         query = "INSERT INTO Closed_Request VALUES (" + wid + "," + srNum + "," + empid + ",'" + date + "','" + comments + "'," + bill +")";
-         esql.executeUpdate(query);
+         int wid = esql.closeServiceRequest(Integer.parseInt(srNum), Integer.parseInt(empid), java.sql.Date.valueOf(date), comments, Integer.parseInt(bill));
+         System.out.println("Closed request number is " + wid + (esql.queued() ? " (queued)." : "."));
 
 
       }catch(Exception e){
@@ -754,8 +1211,76 @@ public class MechanicShop{
       }
 	}
 	
+	//report queries, also explained by IndexAdvisor
+	final static String BILL_LESS_THAN_100_SQL = "SELECT C.date,C.comment,C.bill FROM Closed_Request C WHERE bill < 100";
+	final static String MORE_THAN_20_CARS_SQL = "SELECT C.fname, C.lname FROM Customer C,( SELECT customer_id,COUNT(customer_id) as car_num FROM Owns GROUP BY customer_id HAVING COUNT(customer_id) > 20 ) AS O WHERE O.customer_id = id";
+	final static String BEFORE_1995_SQL = "SELECT DISTINCT C.make,C.model, year FROM Car AS C, Service_Request AS S WHERE year < 1995 and S.car_vin = C.vin and S.odometer < 50000";
+	// Car_Service_Count is maintained by a trigger on Service_Request
+	final static String K_MOST_SERVICED_SQL = "SELECT C.make, C.model, R.creq FROM Car AS C, Car_Service_Count AS R WHERE R.car_vin = C.vin ORDER BY R.creq DESC LIMIT ?";
+	// Customer_Bill_Total is maintained by a trigger on Closed_Request
+	final static String TOTAL_BILL_SQL = "SELECT C.fname , C.lname, A.total AS Total FROM Customer AS C, Customer_Bill_Total AS A WHERE C.id=A.customer_id ORDER BY A.total DESC";
+	
+	//reports over a date range [from, to), pruned to the partitions of those months
+	final static String PERIOD_BILL_LESS_THAN_100_SQL = "SELECT C.date,C.comment,C.bill FROM Closed_Request C WHERE bill < 100 AND C.date >= ? AND C.date < ?";
+	final static String PERIOD_K_MOST_SERVICED_SQL = "SELECT C.make, C.model, COUNT(*) AS creq FROM Car AS C, Service_Request AS S WHERE S.car_vin = C.vin AND S.date >= ? AND S.date < ? GROUP BY C.vin, C.make, C.model ORDER BY creq DESC LIMIT ?";
+	// a request is made no later than it is closed, which prunes the later request months too
+	final static String PERIOD_TOTAL_BILL_SQL = "SELECT C.fname, C.lname, SUM(CR.bill) AS Total FROM Customer AS C, Service_Request AS SR, Closed_Request AS CR WHERE CR.rid = SR.rid AND SR.customer_id = C.id AND CR.date >= ? AND CR.date < ? AND SR.date < ? GROUP BY C.id, C.fname, C.lname ORDER BY Total DESC";
+	
+	public static void ReportForPeriod(MechanicShop esql, ReportRunner reports){//16
+		try{
+			System.out.println("\t1. ListCustomersWithBillLessThan100");
+			System.out.println("\t2. ListKCarsWithTheMostServices");
+			System.out.println("\t3. ListCustomersInDescendingOrderOfTheirTotalBill");
+			System.out.print("\tChoose a report: ");
+			String choice = in.readLine().trim();
+			if (!choice.equals("1") && !choice.equals("2") && !choice.equals("3")) {
+				System.out.println("Your input is invalid!");
+				return;
+			}
+			
+			java.time.LocalDate today = java.time.LocalDate.now();
+			java.time.LocalDate quarter = today.withDayOfMonth(1).withMonth((today.getMonthValue() - 1) / 3 * 3 + 1);
+			java.sql.Date from = readPeriodDate("\tFirst day in the format YYYY-MM-DD (Enter for the start of this quarter): ", quarter);
+			java.sql.Date to = readPeriodDate("\tDay after the last one in the format YYYY-MM-DD (Enter for the start of next quarter): ", quarter.plusMonths(3));
+			if (from == null || to == null) return;
+			final String period = " from " + from + " to " + to;
+			
+			if (choice.equals("1")) {
+				reports.submit("ListCustomersWithBillLessThan100" + period, () -> {
+					int rowCount = esql.executeQueryAndPrintResult(PERIOD_BILL_LESS_THAN_100_SQL, from, to);
+					System.out.println ("Customers with bills less than 100" + period + ": " + rowCount);
+				});
+			} else if (choice.equals("2")) {
+				Integer k = readK();
+				if (k == null) return;
+				reports.submit("ListKCarsWithTheMostServices" + period, () -> {
+					int rowCount = esql.executeQueryAndPrintResult(PERIOD_K_MOST_SERVICED_SQL, from, to, k);
+					System.out.println ("Cars with most services" + period + ": " + rowCount);
+				});
+			} else {
+				reports.submit("ListCustomersInDescendingOrderOfTheirTotalBill" + period, () -> {
+					int rowCount = esql.executeQueryAndPrintResult(PERIOD_TOTAL_BILL_SQL, from, to, to);
+					System.out.println ("Descending order of customers total bill" + period + ": " + rowCount);
+				});
+			}
+		}catch(Exception e){
+			System.err.println (e.getMessage());
+		}
+	}
+	
+	private static java.sql.Date readPeriodDate(String prompt, java.time.LocalDate fallback) throws java.io.IOException {
+		System.out.print(prompt);
+		String date = in.readLine().trim();
+		if (date.isEmpty()) return java.sql.Date.valueOf(fallback);
+		if (!checkDate(date)) {
+			System.out.println("\tError: invalid date " + date);
+			return null;
+		}
+		return java.sql.Date.valueOf(date);
+	}
+	
 	public static void ListCustomersWithBillLessThan100(MechanicShop esql){//6
-		String SQL = "SELECT C.date,C.comment,C.bill FROM Closed_Request C WHERE bill < 100";
+		String SQL = BILL_LESS_THAN_100_SQL;
 		
 		try
 		{
@@ -771,7 +1296,7 @@ public class MechanicShop{
 	
 	public static void ListCustomersWithMoreThan20Cars(MechanicShop esql){//7
 	
-		String SQL = "SELECT C.fname, C.lname FROM Customer C,( SELECT customer_id,COUNT(customer_id) as car_num FROM Owns GROUP BY customer_id HAVING COUNT(customer_id) > 20 ) AS O WHERE O.customer_id = id";
+		String SQL = MORE_THAN_20_CARS_SQL;
 		
 		try
 		{
@@ -786,7 +1311,7 @@ public class MechanicShop{
 	
 	public static void ListCarsBefore1995With50000Milles(MechanicShop esql){//8
 		
-		String SQL = "SELECT DISTINCT C.make,C.model, year FROM Car AS C, Service_Request AS S WHERE year < 1995 and S.car_vin = C.vin and S.odometer < 50000";
+		String SQL = BEFORE_1995_SQL;
 		
 		try
 		{
@@ -800,11 +1325,26 @@ public class MechanicShop{
 	}
 	
 	public static void ListKCarsWithTheMostServices(MechanicShop esql){//
+		Integer k = readK();
+		if (k != null) ListKCarsWithTheMostServices(esql, k);
+	}
+	
+	public static Integer readK(){
 		System.out.println("Enter an integer for k: "); 
 		try{
-			String input = in.readLine();
-			String SQL = "SELECT C.make, C.model, R.creq FROM Car AS C, ( SELECT car_vin, COUNT(rid) AS creq FROM Service_Request GROUP BY car_vin ) AS R WHERE R.car_vin = C.vin ORDER BY R.creq DESC LIMIT " + input;
-	    	int rowCount = esql.executeQueryAndPrintResult(SQL);
+			return Integer.parseInt(in.readLine().trim());
+		}
+		catch(Exception e)
+		{
+			System.err.println (e.getMessage());
+			return null;
+		}
+	}
+	
+	public static void ListKCarsWithTheMostServices(MechanicShop esql, int k){
+		try{
+			String SQL = K_MOST_SERVICED_SQL;
+	    	int rowCount = esql.executeQueryAndPrintResult(SQL, k);
 	        System.out.println ("Cars with most services: " + rowCount);
     	}
     	catch(Exception e)
@@ -815,8 +1355,7 @@ public class MechanicShop{
 	}
 	
 	public static void ListCustomersInDescendingOrderOfTheirTotalBill(MechanicShop esql){//9
-		//
-		String SQL = "SELECT C.fname , C.lname, Total FROM Customer AS C, (SELECT sr.customer_id, SUM(CR.bill) AS Total FROM Closed_Request AS CR, Service_Request AS SR WHERE CR.rid = SR.rid GROUP BY SR.customer_id) AS A WHERE C.id=A.customer_id ORDER BY A.Total DESC";
+		String SQL = TOTAL_BILL_SQL;
 		
 		try
 		{
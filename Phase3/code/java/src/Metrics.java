@@ -0,0 +1,341 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class records what the menu operations and the JDBC helpers spend
+ * their time on.  Every menu operation gets a latency histogram that
+ * excludes the time spent waiting for the desk to type, split into time
+ * waiting for a pooled connection, time in JDBC work (database and network)
+ * and the rest (our own code), plus row, byte and error counts.  Every
+ * JDBC helper gets a latency histogram and an error count of its own.
+ *
+ * The numbers are exported in the Prometheus text format over HTTP
+ * (-Dmechanicshop.metricsPort=&lt;port&gt;) and/or dumped to the console
+ * periodically (-Dmechanicshop.metricsDumpSeconds=&lt;seconds&gt;).
+ *
+ */
+
+public class Metrics{
+	//quantiles exported for every histogram
+	final static double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	/**
+	 * Counters of one menu operation or one JDBC helper.
+	 */
+	static class Stats{
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LatencyHistogram db = new LatencyHistogram();
+		final LatencyHistogram poolWait = new LatencyHistogram();
+		final LongAdder inputNanos = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		final LongAdder rows = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+	}
+
+	/**
+	 * What the menu operation running on a thread has spent so far.
+	 */
+	private static class Context{
+		final String operation;
+		long dbNanos = 0;
+		long poolWaitNanos = 0;
+		long inputNanos = 0;
+		long rows = 0;
+		long bytes = 0;
+		boolean failed = false;
+
+		Context(String operation) {
+			this.operation = operation;
+		}
+	}
+
+	/**
+	 * A menu operation.
+	 */
+	interface Operation {
+		void run () throws Exception;
+	}
+
+	private static final ConcurrentMap<String, Stats> OPERATIONS = new ConcurrentHashMap<String, Stats>();
+	private static final ConcurrentMap<String, Stats> QUERIES = new ConcurrentHashMap<String, Stats>();
+	//every borrow from the pool, inside a menu operation or not
+	private static final LatencyHistogram POOL_WAIT = new LatencyHistogram();
+	//rows written by the background writers, which run outside any menu operation
+	private static final ConcurrentMap<String, LongAdder> WRITTEN = new ConcurrentHashMap<String, LongAdder>();
+	private static final ThreadLocal<Context> CURRENT = new ThreadLocal<Context>();
+	//the Prometheus endpoint, when started
+	private static HttpServer _server = null;
+
+	/**
+	 * Method to run a menu operation and record what it spent.
+	 *
+	 * @param name the name of the operation (e.g. AddCustomer)
+	 * @param body the operation
+	 * @throws java.lang.Exception when the operation failed
+	 */
+	public static void operation(String name, Operation body) throws Exception {
+		Context ctx = new Context(name);
+		CURRENT.set(ctx);
+		long start = System.nanoTime();
+		try {
+			body.run();
+		} catch (Exception e) {
+			ctx.failed = true;
+			throw e;
+		} finally {
+			CURRENT.remove();
+			Stats stats = stats(OPERATIONS, name);
+			stats.latency.record(System.nanoTime() - start - ctx.inputNanos);
+			stats.db.record(ctx.dbNanos);
+			stats.poolWait.record(ctx.poolWaitNanos);
+			stats.inputNanos.add(ctx.inputNanos);
+			stats.rows.add(ctx.rows);
+			stats.bytes.add(ctx.bytes);
+			if (ctx.failed) stats.errors.increment();
+		}
+	}
+
+	/**
+	 * Method to record one run of a JDBC helper on a borrowed connection.
+	 *
+	 * @param name the name of the helper
+	 * @param nanos the time the connection was used
+	 * @param failed whether the helper threw
+	 */
+	public static void query(String name, long nanos, boolean failed) {
+		Stats stats = stats(QUERIES, name);
+		stats.latency.record(nanos);
+		if (failed) stats.errors.increment();
+		Context ctx = CURRENT.get();
+		if (ctx != null) {
+			ctx.dbNanos += nanos;
+			ctx.failed |= failed;
+		}
+	}
+
+	/**
+	 * Method to record the rows and bytes (characters of the values) read
+	 * or written by a JDBC helper.
+	 */
+	public static void fetched(long rows, long bytes) {
+		Context ctx = CURRENT.get();
+		if (ctx != null) {
+			ctx.rows += rows;
+			ctx.bytes += bytes;
+		}
+	}
+
+	/**
+	 * Method to record the rows a background writer wrote, e.g. the
+	 * intake journal applying a batch.
+	 *
+	 * @param writer the name of the writer
+	 * @param rows the rows written
+	 */
+	public static void written(String writer, long rows) {
+		LongAdder count = WRITTEN.get(writer);
+		if (count == null) {
+			LongAdder created = new LongAdder();
+			count = WRITTEN.putIfAbsent(writer, created);
+			if (count == null) count = created;
+		}
+		count.add(rows);
+	}
+
+	/**
+	 * Method to record the time a borrow waited for a pooled connection.
+	 */
+	public static void poolWait(long nanos) {
+		POOL_WAIT.record(nanos);
+		Context ctx = CURRENT.get();
+		if (ctx != null) ctx.poolWaitNanos += nanos;
+	}
+
+	/**
+	 * Method to record the time spent waiting for the desk to enter a line.
+	 */
+	public static void input(long nanos) {
+		Context ctx = CURRENT.get();
+		if (ctx != null) ctx.inputNanos += nanos;
+	}
+
+	private static Stats stats(ConcurrentMap<String, Stats> map, String name) {
+		Stats stats = map.get(name);
+		if (stats == null) {
+			Stats created = new Stats();
+			stats = map.putIfAbsent(name, created);
+			if (stats == null) stats = created;
+		}
+		return stats;
+	}
+
+	/**
+	 * @return every metric in the Prometheus text exposition format
+	 */
+	public static String prometheus() {
+		StringBuilder out = new StringBuilder();
+		Map<String, Stats> ops = new TreeMap<String, Stats>(OPERATIONS);
+		Map<String, Stats> queries = new TreeMap<String, Stats>(QUERIES);
+
+		header(out, "mechanicshop_operation_seconds", "summary", "Menu operation latency, excluding desk input");
+		for (Map.Entry<String, Stats> e : ops.entrySet()) summary(out, "mechanicshop_operation_seconds", "operation", e.getKey(), e.getValue().latency);
+		header(out, "mechanicshop_operation_db_seconds", "summary", "Time a menu operation spent in JDBC work (database and network)");
+		for (Map.Entry<String, Stats> e : ops.entrySet()) summary(out, "mechanicshop_operation_db_seconds", "operation", e.getKey(), e.getValue().db);
+		header(out, "mechanicshop_operation_pool_wait_seconds", "summary", "Time a menu operation waited for pooled connections");
+		for (Map.Entry<String, Stats> e : ops.entrySet()) summary(out, "mechanicshop_operation_pool_wait_seconds", "operation", e.getKey(), e.getValue().poolWait);
+		header(out, "mechanicshop_operation_input_seconds_total", "counter", "Time menu operations waited for desk input");
+		for (Map.Entry<String, Stats> e : ops.entrySet()) sample(out, "mechanicshop_operation_input_seconds_total", "operation", e.getKey(), seconds(e.getValue().inputNanos.sum()));
+		header(out, "mechanicshop_operation_errors_total", "counter", "Menu operations that failed");
+		for (Map.Entry<String, Stats> e : ops.entrySet()) sample(out, "mechanicshop_operation_errors_total", "operation", e.getKey(), e.getValue().errors.sum());
+		header(out, "mechanicshop_operation_rows_total", "counter", "Rows read or written by menu operations");
+		for (Map.Entry<String, Stats> e : ops.entrySet()) sample(out, "mechanicshop_operation_rows_total", "operation", e.getKey(), e.getValue().rows.sum());
+		header(out, "mechanicshop_operation_bytes_total", "counter", "Characters of the values fetched by menu operations");
+		for (Map.Entry<String, Stats> e : ops.entrySet()) sample(out, "mechanicshop_operation_bytes_total", "operation", e.getKey(), e.getValue().bytes.sum());
+
+		header(out, "mechanicshop_query_seconds", "summary", "JDBC helper latency on a borrowed connection");
+		for (Map.Entry<String, Stats> e : queries.entrySet()) summary(out, "mechanicshop_query_seconds", "helper", e.getKey(), e.getValue().latency);
+		header(out, "mechanicshop_query_errors_total", "counter", "JDBC helper calls that threw");
+		for (Map.Entry<String, Stats> e : queries.entrySet()) sample(out, "mechanicshop_query_errors_total", "helper", e.getKey(), e.getValue().errors.sum());
+
+		header(out, "mechanicshop_written_rows_total", "counter", "Rows written by the background writers");
+		for (Map.Entry<String, LongAdder> e : new TreeMap<String, LongAdder>(WRITTEN).entrySet()) sample(out, "mechanicshop_written_rows_total", "writer", e.getKey(), e.getValue().sum());
+
+		header(out, "mechanicshop_pool_wait_seconds", "summary", "Time borrows waited for a pooled connection");
+		summary(out, "mechanicshop_pool_wait_seconds", null, null, POOL_WAIT);
+		return out.toString();
+	}
+
+	/**
+	 * @return one line per menu operation and JDBC helper, in milliseconds
+	 */
+	public static String report() {
+		StringBuilder out = new StringBuilder();
+		for (Map.Entry<String, Stats> e : new TreeMap<String, Stats>(OPERATIONS).entrySet()) {
+			Stats s = e.getValue();
+			long calls = s.latency.count();
+			out.append(String.format("metrics: operation=%s calls=%d errors=%d p50=%.3fms p99=%.3fms max=%.3fms avgDb=%.3fms avgPoolWait=%.3fms avgOwn=%.3fms rows=%d bytes=%d%n",
+				e.getKey(), calls, s.errors.sum(), millis(s.latency.percentile(0.5)), millis(s.latency.percentile(0.99)), millis(s.latency.max()),
+				average(s.db.sum(), calls), average(s.poolWait.sum(), calls), average(s.latency.sum() - s.db.sum() - s.poolWait.sum(), calls),
+				s.rows.sum(), s.bytes.sum()));
+		}
+		for (Map.Entry<String, Stats> e : new TreeMap<String, Stats>(QUERIES).entrySet()) {
+			Stats s = e.getValue();
+			out.append(String.format("metrics: helper=%s calls=%d errors=%d p50=%.3fms p99=%.3fms max=%.3fms%n",
+				e.getKey(), s.latency.count(), s.errors.sum(), millis(s.latency.percentile(0.5)), millis(s.latency.percentile(0.99)), millis(s.latency.max())));
+		}
+		for (Map.Entry<String, LongAdder> e : new TreeMap<String, LongAdder>(WRITTEN).entrySet())
+			out.append(String.format("metrics: writer=%s rows=%d%n", e.getKey(), e.getValue().sum()));
+		out.append(String.format("metrics: pool borrows=%d p50=%.3fms p99=%.3fms max=%.3fms%n",
+			POOL_WAIT.count(), millis(POOL_WAIT.percentile(0.5)), millis(POOL_WAIT.percentile(0.99)), millis(POOL_WAIT.max())));
+		return out.toString();
+	}
+
+	/**
+	 * Method to start the exporters requested with the
+	 * mechanicshop.metricsPort and mechanicshop.metricsDumpSeconds system
+	 * properties.  Both run on daemon threads.
+	 *
+	 * @throws java.io.IOException when the HTTP port cannot be opened
+	 */
+	public static void startExporters() throws IOException {
+		int port = Integer.getInteger("mechanicshop.metricsPort", 0);
+		if (port > 0) {
+			HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+			server.createContext("/metrics", exchange -> {
+				byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			});
+			server.setExecutor(Executors.newSingleThreadExecutor(daemon("metrics-http")));
+			server.start();
+			_server = server;
+			Session.console().println("Serving metrics on http://localhost:" + port + "/metrics");
+		}
+		int dumpSeconds = Integer.getInteger("mechanicshop.metricsDumpSeconds", 0);
+		if (dumpSeconds > 0) {
+			final PrintStream console = Session.console();
+			ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(daemon("metrics-dump"));
+			dumper.scheduleAtFixedRate(() -> console.print(report()), dumpSeconds, dumpSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Method to stop the Prometheus endpoint, whose dispatcher thread would
+	 * otherwise keep the process alive.
+	 */
+	public static void stopExporters() {
+		if (_server != null) {
+			_server.stop(0);
+			_server = null;
+		}
+	}
+
+	private static ThreadFactory daemon(final String name) {
+		return r -> {
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	private static void header(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void summary(StringBuilder out, String name, String label, String value, LatencyHistogram h) {
+		String labels = label == null ? "" : label + "=\"" + value + "\",";
+		for (double q : QUANTILES)
+			out.append(name).append('{').append(labels).append("quantile=\"").append(q).append("\"} ").append(seconds(h.percentile(q))).append('\n');
+		sample(out, name + "_sum", label, value, seconds(h.sum()));
+		sample(out, name + "_count", label, value, h.count());
+	}
+
+	private static void sample(StringBuilder out, String name, String label, String value, Object sample) {
+		out.append(name);
+		if (label != null) out.append('{').append(label).append("=\"").append(value).append("\"}");
+		out.append(' ').append(sample).append('\n');
+	}
+
+	private static double seconds(long nanos) {
+		return nanos / 1e9;
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	private static double average(long nanos, long calls) {
+		return calls == 0 ? 0 : nanos / 1e6 / calls;
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class maintains the monthly partitions of Service_Request and
+ * Closed_Request (see the PARTITIONS section of create.sql).  The coming
+ * months are created ahead of time by a daily background task, a month
+ * missing when a row arrives is created on the spot, and old months can be
+ * detached for archival without blocking the live partitions.
+ *
+ */
+
+public class Partitions{
+	final static String[] TABLES = { "Service_Request", "Closed_Request" };
+	//months created ahead of the current one
+	final static int MONTHS_AHEAD = Integer.getInteger("mechanicshop.partitionMonthsAhead", 3);
+	final static long MAINTENANCE_PERIOD_HOURS = 24;
+	//requests of the archived months still in the work queue; once detached they could not be closed
+	final static String ARCHIVE_OPEN_SQL = "SELECT rid FROM Open_Request WHERE date < ? ORDER BY date, rid LIMIT 10";
+	//closings kept by the archive whose request would be archived; DETACH does not check the reference
+	final static String ARCHIVE_CLOSED_SQL = "SELECT CR.wid, CR.rid FROM Closed_Request CR JOIN Service_Request SR ON SR.rid = CR.rid WHERE SR.date < ? AND CR.date >= ? ORDER BY CR.wid LIMIT 10";
+
+	/**
+	 * An insert into one of the partitioned tables.
+	 */
+	interface Insert<T> {
+		T run () throws SQLException;
+	}
+
+	private final MechanicShop _esql;
+	private ScheduledExecutorService _maintenance = null;
+
+	public Partitions(MechanicShop esql) {
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to create the coming months now and then once a day.
+	 */
+	public void start() {
+		this._maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "partition-maintenance");
+			t.setDaemon(true);
+			return t;
+		});
+		this._maintenance.scheduleAtFixedRate(() -> {
+			try {
+				createAhead();
+			} catch (SQLException e) {
+				Session.console().println("Partition maintenance failed: " + e.getMessage());
+			}
+		}, 0, MAINTENANCE_PERIOD_HOURS, TimeUnit.HOURS);
+	}
+
+	/**
+	 * Method to stop the daily task.
+	 */
+	public void shutdown() {
+		if (this._maintenance != null) this._maintenance.shutdownNow();
+	}
+
+	/**
+	 * Method to create the partitions of the current month and the
+	 * MONTHS_AHEAD following ones that do not exist yet.
+	 *
+	 * @return the number of partitions created
+	 * @throws java.sql.SQLException when a partition cannot be created
+	 */
+	public int createAhead() throws SQLException {
+		int created = 0;
+		for (String table : TABLES) {
+			ResultTable result = this._esql.executeQueryAndReturnResult(
+				"SELECT createMonthPartitions(?, CURRENT_DATE, CAST(CURRENT_DATE + make_interval(months => ?) AS date))", table, MONTHS_AHEAD);
+			created += result.getInt(0, 0);
+		}
+		return created;
+	}
+
+	/**
+	 * Method to run an insert into a partitioned table, creating the month
+	 * of the row and trying again when it has no partition yet.
+	 *
+	 * @param table the partitioned table
+	 * @param date the date of the inserted row
+	 * @param insert the insert
+	 * @return the result of the insert
+	 * @throws java.sql.SQLException when the insert failed
+	 */
+	public <T> T insert(String table, Date date, Insert<T> insert) throws SQLException {
+		return insert(new String[]{ table }, date, date, insert);
+	}
+
+	/**
+	 * Method to run an insert of several rows into partitioned tables,
+	 * creating the months of the rows and trying again when one of them
+	 * has no partition yet.
+	 *
+	 * @param tables the partitioned tables
+	 * @param first the date of the earliest row
+	 * @param last the date of the latest row
+	 * @param insert the insert
+	 * @return the result of the insert
+	 * @throws java.sql.SQLException when the insert failed
+	 */
+	public <T> T insert(String[] tables, Date first, Date last, Insert<T> insert) throws SQLException {
+		try {
+			return insert.run();
+		} catch (SQLException e) {
+			if (!missingPartition(e)) throw e;
+			for (String table : tables) create(table, first, last);
+			return insert.run();
+		}
+	}
+
+	/**
+	 * Method to create the months of a date range that do not exist yet.
+	 *
+	 * @param table the partitioned table
+	 * @param first a date of the first month
+	 * @param last a date of the last month
+	 * @return the number of partitions created
+	 * @throws java.sql.SQLException when a partition cannot be created
+	 */
+	public int create(String table, Date first, Date last) throws SQLException {
+		return this._esql.executeQueryAndReturnResult("SELECT createMonthPartitions(?, ?, ?)", table, first, last).getInt(0, 0);
+	}
+
+	/**
+	 * @return whether an insert failed because the month of a row has no partition
+	 */
+	static boolean missingPartition(SQLException e) {
+		// "no partition of relation ... found for row"
+		return "23514".equals(e.getSQLState()) && e.getMessage() != null && e.getMessage().contains("no partition");
+	}
+
+	/**
+	 * Method to detach every month before a given one from both tables.
+	 * DETACH ... CONCURRENTLY only waits for the queries already reading
+	 * the month, so inserts into the live months go on.  The detached
+	 * months stay in the database as plain tables until they are dumped
+	 * and dropped.  The archive is refused while requests of the archived
+	 * months are still open, as they could no longer be closed, and when
+	 * some were closed in a kept month, since DETACH does not check the
+	 * checkRequest reference.
+	 *
+	 * @param before the first month kept, as yyyy-MM
+	 * @return the number of partitions detached
+	 * @throws java.sql.SQLException when a partition cannot be detached
+	 */
+	public int archive(String before) throws SQLException {
+		if (!before.matches("\\d{4}-\\d{2}")) throw new SQLException("Expected a month as yyyy-MM: " + before);
+		String cutoff = before.replace('-', '_');
+		Date first = Date.valueOf(before + "-01");
+		ResultTable orphans = this._esql.executeQueryAndReturnResult(ARCHIVE_CLOSED_SQL, first, first);
+		if (orphans.size() > 0) {
+			StringBuilder closings = new StringBuilder();
+			for (ResultTable.Row row : orphans) closings.append(closings.length() == 0 ? "" : ", ").append(row.getInt(0)).append(" (request ").append(row.getInt(1)).append(")");
+			throw new SQLException("Closed requests of the kept months refer to requests before " + before + ": " + closings);
+		}
+		ResultTable open = this._esql.executeQueryAndReturnResult(ARCHIVE_OPEN_SQL, first);
+		if (open.size() > 0) {
+			StringBuilder requests = new StringBuilder();
+			for (ResultTable.Row row : open) requests.append(requests.length() == 0 ? "" : ", ").append(row.getInt(0));
+			throw new SQLException("Requests before " + before + " are still open, close them first: " + requests);
+		}
+		int detached = 0;
+		for (String table : TABLES) {
+			ResultTable partitions = this._esql.executeQueryAndReturnResult(
+				"SELECT C.relname FROM pg_inherits I, pg_class C WHERE I.inhrelid = C.oid AND I.inhparent = CAST(? AS regclass) ORDER BY C.relname", table.toLowerCase());
+			for (ResultTable.Row row : partitions) {
+				String partition = row.getString(0);
+				String month = partition.substring(partition.length() - "yyyy_mm".length());
+				if (month.compareTo(cutoff) >= 0) continue;
+				System.out.println("Detaching " + partition);
+				this._esql.executeUpdate("ALTER TABLE " + table + " DETACH PARTITION " + partition + " CONCURRENTLY");
+				++detached;
+			}
+		}
+		return detached;
+	}
+}
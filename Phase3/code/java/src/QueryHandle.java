@@ -0,0 +1,141 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * This class lets another thread follow and cancel the streamed queries run
+ * by the thread it is bound to, and puts a timeout on each of them.
+ * MechanicShop.executeQueryAndStream attaches its statement to the handle
+ * bound to the calling thread, if any.
+ *
+ */
+
+public class QueryHandle{
+	//SQLState of a query canceled on request, same as the server reports
+	final static String QUERY_CANCELED = "57014";
+
+	private static final ThreadLocal<QueryHandle> CURRENT = new ThreadLocal<QueryHandle>();
+
+	private final int _timeoutSeconds;
+	private volatile Statement _statement = null;
+	private volatile boolean _cancelled = false;
+	private volatile long _rows = 0;
+
+	/**
+	 * @param timeoutSeconds the time each query may run, 0 for no limit
+	 */
+	public QueryHandle(int timeoutSeconds) {
+		this._timeoutSeconds = timeoutSeconds;
+	}
+
+	/**
+	 * @return the handle bound to the calling thread, or null
+	 */
+	public static QueryHandle current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Method to bind a handle to the calling thread.
+	 */
+	public static void bind(QueryHandle handle) {
+		CURRENT.set(handle);
+	}
+
+	/**
+	 * Method to detach the handle from the calling thread.
+	 */
+	public static void unbind() {
+		CURRENT.remove();
+	}
+
+	/**
+	 * Method to register a statement about to be executed.
+	 *
+	 * @param stmt the statement
+	 * @throws java.sql.SQLException when the handle was already cancelled
+	 */
+	public void attach(Statement stmt) throws SQLException {
+		check();
+		stmt.setQueryTimeout(this._timeoutSeconds);
+		this._statement = stmt;
+		// a cancel that raced with the assignment above
+		if (this._cancelled) stmt.cancel();
+	}
+
+	/**
+	 * Method to unregister a statement once it is done.  Statements are
+	 * cached and reused, so the timeout is cleared again.
+	 *
+	 * @param stmt the statement
+	 */
+	public void detach(Statement stmt) throws SQLException {
+		this._statement = null;
+		stmt.setQueryTimeout(0);
+	}
+
+	/**
+	 * Method to count a row read by the current query.
+	 *
+	 * @throws java.sql.SQLException when the handle was cancelled
+	 */
+	public void row() throws SQLException {
+		this._rows++;
+		check();
+	}
+
+	/**
+	 * Method to count the rows of a query that are not read one by one,
+	 * such as a COPY.
+	 *
+	 * @param rows the number of rows
+	 */
+	public void rows(long rows) {
+		this._rows += rows;
+	}
+
+	/**
+	 * Method to cancel the running query, and every query attached later.
+	 */
+	public void cancel() {
+		this._cancelled = true;
+		Statement stmt = this._statement;
+		if (stmt != null) {
+			try {
+				stmt.cancel();
+			} catch (SQLException e) {
+				// the query finished meanwhile, the flag stops the rest
+			}
+		}
+	}
+
+	/**
+	 * @return whether cancel() was called
+	 */
+	public boolean cancelled() {
+		return this._cancelled;
+	}
+
+	/**
+	 * @return the number of rows read so far
+	 */
+	public long rows() {
+		return this._rows;
+	}
+
+	private void check() throws SQLException {
+		if (this._cancelled) throw new SQLException("Query cancelled", QUERY_CANCELED);
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class sends the queries of the background reports to streaming
+ * replicas of the database (-Dmechanicshop.replicas=host:port,...), so the
+ * reports no longer compete with the desks for the primary.  Each replica
+ * has a connection pool of its own; the reports take turns on the replicas
+ * that passed their last health check, which a replica fails when it is
+ * unreachable, no longer in recovery, no longer streaming from the primary
+ * (nothing received for mechanicshop.replicaMaxSilenceSeconds), or replays
+ * more than mechanicshop.replicaMaxLagSeconds behind the primary.  With no healthy
+ * replica the reports run on the primary.  The desk operations, and the
+ * lookups that must see the writes just made, always use the primary.
+ *
+ */
+
+public class Replicas{
+	final static String HOSTS = System.getProperty("mechanicshop.replicas", "");
+	//replication lag above which a replica gets no more reports
+	final static int MAX_LAG_SECONDS = Integer.getInteger("mechanicshop.replicaMaxLagSeconds", 30);
+	//how often the replicas are checked; a check older than two periods does not count
+	final static long CHECK_PERIOD_MS = 5000;
+	//seconds without a message from the primary after which streaming is taken as broken;
+	//an idle primary still sends a keepalive every wal_sender_timeout / 2 (30s by default)
+	final static int MAX_SILENCE_SECONDS = Integer.getInteger("mechanicshop.replicaMaxSilenceSeconds", 60);
+	//whether the replica is still replaying, how far behind what it received it is (none when
+	//it has replayed everything), and whether it still receives: a replica cut off from the
+	//primary has replayed all it received and would otherwise look up to date forever.  The
+	//WAL receiver details need pg_read_all_stats, without it the status reads as NULL.
+	final static String CHECK_SQL =
+		"SELECT pg_is_in_recovery(), CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+		"ELSE coalesce(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()), 0) END, " +
+		"W.status, EXTRACT(EPOCH FROM now() - W.last_msg_receipt_time) " +
+		"FROM (SELECT 1) AS One LEFT JOIN pg_stat_wal_receiver W ON TRUE";
+
+	private static final ThreadLocal<Boolean> READ_ONLY = new ThreadLocal<Boolean>();
+
+	/**
+	 * One replica and the outcome of its last health check.
+	 */
+	static class Replica{
+		final String host;
+		final ConnectionPool pool;
+		volatile boolean healthy = false;
+		volatile double lagSeconds = 0;
+		volatile long checkedAt = 0;
+		volatile String problem = "not checked yet";
+
+		Replica(String host, ConnectionPool pool) {
+			this.host = host;
+			this.pool = pool;
+		}
+
+		boolean usable() {
+			return this.healthy && System.currentTimeMillis() - this.checkedAt < 2 * CHECK_PERIOD_MS;
+		}
+
+		@Override
+		public String toString() {
+			return this.host + (this.healthy ? " (lag " + String.format("%.1f", this.lagSeconds) + "s)" : " (" + this.problem + ")");
+		}
+	}
+
+	private final List<Replica> _replicas = new ArrayList<Replica>();
+	private final AtomicInteger _next = new AtomicInteger();
+	private ScheduledExecutorService _checker = null;
+
+	/**
+	 * @param dbname the database, the same on every replica
+	 * @param props the connection properties of the primary
+	 * @param hosts the replicas, as host:port
+	 * @param poolSize the pool size of each replica
+	 */
+	public Replicas(String dbname, Properties props, String[] hosts, int poolSize) {
+		Properties replicaProps = new Properties();
+		replicaProps.putAll(props);
+		replicaProps.setProperty("readOnly", "true");
+		replicaProps.setProperty("connectTimeout", Long.toString(CHECK_PERIOD_MS / 1000));
+		for (String host : hosts) {
+			if (host.trim().isEmpty()) continue;
+			ConnectionPool pool = new ConnectionPool("jdbc:postgresql://" + host.trim() + "/" + dbname, replicaProps, poolSize);
+			// a replica that went away is given up on quickly, the reports then run on the primary
+			pool.setAcquireTimeout(CHECK_PERIOD_MS);
+			this._replicas.add(new Replica(host.trim(), pool));
+		}
+	}
+
+	/**
+	 * Method to check the replicas now and then every CHECK_PERIOD_MS.
+	 */
+	public void start() {
+		check();
+		this._checker = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "replica-check");
+			t.setDaemon(true);
+			return t;
+		});
+		this._checker.scheduleWithFixedDelay(this::check, CHECK_PERIOD_MS, CHECK_PERIOD_MS, TimeUnit.MILLISECONDS);
+		Session.console().println("Replicas: " + this._replicas);
+	}
+
+	/**
+	 * Method to stop the checks and close the replica pools.
+	 */
+	public void shutdown() {
+		if (this._checker != null) this._checker.shutdownNow();
+		for (Replica replica : this._replicas) replica.pool.close();
+	}
+
+	/**
+	 * Method to send the queries of the calling thread to the replicas.
+	 */
+	public static void bind() {
+		READ_ONLY.set(Boolean.TRUE);
+	}
+
+	/**
+	 * Method to send the queries of the calling thread to the primary again.
+	 */
+	public static void unbind() {
+		READ_ONLY.remove();
+	}
+
+	/**
+	 * Method to choose the pool of the next query of the calling thread.
+	 *
+	 * @param primary the pool of the primary
+	 * @return the pool of the next healthy replica for a thread bound to
+	 *         the replicas, the primary otherwise
+	 */
+	public ConnectionPool route(ConnectionPool primary) {
+		if (READ_ONLY.get() == null) return primary;
+		int n = this._replicas.size();
+		int start = this._next.getAndIncrement();
+		for (int i = 0; i < n; ++i) {
+			Replica replica = this._replicas.get(Math.floorMod(start + i, n));
+			if (replica.usable()) return replica.pool;
+		}
+		return primary;
+	}
+
+	/**
+	 * Method to take a replica out of the rotation until its next
+	 * successful check, after a connection to it could not be borrowed.
+	 *
+	 * @param pool the pool of the replica
+	 * @param e the reason
+	 */
+	public void failed(ConnectionPool pool, SQLException e) {
+		for (Replica replica : this._replicas) {
+			if (replica.pool == pool) down(replica, e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the replicas and their state
+	 */
+	public String stats() {
+		return this._replicas.toString();
+	}
+
+	private void check() {
+		for (Replica replica : this._replicas) {
+			ConnectionPool.PooledConnection conn = null;
+			try {
+				conn = replica.pool.borrow();
+				ResultSet rs = conn.prepare(CHECK_SQL).executeQuery();
+				try {
+					rs.next();
+					boolean inRecovery = rs.getBoolean(1);
+					replica.lagSeconds = rs.getDouble(2);
+					String status = rs.getString(3);
+					double silence = rs.getDouble(4);
+					if (!inRecovery) down(replica, "not a replica, promoted?");
+					else if (!"streaming".equals(status)) down(replica, status == null ? "not streaming from the primary (or no pg_read_all_stats)" : "WAL receiver " + status);
+					else if (rs.wasNull() || silence > MAX_SILENCE_SECONDS) down(replica, String.format("nothing from the primary for %.0fs", silence));
+					else if (replica.lagSeconds > MAX_LAG_SECONDS) down(replica, String.format("%.0fs behind", replica.lagSeconds));
+					else up(replica);
+				} finally {
+					rs.close();
+				}
+			} catch (SQLException e) {
+				if (conn != null) conn.failed(e);
+				down(replica, e.getMessage());
+			} finally {
+				if (conn != null) replica.pool.release(conn);
+				replica.checkedAt = System.currentTimeMillis();
+			}
+		}
+	}
+
+	private void up(Replica replica) {
+		if (!replica.healthy) Session.console().println("Replica " + replica.host + " serves the reports (lag " + String.format("%.1f", replica.lagSeconds) + "s)");
+		replica.healthy = true;
+	}
+
+	private void down(Replica replica, String problem) {
+		replica.problem = problem;
+		if (replica.healthy) Session.console().println("Replica " + replica.host + " left out of the reports: " + problem);
+		replica.healthy = false;
+	}
+}
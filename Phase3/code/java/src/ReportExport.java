@@ -0,0 +1,233 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.zip.GZIPOutputStream;
+
+import org.postgresql.PGConnection;
+
+/**
+ * This class exports a report, or the billing history of a period, to a
+ * CSV or TSV file for the accountants and other tools.  The rows are not
+ * read into Java: the report runs as COPY (query) TO STDOUT and the bytes
+ * the database sends are written to the file as they come, through gzip
+ * when the file name ends in .gz.  Like the background reports, exports
+ * run on the replicas when there are some.
+ *
+ * Desks, remote ones included, only name the file: it is always written
+ * in mechanicshop.exportDir, and names with a path in them are refused.
+ *
+ */
+
+public class ReportExport{
+	//CSV or TSV when the file name says neither, e.g. for stdout
+	final static String FORMAT = System.getProperty("mechanicshop.exportFormat", "csv");
+	final static int BUFFER_SIZE = 64 * 1024;
+	//the only directory exports are written to
+	final static String DIR = System.getProperty("mechanicshop.exportDir", "exports");
+
+	//every closed request with its customer and car, over a date range [from, to)
+	final static String BILLING_HISTORY_SQL =
+		"SELECT CR.date, CR.wid, CR.rid, SR.customer_id, C.fname, C.lname, SR.car_vin, CR.mid, CR.bill, CR.comment " +
+		"FROM Closed_Request CR JOIN Service_Request SR ON SR.rid = CR.rid JOIN Customer C ON C.id = SR.customer_id " +
+		"WHERE CR.date >= ? AND CR.date < ? AND SR.date < ? ORDER BY CR.date, CR.wid";
+
+	final static String[] NAMES = { "ListCustomersWithBillLessThan100", "ListCustomersWithMoreThan20Cars",
+		"ListCarsBefore1995With50000Milles", "ListKCarsWithTheMostServices", "ListCustomersInDescendingOrderOfTheirTotalBill",
+		"BillingHistory" };
+	final static String[] REPORTS = { MechanicShop.BILL_LESS_THAN_100_SQL, MechanicShop.MORE_THAN_20_CARS_SQL,
+		MechanicShop.BEFORE_1995_SQL, MechanicShop.K_MOST_SERVICED_SQL, MechanicShop.TOTAL_BILL_SQL, BILLING_HISTORY_SQL };
+	final static int K_REPORT = 4;
+	final static int BILLING_HISTORY = 6;
+
+	/**
+	 * Method to ask for a report, its parameters and a file, then export
+	 * the report in the background.
+	 *
+	 * @param esql the database the report runs on
+	 * @param reports the background reports of the desk
+	 * @param in the desk input
+	 */
+	public static void run(MechanicShop esql, ReportRunner reports, BufferedReader in) throws IOException {
+		for (int i = 0; i < NAMES.length; ++i)
+			System.out.println("\t" + (i + 1) + ". " + NAMES[i] + (i + 1 == BILLING_HISTORY ? " (every closed request of a period)" : ""));
+		System.out.print("\tChoose a report: ");
+		String choice = in.readLine().trim();
+		int report = MechanicShop.isNumeric(choice) ? (int) Double.parseDouble(choice) : 0;
+		if (report < 1 || report > REPORTS.length) {
+			System.out.println("Your input is invalid!");
+			return;
+		}
+		Object[] params = new Object[0];
+		if (report == K_REPORT) {
+			Integer k = MechanicShop.readK();
+			if (k == null) return;
+			params = new Object[]{ k };
+		} else if (report == BILLING_HISTORY) {
+			System.out.print("\tFirst day in the format YYYY-MM-DD: ");
+			String from = in.readLine().trim();
+			System.out.print("\tDay after the last one in the format YYYY-MM-DD: ");
+			String to = in.readLine().trim();
+			if (!MechanicShop.checkDate(from) || !MechanicShop.checkDate(to)) {
+				System.out.println("\tError: invalid date");
+				return;
+			}
+			params = new Object[]{ Date.valueOf(from), Date.valueOf(to), Date.valueOf(to) };
+		}
+		System.out.print("\tFile (.csv or .tsv, add .gz to compress): ");
+		final String file = in.readLine().trim();
+		if (file.isEmpty() || file.equals("-") || !validName(file)) {
+			System.out.println("\tError: enter a file name without a directory, it is written in " + new File(DIR).getAbsolutePath());
+			return;
+		}
+		final int chosen = report;
+		final Object[] values = params;
+		reports.submit("Export " + NAMES[report - 1] + " to " + file, () -> {
+			long rows = export(esql, chosen, values, file);
+			System.out.println("Exported " + rows + " rows of " + NAMES[chosen - 1] + " to " + file);
+		});
+	}
+
+	/**
+	 * Method to check the arguments of the export mode,
+	 * export &lt;report 1..6&gt; &lt;file|-&gt; [k | from to], as the menu checks
+	 * the same values: k for report 4, two dates for report 6 and nothing
+	 * more for the others.
+	 *
+	 * @param args the command line, the report being args[4]
+	 * @return the parameters of the report, or null when the arguments do not fit it
+	 */
+	static Object[] params(String[] args) {
+		if (args.length < 6 || !args[4].matches("\\d{1,2}")) return null;
+		int report = Integer.parseInt(args[4]);
+		if (report < 1 || report > REPORTS.length) return null;
+		if (report == K_REPORT) {
+			if (args.length != 7 || !args[6].matches("\\d{1,9}")) return null;
+			return new Object[]{ Integer.parseInt(args[6]) };
+		}
+		if (report == BILLING_HISTORY) {
+			if (args.length != 8 || !MechanicShop.checkDate(args[6]) || !MechanicShop.checkDate(args[7])) return null;
+			return new Object[]{ Date.valueOf(args[6]), Date.valueOf(args[7]), Date.valueOf(args[7]) };
+		}
+		return args.length == 6 ? new Object[0] : null;
+	}
+
+	/**
+	 * Method to export a report to a file of mechanicshop.exportDir, or to
+	 * stdout for "-".
+	 *
+	 * @param report the report, 1 to 6
+	 * @param params the parameters of the report query
+	 * @param file the file; TSV when its name ends in .tsv or .tsv.gz, CSV
+	 *        when it ends in .csv or .csv.gz, mechanicshop.exportFormat otherwise
+	 * @return the number of rows exported
+	 * @throws java.sql.SQLException when the report fails
+	 * @throws java.io.IOException when the file cannot be written, or its name has a path
+	 */
+	public static long export(MechanicShop esql, int report, Object[] params, String file) throws SQLException, IOException {
+		if (!file.equals("-") && !validName(file)) throw new IOException("Not a file name: " + file + ", exports are written in " + DIR);
+		String name = file.endsWith(".gz") ? file.substring(0, file.length() - 3) : file;
+		boolean tsv = name.endsWith(".tsv") || (!name.endsWith(".csv") && FORMAT.equals("tsv"));
+		OutputStream out = Session.output();
+		if (!file.equals("-")) {
+			File dir = new File(DIR);
+			if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create the export directory " + dir);
+			out = new FileOutputStream(new File(dir, file));
+		}
+		if (file.endsWith(".gz")) out = new GZIPOutputStream(out, BUFFER_SIZE);
+		out = new BufferedOutputStream(out, BUFFER_SIZE);
+		try {
+			long rows = export(esql, copySql(REPORTS[report - 1], params, tsv), out);
+			out.flush();
+			return rows;
+		} finally {
+			if (file.equals("-")) out.flush();
+			else out.close();
+		}
+	}
+
+	/**
+	 * Method to stream the output of a COPY ... TO STDOUT to a stream.
+	 *
+	 * @return the number of rows copied
+	 */
+	public static long export(MechanicShop esql, final String copySql, final OutputStream out) throws SQLException, IOException {
+		// a background export stops at the next row once cancelled, pgJDBC then cancels the COPY
+		final QueryHandle handle = QueryHandle.current();
+		final OutputStream target = handle == null ? out : new FilterOutputStream(out) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if (handle.cancelled()) throw new IOException("Export cancelled");
+				out.write(b, off, len);
+			}
+		};
+		Replicas.bind();
+		try {
+			return esql.withConnection("ReportExport", conn -> {
+				try {
+					long rows = conn.connection().unwrap(PGConnection.class).getCopyAPI().copyOut(copySql, target);
+					Metrics.fetched(rows, 0);
+					if (handle != null) handle.rows(rows);
+					return rows;
+				} catch (IOException e) {
+					throw new SQLException("Unable to write the export: " + e.getMessage(), e);
+				}
+			});
+		} finally {
+			Replicas.unbind();
+		}
+	}
+
+	/**
+	 * @return whether a name is a plain file name, with no directory in it
+	 */
+	static boolean validName(String file) {
+		return !file.isEmpty() && !file.contains("/") && !file.contains("\\") && !file.contains("..")
+			&& !file.equals(".") && file.equals(new File(file).getName());
+	}
+
+	/**
+	 * Method to wrap a report query into a COPY with a header line.  COPY
+	 * takes no parameters, so they are written into the query as literals;
+	 * only numbers and dates are, which cannot carry quotes.
+	 *
+	 * @param sql the report query, with '?' placeholders
+	 * @param params the numbers and dates bound to the placeholders
+	 * @param tsv whether to write tab separated values rather than CSV
+	 * @return the COPY statement
+	 */
+	static String copySql(String sql, Object[] params, boolean tsv) {
+		StringBuilder query = new StringBuilder();
+		int param = 0;
+		for (int i = 0; i < sql.length(); ++i) {
+			char c = sql.charAt(i);
+			if (c != '?') {
+				query.append(c);
+				continue;
+			}
+			Object value = params[param++];
+			if (value instanceof Integer || value instanceof Long) query.append(value);
+			else if (value instanceof Date) query.append("DATE '").append(value).append('\'');
+			else throw new IllegalArgumentException("Only numbers and dates can be exported as parameters: " + value);
+		}
+		return "COPY (" + query + ") TO STDOUT WITH (FORMAT csv, HEADER" + (tsv ? ", DELIMITER E'\\t'" : "") + ")";
+	}
+}
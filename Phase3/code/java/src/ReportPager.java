@@ -0,0 +1,179 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class pages through the reports of the main menu with keyset (seek)
+ * pagination: every page after the first starts right after the sort key
+ * of the last row shown, plus a unique tiebreaker, so each page costs one
+ * index lookup no matter how deep it is, where OFFSET would rescan every
+ * earlier page.  Going back re-seeks from the key the previous page
+ * started after.
+ *
+ */
+
+public class ReportPager{
+	//rows per page unless the desk asks for another size
+	final static int DEFAULT_PAGE_SIZE = Integer.getInteger("mechanicshop.pageSize", 20);
+
+	/**
+	 * A report that can be paged.  The last keyColumns columns of the
+	 * query are its sort key, the last of them unique.
+	 */
+	static class Report{
+		final String name;
+		final String query;
+		final String key;
+		final boolean descending;
+		final int keyColumns;
+
+		/**
+		 * @param name the menu name of the report
+		 * @param query the report up to and including its WHERE clause
+		 * @param key the sort key columns, comma separated
+		 * @param descending whether the report is sorted from the largest key
+		 */
+		Report(String name, String query, String key, boolean descending) {
+			this.name = name;
+			this.query = query;
+			this.key = key;
+			this.descending = descending;
+			this.keyColumns = key.split(",").length;
+		}
+
+		/**
+		 * @param after whether the page starts after a key, bound as the first parameters
+		 * @return the query of one page, LIMIT bound as the last parameter
+		 */
+		String page(boolean after) {
+			String order = this.descending ? this.key.replace(",", " DESC,") + " DESC" : this.key;
+			String seek = after ? " AND (" + this.key + ") " + (this.descending ? "<" : ">") + " (" + placeholders(this.keyColumns) + ")" : "";
+			return this.query + seek + " ORDER BY " + order + " LIMIT ?";
+		}
+	}
+
+	final static Report[] REPORTS = {
+		new Report("ListCustomersWithBillLessThan100",
+			"SELECT C.date, C.comment, C.bill, C.wid FROM Closed_Request C WHERE C.bill < 100",
+			"C.bill, C.wid", false),
+		new Report("ListCustomersWithMoreThan20Cars",
+			"SELECT C.fname, C.lname, C.id FROM Customer C, ( SELECT customer_id FROM Owns GROUP BY customer_id HAVING COUNT(customer_id) > 20 ) AS O WHERE O.customer_id = C.id",
+			"C.id", false),
+		new Report("ListCarsBefore1995With50000Milles",
+			"SELECT DISTINCT C.make, C.model, C.year FROM Car AS C, Service_Request AS S WHERE C.year < 1995 AND S.car_vin = C.vin AND S.odometer < 50000",
+			"C.make, C.model, C.year", false),
+		new Report("ListKCarsWithTheMostServices",
+			"SELECT C.make, C.model, R.creq, R.car_vin FROM Car AS C, Car_Service_Count AS R WHERE R.car_vin = C.vin",
+			"R.creq, R.car_vin", true),
+		new Report("ListCustomersInDescendingOrderOfTheirTotalBill",
+			"SELECT C.fname, C.lname, A.total, A.customer_id FROM Customer AS C, Customer_Bill_Total AS A WHERE C.id = A.customer_id",
+			"A.total, A.customer_id", true),
+	};
+
+	/**
+	 * Method to ask for a report and a page size, then show the report one
+	 * page at a time until the desk quits.
+	 *
+	 * @param esql the database the report runs on
+	 * @param in the desk input
+	 */
+	public static void browse(MechanicShop esql, BufferedReader in) throws IOException, SQLException {
+		for (int i = 0; i < REPORTS.length; ++i)
+			System.out.println("\t" + (i + 1) + ". " + REPORTS[i].name);
+		System.out.print("\tChoose a report: ");
+		int choice;
+		try {
+			choice = Integer.parseInt(in.readLine().trim());
+		} catch (NumberFormatException e) {
+			choice = 0;
+		}
+		if (choice < 1 || choice > REPORTS.length) {
+			System.out.println("Your input is invalid!");
+			return;
+		}
+		Report report = REPORTS[choice - 1];
+
+		System.out.print("\tRows per page (Enter for " + DEFAULT_PAGE_SIZE + "): ");
+		String input = in.readLine().trim();
+		int pageSize = DEFAULT_PAGE_SIZE;
+		if (!input.isEmpty()) {
+			try {
+				pageSize = Math.max(1, Integer.parseInt(input));
+			} catch (NumberFormatException e) {
+				System.out.println("Using " + pageSize + " rows per page.");
+			}
+		}
+
+		// starts.get(i) is the key page i starts after, null for the first page
+		List<Object[]> starts = new ArrayList<Object[]>();
+		starts.add(null);
+		while (true) {
+			Object[] last = printPage(esql, report, starts.get(starts.size() - 1), pageSize, starts.size());
+			boolean hasNext = last != null;
+			boolean hasPrevious = starts.size() > 1;
+			System.out.print("\t" + (hasNext ? "n = next page, " : "") + (hasPrevious ? "p = previous page, " : "") + "q = back to the menu: ");
+			String command = in.readLine().trim().toLowerCase();
+			if (command.equals("n") && hasNext) starts.add(last);
+			else if (command.equals("p") && hasPrevious) starts.remove(starts.size() - 1);
+			else if (command.equals("q")) return;
+		}
+	}
+
+	/**
+	 * Method to print one page of a report.
+	 *
+	 * @return the key of the last row when another page follows, otherwise null
+	 */
+	private static Object[] printPage(MechanicShop esql, final Report report, Object[] after, final int pageSize, int pageNumber) throws SQLException {
+		Object[] params = new Object[(after != null ? after.length : 0) + 1];
+		if (after != null) System.arraycopy(after, 0, params, 0, after.length);
+		// one row more than the page tells whether there is a next page
+		params[params.length - 1] = pageSize + 1;
+
+		final List<Object[]> keys = new ArrayList<Object[]>();
+		System.out.println("---- " + report.name + ", page " + pageNumber + " ----");
+		esql.executeQueryAndStream(report.page(after != null), rs -> {
+			if (keys.size() == pageSize) {
+				keys.add(null);
+				return;
+			}
+			ResultSetMetaData rsmd = rs.getMetaData();
+			int numCol = rsmd.getColumnCount();
+			StringBuilder line = new StringBuilder();
+			if (keys.isEmpty()) {
+				for (int i = 1; i <= numCol; ++i) line.append(rsmd.getColumnName(i)).append('\t');
+				line.append('\n');
+			}
+			for (int i = 1; i <= numCol; ++i) line.append(rs.getString(i)).append('\t');
+			System.out.println(line);
+			// the key is kept with its SQL type so it binds back as is
+			Object[] key = new Object[report.keyColumns];
+			for (int i = 0; i < key.length; ++i) key[i] = rs.getObject(numCol - key.length + 1 + i);
+			keys.add(key);
+		}, params);
+		if (keys.isEmpty()) System.out.println("No rows.");
+		return keys.size() > pageSize ? keys.get(pageSize - 1) : null;
+	}
+
+	private static String placeholders(int n) {
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i < n; ++i) out.append(i == 0 ? "?" : ", ?");
+		return out.toString();
+	}
+}
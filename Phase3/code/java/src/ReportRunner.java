@@ -0,0 +1,249 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs the reports of one desk in the background so the menu
+ * returns immediately.  Reports of every desk share one pool of worker
+ * threads, each report borrowing its own pooled connection, so reports of
+ * different desks overlap their time in the database.  A report writes
+ * its output to a spool file rather than memory, so a report of any size
+ * costs the same heap.  A finished report is announced to its desk right
+ * away and its spool file is copied to the desk the next time the desk's
+ * menu is drawn.
+ *
+ */
+
+public class ReportRunner{
+	//reports running at the same time, across all desks
+	final static int THREADS = Integer.getInteger("mechanicshop.reportThreads", 4);
+	//time each report query may run before it is cancelled, 0 for no limit
+	final static int TIMEOUT_SECONDS = Integer.getInteger("mechanicshop.reportTimeoutSeconds", 300);
+	final static int SPOOL_BUFFER_SIZE = 64 * 1024;
+
+	private static final AtomicInteger WORKERS = new AtomicInteger();
+	private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(THREADS, r -> {
+		Thread t = new Thread(r, "report-" + WORKERS.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * A report, printing to System.out.
+	 */
+	interface Report {
+		void run () throws Exception;
+	}
+
+	/**
+	 * One submitted report.
+	 */
+	private static class Job{
+		final int id;
+		final String name;
+		final QueryHandle handle = new QueryHandle(TIMEOUT_SECONDS);
+		//the output of the report, once it started
+		volatile File spool = null;
+		final long submitted = System.nanoTime();
+		volatile long finished = 0;
+		volatile String state = "queued";
+		volatile Future<?> future = null;
+
+		Job(int id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+
+		long elapsedMs() {
+			return ((this.finished != 0 ? this.finished : System.nanoTime()) - this.submitted) / 1000000;
+		}
+	}
+
+	private final List<Job> _jobs = new ArrayList<Job>();
+	private final OutputStream _desk;
+	private int _nextId = 1;
+
+	/**
+	 * Creates the report runner of the desk served by the calling thread.
+	 */
+	public ReportRunner() {
+		this._desk = Session.output();
+		// reports print through System.out, which must follow the worker's session
+		Session.install();
+	}
+
+	/**
+	 * Method to start a report in the background.
+	 *
+	 * @param name the name shown for the report
+	 * @param report the report
+	 */
+	public void submit(String name, final Report report) {
+		final Job job;
+		synchronized (this._jobs) {
+			job = new Job(this._nextId++, name);
+			this._jobs.add(job);
+		}
+		job.future = EXECUTOR.submit(() -> run(job, report));
+		System.out.println("Report #" + job.id + " (" + name + ") started, its result is shown when ready.");
+	}
+
+	private void run(Job job, Report report) {
+		job.state = "running";
+		OutputStream output = null;
+		try {
+			job.spool = File.createTempFile("report-" + job.id + "-", ".out");
+			output = new BufferedOutputStream(new FileOutputStream(job.spool), SPOOL_BUFFER_SIZE);
+		} catch (IOException e) {
+			job.state = "failed";
+			job.finished = System.nanoTime();
+			announce("\n[Report #" + job.id + " (" + job.name + ") failed: no spool file, " + e.getMessage() + "]\n");
+			return;
+		}
+		Session.bind(new BufferedReader(new StringReader("")), output);
+		QueryHandle.bind(job.handle);
+		// reports only read, a replica can serve them
+		Replicas.bind();
+		try {
+			Metrics.operation(job.name, () -> report.run());
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+		} finally {
+			Replicas.unbind();
+			QueryHandle.unbind();
+			Session.unbind();
+			try {
+				output.close();
+			} catch (IOException e) {
+				announce("\n[Report #" + job.id + " (" + job.name + "): spool file incomplete, " + e.getMessage() + "]\n");
+			}
+			job.state = job.handle.cancelled() ? "cancelled" : "finished";
+			job.finished = System.nanoTime();
+		}
+		announce("\n[Report #" + job.id + " (" + job.name + ") " + job.state + ": " + job.handle.rows() + " rows in " + job.elapsedMs() + " ms]\n");
+	}
+
+	private void announce(String message) {
+		synchronized (this._desk) {
+			try {
+				this._desk.write(message.getBytes(Charset.defaultCharset()));
+				this._desk.flush();
+			} catch (IOException e) {
+				// the desk went away, its menu is ending too
+			}
+		}
+	}
+
+	/**
+	 * Method to print the output of the finished reports and forget them.
+	 */
+	public void deliver() {
+		List<Job> done = new ArrayList<Job>();
+		synchronized (this._jobs) {
+			for (Iterator<Job> it = this._jobs.iterator(); it.hasNext(); ) {
+				Job job = it.next();
+				if (job.finished != 0) {
+					done.add(job);
+					it.remove();
+				}
+			}
+		}
+		for (Job job : done) {
+			System.out.println("---- Report #" + job.id + " (" + job.name + "), " + job.state + " ----");
+			if (job.spool != null) {
+				try {
+					// copied in small chunks, the report is never in memory as a whole
+					Files.copy(job.spool.toPath(), System.out);
+				} catch (IOException e) {
+					System.out.println("Cannot read the output of report #" + job.id + ": " + e.getMessage());
+				}
+				job.spool.delete();
+			}
+			System.out.println("---- End of report #" + job.id + " ----");
+		}
+	}
+
+	/**
+	 * Method to list the reports still queued or running and cancel one of
+	 * them on request.
+	 *
+	 * @param in the desk input
+	 */
+	public void manage(BufferedReader in) throws IOException {
+		List<Job> pending = new ArrayList<Job>();
+		synchronized (this._jobs) {
+			for (Job job : this._jobs) if (job.finished == 0) pending.add(job);
+		}
+		if (pending.isEmpty()) {
+			System.out.println("No reports running.");
+			return;
+		}
+		for (Job job : pending)
+			System.out.println("\t#" + job.id + "\t" + job.name + "\t" + job.state + "\t" + job.handle.rows() + " rows\t" + job.elapsedMs() + " ms");
+		System.out.print("\tEnter a report number to cancel it, or nothing to go back: ");
+		String input = in.readLine().trim();
+		if (input.isEmpty()) return;
+		for (Job job : pending) {
+			if (Integer.toString(job.id).equals(input)) {
+				cancel(job);
+				System.out.println("Report #" + job.id + " cancelled.");
+				return;
+			}
+		}
+		System.out.println("No running report #" + input);
+	}
+
+	private void cancel(Job job) {
+		job.handle.cancel();
+		// a queued report never starts, a running one is stopped in the database
+		if (job.future.cancel(false)) {
+			job.state = "cancelled";
+			job.finished = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Method to wait for the reports still running and print their output.
+	 * Called when the desk leaves the menu.
+	 */
+	public void close() {
+		List<Job> pending;
+		synchronized (this._jobs) {
+			pending = new ArrayList<Job>(this._jobs);
+		}
+		for (Job job : pending) {
+			try {
+				job.future.get();
+			} catch (Exception e) {
+				// cancelled or failed, its state says which
+			}
+		}
+		deliver();
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * This class holds a query result column by column: integer columns in
+ * int[] or long[] arrays, dates as LocalDate and everything else as
+ * strings, so an id or a bill is read without a String round trip and a
+ * row costs no allocation of its own.  Rows and columns are numbered from
+ * 0.  A ResultTable is read-only once returned, so it can be shared (see
+ * LookupCache).
+ *
+ */
+
+public class ResultTable implements Iterable<ResultTable.Row>{
+	final static byte INT = 'I';
+	final static byte LONG = 'L';
+	final static byte DATE = 'D';
+	final static byte STRING = 'S';
+
+	/**
+	 * One column of the result.
+	 */
+	private static class Column{
+		final String name;
+		final byte type;
+		int[] ints;
+		long[] longs;
+		Object[] objects;
+		final BitSet nulls = new BitSet();
+
+		Column(String name, byte type, int capacity) {
+			this.name = name;
+			this.type = type;
+			if (type == INT) this.ints = new int[capacity];
+			else if (type == LONG) this.longs = new long[capacity];
+			else this.objects = new Object[capacity];
+		}
+
+		void grow(int capacity) {
+			if (this.ints != null) this.ints = Arrays.copyOf(this.ints, capacity);
+			if (this.longs != null) this.longs = Arrays.copyOf(this.longs, capacity);
+			if (this.objects != null) this.objects = Arrays.copyOf(this.objects, capacity);
+		}
+	}
+
+	private final Column[] _columns;
+	private int _size = 0;
+	private long _bytes = 0;
+
+	private ResultTable(Column[] columns) {
+		this._columns = columns;
+	}
+
+	/**
+	 * Method to read the remaining rows of a result set.
+	 *
+	 * @param rs the result set, left open
+	 * @return the rows
+	 * @throws java.sql.SQLException when the rows cannot be read
+	 */
+	static ResultTable read(ResultSet rs) throws SQLException {
+		ResultSetMetaData rsmd = rs.getMetaData();
+		Column[] columns = new Column[rsmd.getColumnCount()];
+		for (int i = 0; i < columns.length; ++i) columns[i] = new Column(rsmd.getColumnName(i + 1), typeOf(rsmd.getColumnType(i + 1)), 8);
+		ResultTable table = new ResultTable(columns);
+		int capacity = 8;
+		while (rs.next()) {
+			int row = table._size;
+			if (row == capacity) {
+				capacity *= 2;
+				for (Column column : columns) column.grow(capacity);
+			}
+			for (int i = 0; i < columns.length; ++i) {
+				Column column = columns[i];
+				if (column.type == INT) {
+					column.ints[row] = rs.getInt(i + 1);
+					table._bytes += 4;
+				} else if (column.type == LONG) {
+					column.longs[row] = rs.getLong(i + 1);
+					table._bytes += 8;
+				} else if (column.type == DATE) {
+					Date date = rs.getDate(i + 1);
+					column.objects[row] = date == null ? null : date.toLocalDate();
+					table._bytes += 4;
+				} else {
+					String value = rs.getString(i + 1);
+					column.objects[row] = value;
+					if (value != null) table._bytes += value.length();
+				}
+				if (rs.wasNull()) column.nulls.set(row);
+			}
+			table._size++;
+		}
+		return table;
+	}
+
+	private static byte typeOf(int sqlType) {
+		switch (sqlType) {
+			case Types.INTEGER: case Types.SMALLINT: case Types.TINYINT: return INT;
+			case Types.BIGINT: return LONG;
+			case Types.DATE: return DATE;
+			default: return STRING;
+		}
+	}
+
+	/**
+	 * @return the number of rows
+	 */
+	public int size() {
+		return this._size;
+	}
+
+	/**
+	 * @return whether there are no rows
+	 */
+	public boolean isEmpty() {
+		return this._size == 0;
+	}
+
+	/**
+	 * @return the number of columns
+	 */
+	public int columnCount() {
+		return this._columns.length;
+	}
+
+	/**
+	 * @return the name of a column
+	 */
+	public String columnName(int column) {
+		return this._columns[column].name;
+	}
+
+	/**
+	 * @return about how many bytes of values were read, for Metrics
+	 */
+	long bytes() {
+		return this._bytes;
+	}
+
+	private Column column(int row, int column) {
+		if (row < 0 || row >= this._size) throw new IndexOutOfBoundsException("row " + row + " of " + this._size);
+		return this._columns[column];
+	}
+
+	/**
+	 * @return whether a value is NULL
+	 */
+	public boolean isNull(int row, int column) {
+		return column(row, column).nulls.get(row);
+	}
+
+	/**
+	 * @return a value as an int, 0 for NULL
+	 */
+	public int getInt(int row, int column) {
+		Column c = column(row, column);
+		if (c.type == INT) return c.ints[row];
+		if (c.type == LONG) return Math.toIntExact(c.longs[row]);
+		if (c.nulls.get(row)) return 0;
+		if (c.type == DATE) throw new IllegalStateException(c.name + " is a date");
+		return Integer.parseInt(((String) c.objects[row]).trim());
+	}
+
+	/**
+	 * @return a value as a long, 0 for NULL
+	 */
+	public long getLong(int row, int column) {
+		Column c = column(row, column);
+		if (c.type == LONG) return c.longs[row];
+		return getInt(row, column);
+	}
+
+	/**
+	 * @return a date value, or null
+	 */
+	public LocalDate getDate(int row, int column) {
+		Column c = column(row, column);
+		if (c.type == DATE) return (LocalDate) c.objects[row];
+		if (c.nulls.get(row)) return null;
+		if (c.type == STRING) return LocalDate.parse(((String) c.objects[row]).trim());
+		throw new IllegalStateException(c.name + " is not a date");
+	}
+
+	/**
+	 * @return a value as text, as rs.getString would return it, or null
+	 */
+	public String getString(int row, int column) {
+		Column c = column(row, column);
+		if (c.nulls.get(row)) return null;
+		if (c.type == INT) return Integer.toString(c.ints[row]);
+		if (c.type == LONG) return Long.toString(c.longs[row]);
+		return c.objects[row].toString();
+	}
+
+	/**
+	 * A view of one row.  The rows handed out by iterator() are one view
+	 * moved along the table, so a view must not be kept past its turn of
+	 * the loop; row(int) returns a view of its own.
+	 */
+	public class Row{
+		int _index;
+
+		Row(int index) {
+			this._index = index;
+		}
+
+		public int index() { return this._index; }
+		public boolean isNull(int column) { return ResultTable.this.isNull(this._index, column); }
+		public int getInt(int column) { return ResultTable.this.getInt(this._index, column); }
+		public long getLong(int column) { return ResultTable.this.getLong(this._index, column); }
+		public LocalDate getDate(int column) { return ResultTable.this.getDate(this._index, column); }
+		public String getString(int column) { return ResultTable.this.getString(this._index, column); }
+	}
+
+	/**
+	 * Method to copy a range of rows into a table of their own, e.g. to
+	 * split one query into the results of several lookups.
+	 *
+	 * @param from the first row
+	 * @param to the row after the last one
+	 * @return the rows
+	 */
+	public ResultTable rows(int from, int to) {
+		if (from < 0 || to > this._size || from > to) throw new IndexOutOfBoundsException("rows " + from + " to " + to + " of " + this._size);
+		Column[] columns = new Column[this._columns.length];
+		for (int i = 0; i < columns.length; ++i) {
+			Column c = this._columns[i];
+			Column copy = columns[i] = new Column(c.name, c.type, 0);
+			if (c.ints != null) copy.ints = Arrays.copyOfRange(c.ints, from, to);
+			if (c.longs != null) copy.longs = Arrays.copyOfRange(c.longs, from, to);
+			if (c.objects != null) copy.objects = Arrays.copyOfRange(c.objects, from, to);
+			copy.nulls.or(c.nulls.get(from, to));
+		}
+		ResultTable table = new ResultTable(columns);
+		table._size = to - from;
+		table._bytes = this._size == 0 ? 0 : this._bytes * table._size / this._size;
+		return table;
+	}
+
+	/**
+	 * @return a view of a row
+	 */
+	public Row row(int row) {
+		if (row < 0 || row >= this._size) throw new IndexOutOfBoundsException("row " + row + " of " + this._size);
+		return new Row(row);
+	}
+
+	@Override
+	public Iterator<Row> iterator() {
+		final Row cursor = new Row(-1);
+		return new Iterator<Row>() {
+			public boolean hasNext() {
+				return cursor._index + 1 < ResultTable.this._size;
+			}
+
+			public Row next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				cursor._index++;
+				return cursor;
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i < this._columns.length; ++i) out.append(this._columns[i].name).append('\t');
+		for (int r = 0; r < this._size; ++r) {
+			out.append('\n');
+			for (int i = 0; i < this._columns.length; ++i) out.append(getString(r, i)).append('\t');
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,493 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class runs the desk operations from a script instead of the menu,
+ * for back-office jobs such as the nightly dealer syncs.  The script has
+ * one JSON object per line, for example:
+ *
+ *   {"op": "add-customer", "fname": "Ann", "lname": "Lee", "phone": "(951)555-0100", "address": "1 Main St"}
+ *   {"op": "add-mechanic", "fname": "Bo", "lname": "Kim", "experience": 12}
+ *   {"op": "add-car", "vin": "1HGCM82633A0043", "make": "Honda", "model": "Accord", "year": 2003}
+ *   {"op": "open-request", "customer": 12, "vin": "1HGCM82633A0043", "date": "2017-03-04", "odometer": 42000, "complain": "Noise"}
+ *   {"op": "close-request", "rid": 30002, "mechanic": 7, "date": "2017-03-05", "comment": "Fixed", "bill": 120}
+ *   {"op": "report", "report": 4, "k": 10}
+ *
+ * The writes are not sent one at a time: the commands read so far, up to
+ * mechanicshop.scriptBatch of them, go to the database together in one
+ * transaction, the rows of each kind in one JDBC batch or one statement,
+ * and are committed once.  A batch ends early when the input has nothing
+ * more to read for now or a report comes, so a job feeding the commands
+ * through a pipe still gets its results promptly.  When a batch fails, it
+ * is retried command by command behind savepoints, so only the failing
+ * commands are rejected.
+ *
+ * Each command gets one JSON line of result, in the order of the script:
+ * {"line": 3, "ok": true, "id": 501} with the id of the new customer,
+ * mechanic, request or closing, or {"line": 3, "error": "..."}.  A report
+ * first writes one {"line": 6, "row": [...]} per row.  Reports run on the
+ * replicas, if any, as long as the script has not written anything; after
+ * that they run on the primary so they see the script's own writes.
+ *
+ */
+
+public class ScriptRunner{
+	//commands written in one transaction at most
+	final static int BATCH = Integer.getInteger("mechanicshop.scriptBatch", 1000);
+	final static int BUFFER_SIZE = 1 << 16;
+
+	//the write commands, in the order their rows are sent within a batch
+	final static String[] WRITES = { "add-customer", "add-mechanic", "add-car", "open-request", "close-request" };
+	//INSERTs of the first three, with the table each one changes
+	final static String CUSTOMER_SQL = "INSERT INTO Customer(fname, lname, phone, address) Values(?, ?, ?, ?)";
+	final static String MECHANIC_SQL = "INSERT INTO Mechanic(fname, lname, experience) Values(?, ?, ?)";
+	final static String[] TABLES = { "Customer", "Mechanic", "Car" };
+	final static String[] REPORTS = { MechanicShop.BILL_LESS_THAN_100_SQL, MechanicShop.MORE_THAN_20_CARS_SQL,
+		MechanicShop.BEFORE_1995_SQL, MechanicShop.K_MOST_SERVICED_SQL, MechanicShop.TOTAL_BILL_SQL };
+
+	/**
+	 * One line of the script.
+	 */
+	static class Command{
+		final int line;
+		final String op;
+		//the values of the statement of the command
+		Object[] values = null;
+		//the id of the new row, once written
+		Object id = null;
+		String error = null;
+
+		Command(int line, String op) {
+			this.line = line;
+			this.op = op;
+		}
+
+		Date date() {
+			return this.op.equals("open-request") || this.op.equals("close-request") ? (Date) this.values[IntakeJournal.DATE_VALUE] : null;
+		}
+	}
+
+	private final MechanicShop _esql;
+	private final Writer _out;
+	private long _ok = 0;
+	private long _rejected = 0;
+	//whether the script has written anything, its reports must then see it
+	private boolean _written = false;
+
+	private ScriptRunner(MechanicShop esql, Writer out) {
+		this._esql = esql;
+		this._out = out;
+	}
+
+	/**
+	 * Method to run the commands of a script.
+	 *
+	 * @param esql the database the commands run against
+	 * @param input the script, one JSON object per line
+	 * @param output receives one JSON line of result per command
+	 * @return the number of rejected commands
+	 * @throws java.io.IOException when the script cannot be read or the results written
+	 * @throws java.sql.SQLException when the database fails as a whole
+	 */
+	public static long run(MechanicShop esql, Reader input, OutputStream output) throws IOException, SQLException {
+		BufferedReader in = new BufferedReader(input, BUFFER_SIZE);
+		ScriptRunner runner = new ScriptRunner(esql, new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), BUFFER_SIZE));
+		long start = System.nanoTime();
+		List<Command> batch = new ArrayList<Command>();
+		int lineNumber = 0;
+		String line;
+		while ((line = in.readLine()) != null) {
+			++lineNumber;
+			if (line.trim().isEmpty()) continue;
+			Command command = parse(esql, lineNumber, line);
+			if (command.op.equals("report") && command.error == null) {
+				runner.write(batch);
+				runner.report(command);
+			} else {
+				batch.add(command);
+			}
+			// nothing more to read for now: answer what was read so far
+			if (batch.size() >= BATCH || !in.ready()) runner.write(batch);
+		}
+		runner.write(batch);
+		runner._out.flush();
+		System.out.println(String.format("Script: %d commands done, %d rejected in %.1f s",
+			runner._ok, runner._rejected, (System.nanoTime() - start) / 1e9));
+		return runner._rejected;
+	}
+
+	//the command of a line, with its values checked like the menu checks them
+	private static Command parse(MechanicShop esql, int line, String json) {
+		Map<String, Object> fields;
+		try {
+			fields = parseObject(json);
+		} catch (IllegalArgumentException e) {
+			Command command = new Command(line, "");
+			command.error = "Not a JSON object: " + e.getMessage();
+			return command;
+		}
+		Command command = new Command(line, String.valueOf(fields.get("op")));
+		try {
+			switch (command.op) {
+			case "add-customer":
+				command.values = new Object[]{ string(fields, "fname", 32), string(fields, "lname", 32), string(fields, "phone", 13), string(fields, "address", 256) };
+				break;
+			case "add-mechanic":
+				int experience = integer(fields, "experience");
+				if (experience < 0 || experience >= 100) throw new IllegalArgumentException("experience must be between 0 and 99");
+				command.values = new Object[]{ string(fields, "fname", 32), string(fields, "lname", 32), experience };
+				break;
+			case "add-car":
+				String vin = string(fields, "vin", 16);
+				if (vin.isEmpty()) throw new IllegalArgumentException("vin must be 1 to 16 characters");
+				int year = integer(fields, "year");
+				if (year < 1970) throw new IllegalArgumentException("year must be 1970 or later");
+				command.values = new Object[]{ vin, string(fields, "make", 32), string(fields, "model", 32), year };
+				break;
+			case "open-request":
+				command.values = new Object[]{ null, integer(fields, "customer"), string(fields, "vin", 16), date(fields), integer(fields, "odometer"), string(fields, "complain", Integer.MAX_VALUE) };
+				command.values[0] = command.id = esql.requestIds().next();
+				break;
+			case "close-request":
+				command.values = new Object[]{ null, integer(fields, "rid"), integer(fields, "mechanic"), date(fields), string(fields, "comment", Integer.MAX_VALUE), integer(fields, "bill") };
+				command.values[0] = command.id = esql.closingIds().next();
+				break;
+			case "report":
+				int report = integer(fields, "report");
+				if (report < 1 || report > REPORTS.length) throw new IllegalArgumentException("report must be between 1 and " + REPORTS.length);
+				command.values = report == 4 ? new Object[]{ report, integer(fields, "k") } : new Object[]{ report };
+				break;
+			default:
+				throw new IllegalArgumentException("unknown op " + command.op + ", expected one of add-customer, add-mechanic, add-car, open-request, close-request or report");
+			}
+		} catch (IllegalArgumentException | SQLException e) {
+			command.error = e.getMessage();
+		}
+		return command;
+	}
+
+	private static String string(Map<String, Object> fields, String name, int maxLength) {
+		Object value = fields.get(name);
+		if (value == null) throw new IllegalArgumentException("missing " + name);
+		String s = value.toString().trim();
+		if (s.length() > maxLength) throw new IllegalArgumentException(name + " is limited to " + maxLength + " characters");
+		return s;
+	}
+
+	private static int integer(Map<String, Object> fields, String name) {
+		String s = string(fields, name, Integer.MAX_VALUE);
+		if (!MechanicShop.isNumeric(s)) throw new IllegalArgumentException(name + " is not a number: " + s);
+		return Integer.parseInt(s);
+	}
+
+	private static Date date(Map<String, Object> fields) {
+		String s = string(fields, "date", 10);
+		if (!MechanicShop.checkDate(s)) throw new IllegalArgumentException("invalid date " + s + ", expected YYYY-MM-DD");
+		return Date.valueOf(s);
+	}
+
+	/**
+	 * Method to write the commands read so far and answer them, creating
+	 * the months of their dates when needed.
+	 */
+	private void write(final List<Command> batch) throws IOException, SQLException {
+		if (batch.isEmpty()) return;
+		final List<Command> writes = new ArrayList<Command>();
+		Date first = null;
+		Date last = null;
+		for (Command command : batch) {
+			if (command.error != null) continue;
+			writes.add(command);
+			Date date = command.date();
+			if (date == null) continue;
+			if (first == null || date.before(first)) first = date;
+			if (last == null || date.after(last)) last = date;
+		}
+		if (!writes.isEmpty()) {
+			this._written = true;
+			this._esql.partitions().insert(Partitions.TABLES, first, last,
+				() -> this._esql.withConnection("ScriptRunner", conn -> writeBatch(conn, writes)));
+			for (int i = 0; i < TABLES.length; ++i) {
+				for (Command command : writes) {
+					if (command.op.equals(WRITES[i])) {
+						this._esql.invalidate(TABLES[i]);
+						break;
+					}
+				}
+			}
+		}
+		for (Command command : batch) result(command);
+		batch.clear();
+		this._out.flush();
+	}
+
+	//sends the rows of each kind together and commits them once, or finds the rejected ones
+	private int writeBatch(ConnectionPool.PooledConnection conn, List<Command> writes) throws SQLException {
+		Connection c = conn.connection();
+		c.setAutoCommit(false);
+		try {
+			int written = 0;
+			try {
+				for (String op : WRITES) written += send(conn, op, writes);
+			} catch (SQLException e) {
+				c.rollback();
+				if (Partitions.missingPartition(e)) throw e;
+				written = 0;
+				for (Command command : writes) {
+					Savepoint sp = c.setSavepoint();
+					try {
+						written += send(conn, command.op, Collections.singletonList(command));
+						c.releaseSavepoint(sp);
+					} catch (SQLException reject) {
+						c.rollback(sp);
+						if (Partitions.missingPartition(reject)) throw reject;
+						// a batch of one row still reports its error as the next one
+						command.error = (reject.getNextException() != null ? reject.getNextException() : reject).getMessage();
+					}
+				}
+			}
+			c.commit();
+			Metrics.fetched(written, 0);
+			return written;
+		} finally {
+			if (!c.getAutoCommit()) {
+				c.rollback();
+				c.setAutoCommit(true);
+			}
+		}
+	}
+
+	//sends the rows of the commands of one kind
+	private static int send(ConnectionPool.PooledConnection conn, String op, List<Command> commands) throws SQLException {
+		List<Command> rows = new ArrayList<Command>();
+		for (Command command : commands) if (command.op.equals(op)) rows.add(command);
+		if (rows.isEmpty()) return 0;
+		if (op.equals("open-request") || op.equals("close-request")) {
+			Object[][] values = new Object[rows.size()][];
+			for (int i = 0; i < values.length; ++i) values[i] = rows.get(i).values;
+			return IntakeJournal.run(conn, op.equals("open-request") ? IntakeJournal.OPEN : IntakeJournal.CLOSE, values);
+		}
+		if (op.equals("add-car")) {
+			PreparedStatement stmt = conn.prepare(MechanicShop.ADD_CAR_SQL);
+			for (Command command : rows) {
+				bind(stmt, command.values);
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+			return rows.size();
+		}
+		// the ids come from the sequence, read them back in the order of the rows
+		PreparedStatement stmt = conn.connection().prepareStatement(op.equals("add-customer") ? CUSTOMER_SQL : MECHANIC_SQL, new String[]{ "id" });
+		try {
+			for (Command command : rows) {
+				bind(stmt, command.values);
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+			ResultSet keys = stmt.getGeneratedKeys();
+			try {
+				for (Command command : rows) {
+					keys.next();
+					command.id = keys.getInt(1);
+				}
+			} finally {
+				keys.close();
+			}
+			return rows.size();
+		} finally {
+			stmt.close();
+		}
+	}
+
+	private static void bind(PreparedStatement stmt, Object[] values) throws SQLException {
+		stmt.clearParameters();
+		for (int i = 0; i < values.length; ++i)
+			stmt.setObject(i + 1, values[i]);
+	}
+
+	//streams the rows of a report, on the replicas like the background reports until the
+	//script has written something: a replica may not have replayed the commit yet
+	private void report(Command command) throws IOException {
+		int report = (Integer) command.values[0];
+		Object[] params = report == 4 ? new Object[]{ command.values[1] } : new Object[0];
+		final StringBuilder row = new StringBuilder();
+		if (!this._written) Replicas.bind();
+		try {
+			int rowCount = this._esql.executeQueryAndStream(REPORTS[report - 1], rs -> {
+				ResultSetMetaData rsmd = rs.getMetaData();
+				row.setLength(0);
+				row.append("{\"line\": ").append(command.line).append(", \"row\": [");
+				for (int i = 1; i <= rsmd.getColumnCount(); ++i) {
+					if (i > 1) row.append(", ");
+					quote(row, rs.getString(i));
+				}
+				row.append("]}\n");
+				try {
+					this._out.write(row.toString());
+				} catch (IOException e) {
+					throw new SQLException("Cannot write the report: " + e.getMessage(), e);
+				}
+			}, params);
+			this._out.write("{\"line\": " + command.line + ", \"ok\": true, \"rows\": " + rowCount + "}\n");
+			++this._ok;
+		} catch (SQLException e) {
+			command.error = e.getMessage();
+			result(command);
+		} finally {
+			Replicas.unbind();
+		}
+	}
+
+	private void result(Command command) throws IOException {
+		StringBuilder result = new StringBuilder("{\"line\": ").append(command.line);
+		if (command.error != null) {
+			result.append(", \"error\": ");
+			quote(result, command.error);
+			++this._rejected;
+		} else {
+			result.append(", \"ok\": true");
+			if (command.id != null) result.append(", \"id\": ").append(command.id);
+			++this._ok;
+		}
+		this._out.write(result.append("}\n").toString());
+	}
+
+	private static void quote(StringBuilder out, String s) {
+		if (s == null) {
+			out.append("null");
+			return;
+		}
+		out.append('"');
+		for (int i = 0; i < s.length(); ++i) {
+			char ch = s.charAt(i);
+			switch (ch) {
+			case '"': out.append("\\\""); break;
+			case '\\': out.append("\\\\"); break;
+			case '\n': out.append("\\n"); break;
+			case '\r': out.append("\\r"); break;
+			case '\t': out.append("\\t"); break;
+			default:
+				if (ch < 0x20) out.append(String.format("\\u%04x", (int) ch));
+				else out.append(ch);
+			}
+		}
+		out.append('"');
+	}
+
+	/**
+	 * Method to parse a flat JSON object: strings, numbers, true, false and
+	 * null values, numbers kept as their text.
+	 *
+	 * @param json the object
+	 * @return the fields of the object
+	 * @throws java.lang.IllegalArgumentException when it is not such an object
+	 */
+	static Map<String, Object> parseObject(String json) {
+		Map<String, Object> fields = new LinkedHashMap<String, Object>();
+		int[] at = { skip(json, 0) };
+		expect(json, at, '{');
+		if (peek(json, at) == '}') {
+			++at[0];
+		} else {
+			while (true) {
+				String name = parseString(json, at);
+				expect(json, at, ':');
+				fields.put(name, parseValue(json, at));
+				char next = peek(json, at);
+				++at[0];
+				if (next == '}') break;
+				if (next != ',') throw new IllegalArgumentException("expected , or } at " + (at[0] - 1));
+			}
+		}
+		if (skip(json, at[0]) != json.length()) throw new IllegalArgumentException("text after the object at " + at[0]);
+		return fields;
+	}
+
+	private static Object parseValue(String json, int[] at) {
+		char c = peek(json, at);
+		if (c == '"') return parseString(json, at);
+		int start = at[0];
+		while (at[0] < json.length() && ",}] \t".indexOf(json.charAt(at[0])) < 0) ++at[0];
+		String literal = json.substring(start, at[0]);
+		if (literal.equals("null")) return null;
+		if (literal.equals("true") || literal.equals("false")) return literal;
+		if (!literal.matches("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?")) throw new IllegalArgumentException("unexpected value " + literal + " at " + start);
+		return literal;
+	}
+
+	private static String parseString(String json, int[] at) {
+		expect(json, at, '"');
+		StringBuilder s = new StringBuilder();
+		while (true) {
+			if (at[0] >= json.length()) throw new IllegalArgumentException("unterminated string");
+			char c = json.charAt(at[0]++);
+			if (c == '"') return s.toString();
+			if (c != '\\') {
+				s.append(c);
+				continue;
+			}
+			if (at[0] >= json.length()) throw new IllegalArgumentException("unterminated string");
+			char e = json.charAt(at[0]++);
+			switch (e) {
+			case 'b': s.append('\b'); break;
+			case 'f': s.append('\f'); break;
+			case 'n': s.append('\n'); break;
+			case 'r': s.append('\r'); break;
+			case 't': s.append('\t'); break;
+			case 'u':
+				if (at[0] + 4 > json.length()) throw new IllegalArgumentException("bad \\u escape");
+				s.append((char) Integer.parseInt(json.substring(at[0], at[0] + 4), 16));
+				at[0] += 4;
+				break;
+			default: s.append(e);
+			}
+		}
+	}
+
+	private static void expect(String json, int[] at, char c) {
+		if (peek(json, at) != c) throw new IllegalArgumentException("expected " + c + " at " + at[0]);
+		++at[0];
+	}
+
+	//the next character that is not white space, 0 at the end
+	private static char peek(String json, int[] at) {
+		at[0] = skip(json, at[0]);
+		return at[0] < json.length() ? json.charAt(at[0]) : 0;
+	}
+
+	private static int skip(String json, int at) {
+		while (at < json.length() && Character.isWhitespace(json.charAt(at))) ++at;
+		return at;
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class finds customers by an approximate name or part of a phone
+ * number, and service requests by the words of their complaint or of the
+ * comment they were closed with.  Every search is served by an index (see
+ * the Search indexes of IndexAdvisor), ranked, and limited to the best
+ * matches, so the desk never has to list a whole table to find a row.
+ *
+ */
+
+public class Search{
+	//rows shown per search
+	final static int LIMIT = Integer.getInteger("mechanicshop.searchLimit", 20);
+
+	//indexed expressions; the queries must use them verbatim for the indexes to apply
+	final static String NAME = "CAST(fname AS TEXT) || ' ' || CAST(lname AS TEXT)";
+	final static String PHONE = "CAST(phone AS TEXT)";
+	final static String COMPLAIN = "to_tsvector('english', coalesce(complain, ''))";
+	final static String COMMENT = "to_tsvector('english', coalesce(comment, ''))";
+	final static String QUERY = "websearch_to_tsquery('english', ?)";
+
+	//customers whose name contains something close to the input, best first
+	final static String CUSTOMERS_BY_NAME_SQL = "SELECT id, fname, lname, phone, round(CAST(word_similarity(?, " + NAME + ") AS numeric), 2) AS score FROM Customer WHERE ? <% (" + NAME + ") ORDER BY score DESC, id LIMIT ?";
+	final static String CUSTOMERS_BY_PHONE_SQL = "SELECT id, fname, lname, phone FROM Customer WHERE " + PHONE + " LIKE ? ORDER BY id LIMIT ?";
+
+	/**
+	 * Method to ask what to search for and print the best matches.
+	 *
+	 * @param esql the database to search
+	 * @param in the desk input
+	 */
+	public static void run(MechanicShop esql, BufferedReader in) throws IOException, SQLException {
+		System.out.println("\t1. Customers by name or phone");
+		System.out.println("\t2. Service requests by complaint or comment");
+		System.out.print("\tChoose a search: ");
+		String choice = in.readLine().trim();
+		if (choice.equals("1")) {
+			System.out.print("\tName or part of a phone number: ");
+			String text = in.readLine().trim();
+			if (text.isEmpty()) return;
+			int rowCount = customers(esql, text);
+			System.out.println("Matching customers: " + rowCount);
+		} else if (choice.equals("2")) {
+			System.out.print("\tWords to look for (\"quoted phrase\", -excluded, or): ");
+			String words = in.readLine().trim();
+			if (words.isEmpty()) return;
+			System.out.print("\tMake (Enter for any): ");
+			String make = in.readLine().trim();
+			Date from = readDate(in, "\tFirst day in the format YYYY-MM-DD (Enter for any): ");
+			Date to = readDate(in, "\tDay after the last one in the format YYYY-MM-DD (Enter for any): ");
+			int rowCount = requests(esql, words, make, from, to);
+			System.out.println("Matching service requests: " + rowCount);
+		} else {
+			System.out.println("Your input is invalid!");
+		}
+	}
+
+	/**
+	 * Method to print the customers matching a name, or a phone number when
+	 * the text is made of digits and phone punctuation.
+	 *
+	 * @return the number of customers printed
+	 */
+	public static int customers(MechanicShop esql, String text) throws SQLException {
+		if (text.matches("[0-9()\\- ]+")) {
+			String digits = text.replace("%", "").replace("_", "");
+			return esql.executeQueryAndPrintResult(CUSTOMERS_BY_PHONE_SQL, "%" + digits + "%", LIMIT);
+		}
+		return esql.executeQueryAndPrintResult(CUSTOMERS_BY_NAME_SQL, text, text, LIMIT);
+	}
+
+	/**
+	 * Method to print the service requests whose complaint or closing
+	 * comment matches some words, most relevant first.
+	 *
+	 * @param words the words, in web search syntax
+	 * @param make the start of the car make, or empty for any
+	 * @param from the first request day, or null
+	 * @param to the day after the last request day, or null
+	 * @return the number of requests printed
+	 */
+	public static int requests(MechanicShop esql, String words, String make, Date from, Date to) throws SQLException {
+		// parameters in the order of the text: the two ranks, the hits, the filters
+		List<Object> params = new ArrayList<Object>();
+		params.add(words);
+		params.add(words);
+		// requests matching on their complaint, or on the comment they were closed with
+		StringBuilder hits = new StringBuilder("SELECT rid FROM Service_Request WHERE " + COMPLAIN + " @@ " + QUERY);
+		params.add(words);
+		if (from != null) { hits.append(" AND date >= ?"); params.add(from); }
+		if (to != null) { hits.append(" AND date < ?"); params.add(to); }
+		hits.append(" UNION SELECT rid FROM Closed_Request WHERE " + COMMENT + " @@ " + QUERY);
+		params.add(words);
+		// a request is closed no earlier than it is made
+		if (from != null) { hits.append(" AND date >= ?"); params.add(from); }
+
+		StringBuilder query = new StringBuilder(
+			"SELECT S.rid, S.date, Car.make, Car.model, S.complain, CR.comment, " +
+			"round(CAST(ts_rank(" + COMPLAIN + ", " + QUERY + ") + coalesce(ts_rank(" + COMMENT + ", " + QUERY + "), 0) AS numeric), 3) AS rank " +
+			"FROM (" + hits + ") H JOIN Service_Request S ON S.rid = H.rid JOIN Car ON Car.vin = S.car_vin LEFT JOIN Closed_Request CR ON CR.rid = S.rid WHERE TRUE");
+		if (!make.isEmpty()) { query.append(" AND Car.make ILIKE ?"); params.add(make.replace("%", "").replace("_", "") + "%"); }
+		if (from != null) { query.append(" AND S.date >= ?"); params.add(from); }
+		if (to != null) { query.append(" AND S.date < ?"); params.add(to); }
+		query.append(" ORDER BY rank DESC, S.rid LIMIT ?");
+		params.add(LIMIT);
+		return esql.executeQueryAndPrintResult(query.toString(), params.toArray());
+	}
+
+	private static Date readDate(BufferedReader in, String prompt) throws IOException {
+		while (true) {
+			System.out.print(prompt);
+			String date = in.readLine().trim();
+			if (date.isEmpty()) return null;
+			if (MechanicShop.checkDate(date)) return Date.valueOf(date);
+			System.out.println("\tError: invalid date " + date);
+		}
+	}
+}
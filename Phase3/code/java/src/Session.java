@@ -0,0 +1,155 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+
+/**
+ * This class routes the console of the menu to the session running on the
+ * current thread.  In the default single-user mode every thread talks to
+ * stdin/stdout; in server mode each desk connection binds its own reader
+ * and output stream to the thread that serves it.
+ *
+ */
+
+public class Session{
+	private static final BufferedReader STDIN = new BufferedReader(new InputStreamReader(System.in));
+	private static final PrintStream STDOUT = System.out;
+	private static final PrintStream STDERR = System.err;
+	//where the background messages go, stdout unless stdout carries results
+	private static volatile PrintStream _console = STDOUT;
+
+	private static final ThreadLocal<BufferedReader> IN = new ThreadLocal<BufferedReader>();
+	private static final ThreadLocal<OutputStream> OUT = new ThreadLocal<OutputStream>();
+	private static boolean _installed = false;
+
+	/**
+	 * A reader whose readLine() reads from the session of the calling
+	 * thread.  End of input is reported as an EOFException so the menu
+	 * can tell a closed desk apart from an invalid entry.
+	 */
+	private static class SessionReader extends BufferedReader{
+		SessionReader() {
+			super(new StringReader(""));
+		}
+
+		@Override
+		public String readLine() throws IOException {
+			BufferedReader in = IN.get();
+			long start = System.nanoTime();
+			String line = (in != null ? in : STDIN).readLine();
+			Metrics.input(System.nanoTime() - start);
+			if (line == null) throw new EOFException("End of input");
+			return line;
+		}
+	}
+
+	/**
+	 * An output stream that writes to the session of the calling thread,
+	 * or to the original stdout when no session is bound.
+	 */
+	private static class SessionOutputStream extends OutputStream{
+		private final PrintStream _fallback;
+
+		SessionOutputStream(PrintStream fallback) {
+			this._fallback = fallback;
+		}
+
+		private OutputStream target() {
+			OutputStream out = OUT.get();
+			return out != null ? out : this._fallback;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			target().write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			target().write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			target().flush();
+		}
+	}
+
+	/**
+	 * @return the reader shared by all menu operations
+	 */
+	public static BufferedReader reader() {
+		return new SessionReader();
+	}
+
+	/**
+	 * @return the stdout of the process, regardless of the bound session,
+	 *         or stderr when stdout carries the results of a script or export
+	 */
+	public static PrintStream console() {
+		return _console;
+	}
+
+	/**
+	 * Method to send the background messages to stderr, keeping stdout
+	 * for results read by another program.
+	 */
+	public static void consoleToStderr() {
+		_console = STDERR;
+	}
+
+	/**
+	 * @return the output of the session bound to the calling thread, or the
+	 *         stdout of the process
+	 */
+	public static OutputStream output() {
+		OutputStream out = OUT.get();
+		return out != null ? out : STDOUT;
+	}
+
+	/**
+	 * Method to route System.out and System.err through the session of the
+	 * calling thread.  Later calls have no effect.
+	 */
+	public static synchronized void install() {
+		if (_installed) return;
+		_installed = true;
+		System.setOut(new PrintStream(new SessionOutputStream(STDOUT), true));
+		System.setErr(new PrintStream(new SessionOutputStream(STDERR), true));
+	}
+
+	/**
+	 * Method to bind a desk connection to the calling thread.
+	 *
+	 * @param in the desk input
+	 * @param out the desk output
+	 */
+	public static void bind(BufferedReader in, OutputStream out) {
+		IN.set(in);
+		OUT.set(out);
+	}
+
+	/**
+	 * Method to detach the desk connection from the calling thread.
+	 */
+	public static void unbind() {
+		IN.remove();
+		OUT.remove();
+	}
+}
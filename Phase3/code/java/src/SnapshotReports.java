@@ -0,0 +1,359 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * This class answers the five reports of queries.sql from a snapshot
+ * written by the snapshot mode of MechanicShop, without a database
+ * connection.  Tables are scanned in parallel chunks, each chunk filling
+ * its own primitive accumulator, and the accumulators are merged in chunk
+ * order, so row order matches a sequential scan.
+ *
+ */
+
+public class SnapshotReports{
+	//rows per parallel scan chunk
+	final static int CHUNK_ROWS = 64 * 1024;
+
+	/**
+	 * The scan of one chunk of rows into an accumulator.
+	 */
+	interface ChunkScan<A> {
+		void scan (A acc, int from, int to);
+	}
+
+	/**
+	 * Method to scan rows [0, rows) in parallel chunks.
+	 *
+	 * @param rows the number of rows
+	 * @param init creates the accumulator of a chunk
+	 * @param scan scans a chunk into its accumulator
+	 * @param merge merges the accumulator of a later chunk into an earlier one
+	 * @return the merged accumulator
+	 */
+	static <A> A scan(int rows, Supplier<A> init, ChunkScan<A> scan, BinaryOperator<A> merge) {
+		int chunks = (rows + CHUNK_ROWS - 1) / CHUNK_ROWS;
+		return IntStream.range(0, chunks).parallel().mapToObj(c -> {
+			A acc = init.get();
+			scan.scan(acc, c * CHUNK_ROWS, Math.min(rows, (c + 1) * CHUNK_ROWS));
+			return acc;
+		}).reduce(merge).orElseGet(init);
+	}
+
+	/**
+	 * Growable list of row numbers.
+	 */
+	private static class Rows{
+		int[] rows = new int[16];
+		int size = 0;
+
+		void add(int row) {
+			if (this.size == this.rows.length) this.rows = Arrays.copyOf(this.rows, this.size * 2);
+			this.rows[this.size++] = row;
+		}
+
+		Rows addAll(Rows other) {
+			for (int i = 0; i < other.size; ++i) add(other.rows[i]);
+			return this;
+		}
+	}
+
+	private final File _dir;
+	private final PrintWriter _out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024));
+
+	public SnapshotReports(File dir) throws IOException {
+		// follows the snapshot link once, every table then comes from the same generation
+		this._dir = dir.getCanonicalFile();
+	}
+
+	private ColumnarSnapshot.Table open(String table) throws Exception {
+		return ColumnarSnapshot.open(this._dir, table);
+	}
+
+	private void header(String... columns) {
+		for (String column : columns) this._out.print(column + "\t");
+		this._out.println();
+	}
+
+	private void row(Object... values) {
+		for (Object value : values) this._out.print(value + "\t");
+		this._out.println();
+	}
+
+	/**
+	 * Method to list the closed requests with a bill under 100.
+	 *
+	 * @return the number of rows
+	 */
+	public int billLessThan100() throws Exception {
+		final ColumnarSnapshot.Table closed = open("Closed_Request");
+		final IntBuffer bill = closed.ints("bill");
+		Rows rows = scan(closed.rows, Rows::new, (acc, from, to) -> {
+			for (int r = from; r < to; ++r) if (bill.get(r) < 100) acc.add(r);
+		}, Rows::addAll);
+
+		header("date", "comment", "bill");
+		for (int i = 0; i < rows.size; ++i) {
+			int r = rows.rows[i];
+			row(closed.date("date", r), closed.string("comment", r), bill.get(r));
+		}
+		return rows.size;
+	}
+
+	/**
+	 * Method to list the customers owning more than 20 cars.
+	 *
+	 * @return the number of rows
+	 */
+	public int moreThan20Cars() throws Exception {
+		final ColumnarSnapshot.Table owns = open("Owns");
+		final IntBuffer owner = owns.ints("customer_id");
+		IntIntHashMap cars = scan(owns.rows, () -> new IntIntHashMap(1024), (acc, from, to) -> {
+			for (int r = from; r < to; ++r) acc.add(owner.get(r), 1);
+		}, (a, b) -> {
+			for (int id : b.keys()) a.add(id, b.get(id));
+			return a;
+		});
+
+		ColumnarSnapshot.Table customer = open("Customer");
+		IntBuffer id = customer.ints("id");
+		header("fname", "lname");
+		int count = 0;
+		for (int r = 0; r < customer.rows; ++r) {
+			if (cars.get(id.get(r)) > 20) {
+				row(customer.string("fname", r), customer.string("lname", r));
+				++count;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Method to list the distinct cars made before 1995 with a service
+	 * request under 50000 miles.
+	 *
+	 * @return the number of rows
+	 */
+	public int before1995() throws Exception {
+		final ColumnarSnapshot.Table car = open("Car");
+		final ColumnarSnapshot.Table request = open("Service_Request");
+		IntBuffer year = car.ints("year");
+		// car row of each vin code of Service_Request, -1 for vins of no old car
+		final int[] oldCar = carRows(car, request.dictionary("car_vin"));
+		for (int code = 0; code < oldCar.length; ++code)
+			if (oldCar[code] >= 0 && year.get(oldCar[code]) >= 1995) oldCar[code] = -1;
+
+		final IntBuffer vin = request.ints("car_vin");
+		final IntBuffer odometer = request.ints("odometer");
+		BitSet cars = scan(request.rows, BitSet::new, (acc, from, to) -> {
+			for (int r = from; r < to; ++r) {
+				int code = vin.get(r);
+				if (code >= 0 && oldCar[code] >= 0 && odometer.get(r) < 50000) acc.set(oldCar[code]);
+			}
+		}, (a, b) -> {
+			a.or(b);
+			return a;
+		});
+
+		TreeSet<String> distinct = new TreeSet<String>();
+		for (int r = cars.nextSetBit(0); r >= 0; r = cars.nextSetBit(r + 1))
+			distinct.add(car.string("make", r) + "\t" + car.string("model", r) + "\t" + year.get(r));
+		header("make", "model", "year");
+		for (String line : distinct) row(line);
+		return distinct.size();
+	}
+
+	/**
+	 * Method to list the k cars with the most service requests.
+	 *
+	 * @param k the number of cars
+	 * @return the number of rows
+	 */
+	public int kMostServiced(int k) throws Exception {
+		final ColumnarSnapshot.Table request = open("Service_Request");
+		final String[] vins = request.dictionary("car_vin");
+		final IntBuffer vin = request.ints("car_vin");
+		final int[] requests = scan(request.rows, () -> new int[vins.length], (acc, from, to) -> {
+			for (int r = from; r < to; ++r) {
+				int code = vin.get(r);
+				if (code >= 0) acc[code]++;
+			}
+		}, (a, b) -> {
+			for (int i = 0; i < a.length; ++i) a[i] += b[i];
+			return a;
+		});
+
+		ColumnarSnapshot.Table car = open("Car");
+		int[] carRow = carRows(car, vins);
+		int[] top = top(requests, carRow, k);
+
+		header("make", "model", "creq");
+		for (int code : top) row(car.string("make", carRow[code]), car.string("model", carRow[code]), requests[code]);
+		return top.length;
+	}
+
+	/**
+	 * Method to select the k vin codes with the most requests, of cars that
+	 * exist, through a heap of at most k codes with the last ranked one at
+	 * its root, so that no more than k codes are ever ordered.
+	 *
+	 * @param requests the number of requests of each vin code
+	 * @param carRow the Car row of each vin code, -1 for none
+	 * @param k the number of codes
+	 * @return the selected codes, the most requested first
+	 */
+	static int[] top(int[] requests, int[] carRow, int k) {
+		int[] heap = new int[Math.max(0, Math.min(k, requests.length))];
+		int size = 0;
+		for (int code = 0; code < requests.length && heap.length > 0; ++code) {
+			if (carRow[code] < 0 || requests[code] == 0) continue;
+			if (size < heap.length) {
+				// sifts the new code up past the codes ranked before it
+				int i = size++;
+				while (i > 0 && ranksBefore(requests, heap[(i - 1) / 2], code)) {
+					heap[i] = heap[(i - 1) / 2];
+					i = (i - 1) / 2;
+				}
+				heap[i] = code;
+			} else if (ranksBefore(requests, code, heap[0])) {
+				siftDown(requests, heap, size, code);
+			}
+		}
+		// the root is the last ranked code, so the heap empties from the end of the ranking
+		int[] top = new int[size];
+		for (int i = size - 1; i >= 0; --i) {
+			top[i] = heap[0];
+			siftDown(requests, heap, i, heap[i]);
+		}
+		return top;
+	}
+
+	//puts a code at the root of a heap of size codes and sifts it down past the codes ranked after it
+	private static void siftDown(int[] requests, int[] heap, int size, int code) {
+		int i = 0;
+		while (2 * i + 1 < size) {
+			int child = 2 * i + 1;
+			if (child + 1 < size && ranksBefore(requests, heap[child], heap[child + 1])) ++child;
+			if (!ranksBefore(requests, code, heap[child])) break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = code;
+	}
+
+	//more requests first, then the lower code, the order of a stable sort by requests
+	private static boolean ranksBefore(int[] requests, int a, int b) {
+		return requests[a] != requests[b] ? requests[a] > requests[b] : a < b;
+	}
+
+	/**
+	 * Method to list the customers in descending order of their total bill.
+	 *
+	 * @return the number of rows
+	 */
+	public int totalBill() throws Exception {
+		ColumnarSnapshot.Table customer = open("Customer");
+		IntBuffer id = customer.ints("id");
+		// dense index of each customer, so the sums fit in a long[]
+		final IntIntHashMap index = new IntIntHashMap(customer.rows);
+		for (int r = 0; r < customer.rows; ++r) index.put(id.get(r), r);
+
+		ColumnarSnapshot.Table request = open("Service_Request");
+		IntBuffer rid = request.ints("rid");
+		IntBuffer requester = request.ints("customer_id");
+		final IntIntHashMap customerOf = new IntIntHashMap(request.rows);
+		for (int r = 0; r < request.rows; ++r) customerOf.put(rid.get(r), index.get(requester.get(r)));
+
+		ColumnarSnapshot.Table closed = open("Closed_Request");
+		final IntBuffer closedRid = closed.ints("rid");
+		final IntBuffer bill = closed.ints("bill");
+		final int customers = customer.rows;
+		// one more slot counts the closed requests of each customer
+		final long[] totals = scan(closed.rows, () -> new long[customers * 2], (acc, from, to) -> {
+			for (int r = from; r < to; ++r) {
+				int c = customerOf.get(closedRid.get(r));
+				if (c < 0) continue;
+				acc[2 * c] += bill.get(r);
+				acc[2 * c + 1]++;
+			}
+		}, (a, b) -> {
+			for (int i = 0; i < a.length; ++i) a[i] += b[i];
+			return a;
+		});
+
+		List<Integer> billed = new ArrayList<Integer>();
+		for (int c = 0; c < customers; ++c) if (totals[2 * c + 1] > 0) billed.add(c);
+		billed.sort((a, b) -> Long.compare(totals[2 * b], totals[2 * a]));
+		header("fname", "lname", "total");
+		for (int c : billed) row(customer.string("fname", c), customer.string("lname", c), totals[2 * c]);
+		return billed.size();
+	}
+
+	//the Car row of each vin of a dictionary, -1 for vins without a car
+	private static int[] carRows(ColumnarSnapshot.Table car, String[] vins) {
+		String[] carVins = car.dictionary("vin");
+		IntBuffer vin = car.ints("vin");
+		Map<String, Integer> rowOf = new HashMap<String, Integer>();
+		for (int r = 0; r < car.rows; ++r) rowOf.put(carVins[vin.get(r)], r);
+		int[] rows = new int[vins.length];
+		for (int code = 0; code < vins.length; ++code) {
+			Integer r = rowOf.get(vins[code]);
+			rows[code] = r == null ? -1 : r;
+		}
+		return rows;
+	}
+
+	/**
+	 * Runs one report over a snapshot directory.
+	 *
+	 * @param args the snapshot directory, the report number (1-5) and k for report 4
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2 || (args[1].equals("4") && args.length < 3)) {
+			System.err.println("Usage: java " + SnapshotReports.class.getName() + " <snapshot directory> <report 1-5> [k]");
+			return;
+		}
+		SnapshotReports reports = new SnapshotReports(new File(args[0]));
+		long start = System.nanoTime();
+		String summary;
+		switch (args[1]) {
+			case "1": summary = "Customers with bills less than 100: " + reports.billLessThan100(); break;
+			case "2": summary = "Customers with more than 20 cars: " + reports.moreThan20Cars(); break;
+			case "3": summary = "Cars before 1995 with 50,000 miles: " + reports.before1995(); break;
+			case "4": summary = "Cars with most services: " + reports.kMostServiced(Integer.parseInt(args[2])); break;
+			case "5": summary = "Descending order of customers total bill: " + reports.totalBill(); break;
+			default:
+				System.err.println("Unknown report " + args[1]);
+				return;
+		}
+		reports._out.println(summary);
+		reports._out.println(String.format("(from snapshot %s in %.1f ms)", args[0], (System.nanoTime() - start) / 1e6));
+		reports._out.flush();
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps a bounded, least-recently-used cache of prepared
+ * statements for one physical connection.  Statements are keyed by their
+ * SQL template (the query text with '?' placeholders), so repeated point
+ * lookups reuse the same statement and, once the driver's prepare threshold
+ * is reached, the same server-side plan.
+ *
+ */
+
+public class StatementCache{
+	//default number of statements kept open per connection
+	final static int DEFAULT_CAPACITY = 64;
+
+	private final Connection _connection;
+	private final int _capacity;
+	private final LinkedHashMap<String, PreparedStatement> _statements;
+
+	public StatementCache(Connection connection, int capacity) {
+		this._connection = connection;
+		this._capacity = capacity;
+		// access ordered so the eldest entry is the least recently used one
+		this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() <= StatementCache.this._capacity) return false;
+				closeQuietly(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Method to fetch the prepared statement for a SQL template, preparing
+	 * it on the connection the first time the template is seen.
+	 *
+	 * @param sql the SQL template
+	 * @return an open prepared statement for the template
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	public synchronized PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement stmt = this._statements.get(sql);
+		if (stmt == null || stmt.isClosed()) {
+			stmt = this._connection.prepareStatement(sql);
+			this._statements.put(sql, stmt);
+		}
+		return stmt;
+	}
+
+	/**
+	 * Method to drop a single template from the cache, e.g. after the
+	 * statement failed and its server-side plan may be stale.
+	 *
+	 * @param sql the SQL template
+	 */
+	public synchronized void invalidate(String sql) {
+		closeQuietly(this._statements.remove(sql));
+	}
+
+	/**
+	 * @return the number of statements currently cached
+	 */
+	public synchronized int size() {
+		return this._statements.size();
+	}
+
+	/**
+	 * Method to close every cached statement.
+	 */
+	public synchronized void close() {
+		Iterator<PreparedStatement> it = this._statements.values().iterator();
+		while (it.hasNext()) {
+			closeQuietly(it.next());
+			it.remove();
+		}
+	}
+
+	private static void closeQuietly(PreparedStatement stmt) {
+		if (stmt == null) return;
+		try {
+			stmt.close();
+		} catch (SQLException e) {
+			// ignored.
+		}
+	}
+}
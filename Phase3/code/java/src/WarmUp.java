@@ -0,0 +1,211 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.lang.management.ManagementFactory;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class takes the first-use costs off the first desk operations of
+ * the day.  At startup, in parallel, it opens every pooled connection and
+ * prepares the statements of the desk operations and reports on each of
+ * them, loads the Mechanic and customer/car lookups into the lookup
+ * cache, and reads the hot relations into the database buffer cache with
+ * pg_prewarm.  mechanicshop.warmUp chooses whether startup waits for it
+ * ("on", the default), lets it run in the "background", or skips it
+ * ("off").
+ *
+ */
+
+public class WarmUp{
+	final static String MODE = System.getProperty("mechanicshop.warmUp", "on");
+	//months of Service_Request and Closed_Request partitions read into the buffer cache
+	final static int MONTHS = Integer.getInteger("mechanicshop.warmUpMonths", 3);
+	//longest time startup waits for the warm-up
+	final static long TIMEOUT_SECONDS = 120;
+	//lookups preloaded at most, leaving room in the cache for the others
+	final static int MAX_LOOKUPS = LookupCache.DEFAULT_MAX_ENTRIES / 2;
+
+	/**
+	 * Statements prepared on every connection, with parameters matching
+	 * no row for the lookups, which are run once so their plans are made,
+	 * and null for the writes and reports, which are only parsed.
+	 */
+	final static Object[][] STATEMENTS = {
+		{ MechanicShop.ADD_CUSTOMER_SQL, null },
+		{ MechanicShop.ADD_MECHANIC_SQL, null },
+		{ MechanicShop.ADD_CAR_SQL, null },
+		{ MechanicShop.CUSTOMERS_BY_LNAME_SQL, new Object[]{ "" } },
+		{ MechanicShop.CUSTOMER_BY_ID_SQL, new Object[]{ -1 } },
+		{ MechanicShop.OPEN_REQUEST_SQL, null },
+		{ MechanicShop.REQUEST_TO_CLOSE_SQL, new Object[]{ -1 } },
+		{ MechanicShop.MECHANIC_BY_ID_SQL, new Object[]{ -1 } },
+		{ MechanicShop.CLOSE_REQUEST_SQL, null },
+		{ MechanicShop.BILL_LESS_THAN_100_SQL, null },
+		{ MechanicShop.MORE_THAN_20_CARS_SQL, null },
+		{ MechanicShop.BEFORE_1995_SQL, null },
+		{ MechanicShop.K_MOST_SERVICED_SQL, null },
+		{ MechanicShop.TOTAL_BILL_SQL, null },
+	};
+
+	//the dimension tables, the report aggregates and the work queue, with their indexes
+	final static String HOT_TABLES = "customer,mechanic,car,owns,car_service_count,customer_bill_total,open_request";
+	final static String PREWARM_SQL =
+		"WITH hot AS (SELECT R.oid FROM pg_class R WHERE R.relkind = 'r' AND R.relnamespace = CAST(current_schema() AS regnamespace) " +
+		"AND (R.relname = ANY (string_to_array(?, ',')) OR (R.relispartition AND R.relname ~ '_[0-9]{4}_[0-9]{2}$' AND right(R.relname, 7) >= ?))) " +
+		"SELECT CAST(C.oid AS regclass), pg_prewarm(C.oid) FROM pg_class C WHERE C.oid IN (SELECT oid FROM hot UNION SELECT indexrelid FROM pg_index WHERE indrelid IN (SELECT oid FROM hot))";
+
+	private final MechanicShop _esql;
+	private final AtomicInteger _connections = new AtomicInteger();
+	private final AtomicInteger _statements = new AtomicInteger();
+	private final AtomicInteger _lookups = new AtomicInteger();
+	private final AtomicInteger _relations = new AtomicInteger();
+	private final AtomicLong _blocks = new AtomicLong();
+
+	private WarmUp(MechanicShop esql) {
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to warm up a newly started instance as mechanicshop.warmUp
+	 * says.
+	 *
+	 * @param esql the instance
+	 */
+	public static void run(MechanicShop esql) {
+		if (MODE.equals("off")) return;
+		final WarmUp warmUp = new WarmUp(esql);
+		if (MODE.equals("background")) {
+			Thread t = new Thread(warmUp::warm, "warm-up");
+			t.setDaemon(true);
+			t.start();
+		} else {
+			warmUp.warm();
+		}
+	}
+
+	private void warm() {
+		long start = System.nanoTime();
+		int connections = this._esql.pool().maxSize();
+		ExecutorService executor = Executors.newFixedThreadPool(connections + 2, r -> {
+			Thread t = new Thread(r, "warm-up-worker");
+			t.setDaemon(true);
+			return t;
+		});
+		for (int i = 0; i < connections; ++i) executor.submit(this::prepareConnection);
+		executor.submit(() -> task("lookups", this::preloadLookups));
+		executor.submit(() -> task("pg_prewarm", this::prewarm));
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS)) System.out.println("Warm-up still running after " + TIMEOUT_SECONDS + "s, going on.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		System.out.println(String.format(
+			"Warm-up: %d connections opened with %d statements prepared, %d lookups cached, %d relations prewarmed (%d blocks) in %d ms; started in %d ms",
+			this._connections.get(), this._statements.get(), this._lookups.get(), this._relations.get(), this._blocks.get(),
+			(System.nanoTime() - start) / 1000000, ManagementFactory.getRuntimeMXBean().getUptime()));
+	}
+
+	/**
+	 * Work that reports its own failure, so the others go on.
+	 */
+	interface Task {
+		void run () throws SQLException;
+	}
+
+	private void task(String name, Task task) {
+		try {
+			task.run();
+		} catch (SQLException e) {
+			System.out.println("Warm-up of " + name + " failed: " + e.getMessage());
+		}
+	}
+
+	//opens one more connection of the pool and hands it back as soon as its statements are
+	//prepared, so desks already running (warmUp=background) never wait for the warm-up
+	private void prepareConnection() {
+		ConnectionPool.PooledConnection conn = null;
+		try {
+			conn = this._esql.pool().open();
+			// the pool is full, the desks opened the rest
+			if (conn == null) return;
+			this._connections.incrementAndGet();
+			for (Object[] statement : STATEMENTS) {
+				String sql = (String) statement[0];
+				Object[] params = (Object[]) statement[1];
+				if (params == null) {
+					// parse and describe, without running the write or the report
+					conn.prepare(sql).getParameterMetaData();
+				} else {
+					PreparedStatement stmt = MechanicShop.prepare(conn, sql, params);
+					stmt.executeQuery().close();
+				}
+				this._statements.incrementAndGet();
+			}
+		} catch (SQLException e) {
+			if (conn != null) conn.failed(e);
+			System.out.println("Warm-up of a connection failed: " + e.getMessage());
+		} finally {
+			this._esql.pool().release(conn);
+		}
+	}
+
+	//caches the mechanic by id and customer by last name lookups of the desk operations
+	private void preloadLookups() throws SQLException {
+		LookupCache cache = this._esql.lookups();
+		long version = cache.version();
+		ResultTable mechanics = this._esql.executeQueryAndReturnResult("SELECT * FROM Mechanic ORDER BY id LIMIT ?", MAX_LOOKUPS);
+		for (int r = 0; r < mechanics.size() && this._lookups.get() < MAX_LOOKUPS; ++r) {
+			cache.put(MechanicShop.MECHANIC_TABLES, LookupCache.key(MechanicShop.MECHANIC_BY_ID_SQL, mechanics.getInt(r, 0)), mechanics.rows(r, r + 1), version);
+			this._lookups.incrementAndGet();
+		}
+
+		// one query for the first last names that still fit, in the order of each name's own lookup
+		int names = MAX_LOOKUPS - this._lookups.get();
+		if (names <= 0) return;
+		ResultTable customers = this._esql.executeQueryAndReturnResult(MechanicShop.CUSTOMERS_WITH_CARS_SQL
+			+ "C.lname IN (SELECT DISTINCT lname FROM Customer ORDER BY lname LIMIT ?) ORDER BY C.lname, C.id, Car.vin", names);
+		int first = 0;
+		for (int r = 1; r <= customers.size() && this._lookups.get() < MAX_LOOKUPS; ++r) {
+			if (r < customers.size() && customers.getString(r, 2).equals(customers.getString(first, 2))) continue;
+			// desks type the name without the CHAR padding
+			String lname = customers.getString(first, 2).replaceAll("\\s+$", "");
+			cache.put(MechanicShop.CUSTOMERS_WITH_CARS_TABLES, LookupCache.key(MechanicShop.CUSTOMERS_BY_LNAME_SQL, lname), customers.rows(first, r), version);
+			this._lookups.incrementAndGet();
+			first = r;
+		}
+	}
+
+	//reads the dimension tables, the aggregates and the recent months into the buffer cache
+	private void prewarm() throws SQLException {
+		String since = LocalDate.now().minusMonths(MONTHS).format(DateTimeFormatter.ofPattern("yyyy_MM"));
+		try {
+			this._esql.executeQueryAndStream(PREWARM_SQL, rs -> {
+				this._relations.incrementAndGet();
+				this._blocks.addAndGet(rs.getLong(2));
+			}, HOT_TABLES, since);
+		} catch (SQLException e) {
+			// undefined_function
+			if (!"42883".equals(e.getSQLState())) throw e;
+			System.out.println("pg_prewarm is not installed, run \"migrate\" mode to install it.");
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * This class lets a mechanic claim the open service requests one at a time
+ * (see the WORK QUEUE section of create.sql).  A claim takes the oldest
+ * unclaimed request the mechanic is experienced enough for, skipping the
+ * ones other mechanics are claiming at that moment instead of waiting for
+ * them, so any number of mechanics can claim at once.  A claimed request is
+ * closed through CloseServiceRequest, by the mechanic who claimed it only.
+ *
+ */
+
+public class WorkQueue{
+	//whether mechanics only get the requests their experience is enough for
+	final static boolean MATCH_EXPERIENCE = Boolean.parseBoolean(System.getProperty("mechanicshop.matchExperience", "true"));
+	//complexity bound of a claim made without matching, above any experience
+	final static int ANY_COMPLEXITY = 100;
+
+	//highest complexity of a request, see requestComplexity in create.sql
+	final static int MAX_COMPLEXITY = 10;
+	//one statement: the oldest unclaimed request within the bound, locked and claimed.  The
+	//oldest request of each complexity up to the bound is one probe of open_request_unclaimed
+	//(complexity, date, rid), and the claim takes the oldest of those, so older requests
+	//above the bound are never walked through.
+	final static String CLAIM_SQL =
+		"UPDATE Open_Request O SET claimed_by = ?, claimed_at = now() WHERE O.rid = " +
+		"(SELECT H.rid FROM generate_series(0, least(?, " + MAX_COMPLEXITY + ")) AS B(complexity), LATERAL " +
+		"(SELECT rid, date FROM Open_Request WHERE claimed_by IS NULL AND complexity = B.complexity ORDER BY date, rid LIMIT 1 FOR UPDATE SKIP LOCKED) AS H " +
+		"ORDER BY H.date, H.rid LIMIT 1) " +
+		"RETURNING O.rid, O.date";
+	final static String REQUEST_SQL = "SELECT S.rid, S.date, Car.make, Car.model, S.odometer, S.complain FROM Service_Request S JOIN Car ON Car.vin = S.car_vin WHERE S.rid = ? AND S.date = ?";
+	final static String CLAIMED_SQL =
+		"SELECT S.rid, S.date, Car.make, Car.model, S.odometer, S.complain, O.claimed_at FROM Open_Request O " +
+		"JOIN Service_Request S ON S.rid = O.rid AND S.date = O.date JOIN Car ON Car.vin = S.car_vin WHERE O.claimed_by = ? ORDER BY O.claimed_at";
+	final static String RELEASE_SQL = "UPDATE Open_Request SET claimed_by = NULL, claimed_at = NULL WHERE rid = ? AND claimed_by = ?";
+	final static String WAITING_SQL = "SELECT count(*) FROM Open_Request WHERE claimed_by IS NULL";
+
+	/**
+	 * Method to ask for a mechanic and claim, list or release their
+	 * requests.
+	 *
+	 * @param esql the database of the queue
+	 * @param in the desk input
+	 */
+	public static void run(MechanicShop esql, BufferedReader in) throws IOException, SQLException {
+		System.out.print("Enter Employee ID: ");
+		String empid = in.readLine().trim();
+		if (!MechanicShop.isNumeric(empid)) {
+			System.out.println("\tError: Not a number.");
+			return;
+		}
+		int mechanic = Integer.parseInt(empid);
+		ResultTable found = esql.executeCachedQuery(MechanicShop.MECHANIC_TABLES, MechanicShop.MECHANIC_BY_ID_SQL, mechanic);
+		if (found.isEmpty()) {
+			System.out.println("Employee ID: " + empid + " does not exist.");
+			return;
+		}
+		System.out.println("\t1. Claim the next open request");
+		System.out.println("\t2. List my claimed requests");
+		System.out.println("\t3. Release a claimed request");
+		System.out.print("\tChoose: ");
+		String choice = in.readLine().trim();
+		if (choice.equals("1")) {
+			int experience = found.getInt(0, 3);
+			ResultTable claimed = claim(esql, mechanic, MATCH_EXPERIENCE ? experience : ANY_COMPLEXITY);
+			if (claimed.isEmpty()) {
+				System.out.println("No open request to claim" + (MATCH_EXPERIENCE ? " for " + experience + " years of experience." : "."));
+				return;
+			}
+			esql.executeQueryAndPrintResult(REQUEST_SQL, claimed.getInt(0, 0), java.sql.Date.valueOf(claimed.getDate(0, 1)));
+			System.out.println("Service request " + claimed.getInt(0, 0) + " is yours, close it with CloseServiceRequest.");
+		} else if (choice.equals("2")) {
+			int rowCount = esql.executeQueryAndPrintResult(CLAIMED_SQL, mechanic);
+			System.out.println("Claimed requests: " + rowCount + ", waiting requests: " + esql.executeQueryAndReturnResult(WAITING_SQL).getLong(0, 0));
+		} else if (choice.equals("3")) {
+			System.out.print("Enter Service Request Number: ");
+			String srNum = in.readLine().trim();
+			if (!MechanicShop.isNumeric(srNum)) {
+				System.out.println("\tError: Not a number.");
+				return;
+			}
+			if (release(esql, Integer.parseInt(srNum), mechanic)) System.out.println("Service request " + srNum + " is back in the queue.");
+			else System.out.println("Service request " + srNum + " is not claimed by you.");
+		} else {
+			System.out.println("Your input is invalid!");
+		}
+	}
+
+	/**
+	 * Method to claim the oldest unclaimed request up to a complexity.
+	 *
+	 * @param mechanic the claiming mechanic
+	 * @param complexity the highest complexity the mechanic takes
+	 * @return the rid and date of the claimed request, or no row when none was left
+	 */
+	public static ResultTable claim(MechanicShop esql, int mechanic, int complexity) throws SQLException {
+		return esql.executeQueryAndReturnResult(CLAIM_SQL, mechanic, complexity);
+	}
+
+	/**
+	 * Method to put a request claimed by a mechanic back in the queue.
+	 *
+	 * @return whether the mechanic had claimed it
+	 */
+	public static boolean release(MechanicShop esql, int rid, int mechanic) throws SQLException {
+		return esql.executeUpdate(RELEASE_SQL, rid, mechanic) > 0;
+	}
+}
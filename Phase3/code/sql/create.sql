@@ -4,6 +4,9 @@ DROP TABLE IF EXISTS Car CASCADE;--OK
 DROP TABLE IF EXISTS Owns CASCADE;--OK
 DROP TABLE IF EXISTS Service_Request CASCADE;--OK
 DROP TABLE IF EXISTS Closed_Request CASCADE;--OK
+DROP TABLE IF EXISTS Car_Service_Count CASCADE;
+DROP TABLE IF EXISTS Customer_Bill_Total CASCADE;
+DROP TABLE IF EXISTS Open_Request CASCADE;
 
 
 -------------
@@ -61,6 +64,8 @@ CREATE TABLE Owns
 	FOREIGN KEY (car_vin) REFERENCES Car(vin)
 );
 
+--Service_Request and Closed_Request are partitioned by month of their date
+--(see PARTITIONS below), so the key of a partition must include the date.
 CREATE TABLE Service_Request
 (
 	rid INTEGER NOT NULL,
@@ -69,11 +74,15 @@ CREATE TABLE Service_Request
 	date DATE NOT NULL,
 	odometer _PINTEGER NOT NULL,
 	complain TEXT,
-	PRIMARY KEY (rid),
+	PRIMARY KEY (rid, date),
 	FOREIGN KEY (customer_id) REFERENCES Customer(id),
 	FOREIGN KEY (car_vin) REFERENCES Car(vin)
-);
+) PARTITION BY RANGE (date);
 
+--A unique index of a partitioned table must include the partition key, so
+--rid cannot be a foreign key target.  The createRID trigger keeps rid unique
+--across the months, and the checkRequest and checkClosings triggers enforce
+--the reference from Closed_Request instead.
 CREATE TABLE Closed_Request
 (
 	wid INTEGER NOT NULL,
@@ -82,10 +91,48 @@ CREATE TABLE Closed_Request
 	date DATE NOT NULL,
 	comment TEXT,
 	bill _PINTEGER NOT NULL,
-	PRIMARY KEY (wid),
-	FOREIGN KEY (rid) REFERENCES Service_Request(rid),
+	PRIMARY KEY (wid, date),
 	FOREIGN KEY (mid) REFERENCES Mechanic(id)
-);
+) PARTITION BY RANGE (date);
+
+----------------
+---PARTITIONS---
+----------------
+--One partition per month, named <table>_<yyyy>_<mm>.  The application
+--creates the coming months ahead (see Partitions.java) and detaches old
+--months for archival with DETACH PARTITION ... CONCURRENTLY, which is why
+--there is no default partition.
+
+CREATE LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION createMonthPartitions(parent TEXT, first DATE, last DATE)
+RETURNS INTEGER AS $createMonthPartitions$
+DECLARE
+	month DATE := date_trunc('month', first);
+	partition TEXT;
+	created INTEGER := 0;
+BEGIN
+WHILE month <= last LOOP
+	partition := lower(parent) || '_' || to_char(month, 'YYYY_MM');
+	IF to_regclass(partition) IS NULL THEN
+		BEGIN
+			EXECUTE format('CREATE TABLE %I PARTITION OF %I FOR VALUES FROM (%L) TO (%L)',
+				partition, lower(parent), month, (month + interval '1 month')::date);
+			created := created + 1;
+		EXCEPTION WHEN duplicate_table THEN
+			--created meanwhile by another application instance
+		END;
+	END IF;
+	month := (month + interval '1 month')::date;
+END LOOP;
+RETURN created;
+END;
+$createMonthPartitions$
+LANGUAGE plpgsql VOLATILE;
+
+--The months of the shipped data
+SELECT createMonthPartitions('Service_Request', '2016-01-01', '2017-12-31');
+SELECT createMonthPartitions('Closed_Request', '2016-01-01', '2017-12-31');
 
 ----------------------------
 -- INSERT DATA STATEMENTS --
@@ -149,19 +196,52 @@ COPY Closed_Request (
 FROM 'closed_request.csv'
 WITH DELIMITER ',';
 
+-------------
+---INDEXES---
+-------------
+--Built after the data is loaded.  Existing databases get the same indexes
+--from the application's migrate mode (see IndexAdvisor.java).
+--InsertServiceRequest lookups by last name, and by first and last name
+CREATE INDEX customer_lname_fname ON Customer (lname, fname);
+--InsertServiceRequest lists the cars of a customer
+CREATE INDEX owns_customer_id ON Owns (customer_id, car_vin);
+--ListCarsBefore1995With50000Milles: old cars, then their requests under 50000 miles
+CREATE INDEX car_year ON Car (year);
+CREATE INDEX service_request_car_vin_odometer ON Service_Request (car_vin, odometer);
+CREATE INDEX service_request_customer_id ON Service_Request (customer_id);
+--CloseServiceRequest and the bill totals join closed requests to their request
+CREATE INDEX closed_request_rid ON Closed_Request (rid);
+--ListCustomersWithBillLessThan100 only ever reads the cheap bills, paged by (bill, wid)
+CREATE INDEX closed_request_bill_wid_under_100 ON Closed_Request (bill, wid) WHERE bill < 100;
+--Search: fuzzy customer names and phones, and the words of complaints and comments
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+CREATE INDEX customer_name_trgm ON Customer USING gin ((CAST(fname AS TEXT) || ' ' || CAST(lname AS TEXT)) gin_trgm_ops);
+CREATE INDEX customer_phone_trgm ON Customer USING gin (CAST(phone AS TEXT) gin_trgm_ops);
+CREATE INDEX service_request_complain_fts ON Service_Request USING gin (to_tsvector('english', coalesce(complain, '')));
+CREATE INDEX closed_request_comment_fts ON Closed_Request USING gin (to_tsvector('english', coalesce(comment, '')));
+--Reads the hot relations into the buffer cache at application startup (see WarmUp.java)
+CREATE EXTENSION IF NOT EXISTS pg_prewarm;
+
 
 CREATE SEQUENCE rid_gen START WITH 30001;
 CREATE SEQUENCE cid_gen START WITH 500;
 CREATE SEQUENCE mid_gen START WITH 250;
 CREATE SEQUENCE wid_gen START WITH 30001;
 --Trigger for InsertServiceRequest function 
+--Only fills in the key when the client did not reserve one from the sequence.
+--A key given by the client (reserved from the sequence, or imported) is
+--probed in every month, since the primary key only covers (rid, date).
 
 CREATE LANGUAGE plpgsql;
 
 CREATE OR REPLACE FUNCTION createRID()
 RETURNS TRIGGER AS $createRID$
 BEGIN
-NEW.rid := nextval('rid_gen');
+IF NEW.rid IS NULL THEN
+	NEW.rid := nextval('rid_gen');
+ELSIF EXISTS (SELECT 1 FROM Service_Request WHERE rid = NEW.rid) THEN
+	RAISE EXCEPTION 'Service request % already exists', NEW.rid USING ERRCODE = 'unique_violation';
+END IF;
 RETURN NEW;
 END; 
 $createRID$
@@ -180,7 +260,9 @@ CREATE LANGUAGE plpgsql;
 CREATE OR REPLACE FUNCTION createCID()
 RETURNS TRIGGER AS $createCID$
 BEGIN
-NEW.id := nextval('cid_gen');
+IF NEW.id IS NULL THEN
+	NEW.id := nextval('cid_gen');
+END IF;
 RETURN NEW;
 END; 
 $createCID$
@@ -199,7 +281,9 @@ CREATE LANGUAGE plpgsql;
 CREATE OR REPLACE FUNCTION createMID()
 RETURNS TRIGGER AS $createMID$
 BEGIN
-NEW.id := nextval('mid_gen');
+IF NEW.id IS NULL THEN
+	NEW.id := nextval('mid_gen');
+END IF;
 RETURN NEW;
 END; 
 $createMID$
@@ -218,7 +302,9 @@ CREATE LANGUAGE plpgsql;
 CREATE OR REPLACE FUNCTION createWID()
 RETURNS TRIGGER AS $createWID$
 BEGIN
-NEW.wid := nextval('wid_gen');
+IF NEW.wid IS NULL THEN
+	NEW.wid := nextval('wid_gen');
+END IF;
 RETURN NEW;
 END; 
 $createWID$
@@ -228,4 +314,309 @@ DROP TRIGGER IF exists createWID on Closed_Request;
 
 CREATE TRIGGER createWID BEFORE INSERT
 ON Closed_Request FOR EACH ROW
-EXECUTE PROCEDURE createWID(); 
\ No newline at end of file
+EXECUTE PROCEDURE createWID(); 
+
+--Triggers for the Closed_Request to Service_Request reference
+--Like a foreign key, the closing locks its request FOR KEY SHARE until it
+--commits, so a concurrent DELETE waits and then finds the closing.
+
+CREATE LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION checkRequest()
+RETURNS TRIGGER AS $checkRequest$
+BEGIN
+PERFORM 1 FROM Service_Request WHERE rid = NEW.rid FOR KEY SHARE;
+IF NOT FOUND THEN
+	RAISE EXCEPTION 'Service request % does not exist', NEW.rid USING ERRCODE = 'foreign_key_violation';
+END IF;
+RETURN NEW;
+END; 
+$checkRequest$
+LANGUAGE plpgsql VOLATILE; 
+
+DROP TRIGGER IF exists checkRequest on Closed_Request;
+
+CREATE TRIGGER checkRequest BEFORE INSERT OR UPDATE OF rid
+ON Closed_Request FOR EACH ROW
+EXECUTE PROCEDURE checkRequest(); 
+
+CREATE OR REPLACE FUNCTION checkClosings()
+RETURNS TRIGGER AS $checkClosings$
+BEGIN
+IF (TG_OP = 'DELETE' OR NEW.rid <> OLD.rid) AND EXISTS (SELECT 1 FROM Closed_Request WHERE rid = OLD.rid) THEN
+	RAISE EXCEPTION 'Service request % is closed', OLD.rid USING ERRCODE = 'foreign_key_violation';
+END IF;
+IF TG_OP = 'DELETE' THEN
+	RETURN OLD;
+END IF;
+RETURN NEW;
+END; 
+$checkClosings$
+LANGUAGE plpgsql VOLATILE; 
+
+DROP TRIGGER IF exists checkClosings on Service_Request;
+
+CREATE TRIGGER checkClosings BEFORE DELETE OR UPDATE OF rid
+ON Service_Request FOR EACH ROW
+EXECUTE PROCEDURE checkClosings(); 
+
+-----------------------
+---REPORT AGGREGATES---
+-----------------------
+--Kept up to date by the triggers below, in the same transaction as the
+--Service_Request / Closed_Request insert, so the top-K and total bill
+--reports read one row per car / customer instead of scanning the history.
+--Detaching a partition for archival does not fire them, so the aggregates
+--keep counting the archived months.
+
+CREATE TABLE Car_Service_Count
+(
+	car_vin VARCHAR(16) NOT NULL,
+	creq INTEGER NOT NULL,
+	PRIMARY KEY (car_vin),
+	FOREIGN KEY (car_vin) REFERENCES Car(vin)
+);
+
+CREATE TABLE Customer_Bill_Total
+(
+	customer_id INTEGER NOT NULL,
+	total BIGINT NOT NULL,
+	PRIMARY KEY (customer_id),
+	FOREIGN KEY (customer_id) REFERENCES Customer(id)
+);
+
+INSERT INTO Car_Service_Count (car_vin, creq)
+SELECT car_vin, COUNT(rid) FROM Service_Request GROUP BY car_vin;
+
+INSERT INTO Customer_Bill_Total (customer_id, total)
+SELECT SR.customer_id, SUM(CR.bill)
+FROM Closed_Request AS CR, Service_Request AS SR
+WHERE CR.rid = SR.rid
+GROUP BY SR.customer_id;
+
+--The key column breaks ties so the report pages can seek past a row
+CREATE INDEX car_service_count_creq_vin ON Car_Service_Count (creq DESC, car_vin DESC);
+CREATE INDEX customer_bill_total_total_id ON Customer_Bill_Total (total DESC, customer_id DESC);
+
+--Trigger for Car_Service_Count
+
+CREATE OR REPLACE FUNCTION countService()
+RETURNS TRIGGER AS $countService$
+BEGIN
+IF TG_OP = 'INSERT' THEN
+	INSERT INTO Car_Service_Count (car_vin, creq) VALUES (NEW.car_vin, 1)
+	ON CONFLICT (car_vin) DO UPDATE SET creq = Car_Service_Count.creq + 1;
+	RETURN NEW;
+END IF;
+UPDATE Car_Service_Count SET creq = creq - 1 WHERE car_vin = OLD.car_vin;
+DELETE FROM Car_Service_Count WHERE car_vin = OLD.car_vin AND creq <= 0;
+RETURN OLD;
+END; 
+$countService$
+LANGUAGE plpgsql VOLATILE; 
+
+DROP TRIGGER IF exists countService on Service_Request;
+
+CREATE TRIGGER countService AFTER INSERT OR DELETE
+ON Service_Request FOR EACH ROW
+EXECUTE PROCEDURE countService(); 
+
+--Trigger for Customer_Bill_Total
+
+CREATE OR REPLACE FUNCTION totalBill()
+RETURNS TRIGGER AS $totalBill$
+DECLARE
+	cust INTEGER;
+BEGIN
+IF TG_OP = 'INSERT' THEN
+	SELECT customer_id INTO cust FROM Service_Request WHERE rid = NEW.rid;
+	INSERT INTO Customer_Bill_Total (customer_id, total) VALUES (cust, NEW.bill)
+	ON CONFLICT (customer_id) DO UPDATE SET total = Customer_Bill_Total.total + EXCLUDED.total;
+	RETURN NEW;
+END IF;
+SELECT customer_id INTO cust FROM Service_Request WHERE rid = OLD.rid;
+UPDATE Customer_Bill_Total SET total = total - OLD.bill WHERE customer_id = cust;
+DELETE FROM Customer_Bill_Total WHERE customer_id = cust AND total <= 0;
+RETURN OLD;
+END; 
+$totalBill$
+LANGUAGE plpgsql VOLATILE; 
+
+DROP TRIGGER IF exists totalBill on Closed_Request;
+
+CREATE TRIGGER totalBill AFTER INSERT OR DELETE
+ON Closed_Request FOR EACH ROW
+EXECUTE PROCEDURE totalBill(); 
+
+----------------
+---WORK QUEUE---
+----------------
+--The requests not closed yet, kept up to date by the triggers below, so a
+--mechanic claims the next one from a small indexed table with FOR UPDATE
+--SKIP LOCKED instead of anti-joining Service_Request and Closed_Request
+--(see WorkQueue.java).  A claimed request is closed by its mechanic only.
+
+--Years of experience a request needs: the cars with more miles go to the
+--more experienced mechanics
+CREATE OR REPLACE FUNCTION requestComplexity(miles INTEGER)
+RETURNS INTEGER AS $requestComplexity$
+SELECT least(miles / 25000, 10);
+$requestComplexity$
+LANGUAGE sql IMMUTABLE;
+
+CREATE TABLE Open_Request
+(
+	rid INTEGER NOT NULL,
+	date DATE NOT NULL,
+	complexity INTEGER NOT NULL,
+	claimed_by INTEGER,
+	claimed_at TIMESTAMP,
+	PRIMARY KEY (rid),
+	FOREIGN KEY (claimed_by) REFERENCES Mechanic(id)
+);
+
+INSERT INTO Open_Request (rid, date, complexity)
+SELECT S.rid, S.date, requestComplexity(S.odometer)
+FROM Service_Request AS S
+WHERE NOT EXISTS (SELECT 1 FROM Closed_Request AS CR WHERE CR.rid = S.rid);
+
+--The unclaimed requests of each complexity, oldest first, and the claims of each mechanic
+CREATE INDEX open_request_unclaimed ON Open_Request (complexity, date, rid) WHERE claimed_by IS NULL;
+CREATE INDEX open_request_claimed_by ON Open_Request (claimed_by) WHERE claimed_by IS NOT NULL;
+
+--Trigger for Open_Request on Service_Request
+
+CREATE OR REPLACE FUNCTION openRequest()
+RETURNS TRIGGER AS $openRequest$
+BEGIN
+IF TG_OP = 'INSERT' THEN
+	INSERT INTO Open_Request (rid, date, complexity) VALUES (NEW.rid, NEW.date, requestComplexity(NEW.odometer));
+	RETURN NEW;
+END IF;
+DELETE FROM Open_Request WHERE rid = OLD.rid;
+RETURN OLD;
+END; 
+$openRequest$
+LANGUAGE plpgsql VOLATILE; 
+
+DROP TRIGGER IF exists openRequest on Service_Request;
+
+CREATE TRIGGER openRequest AFTER INSERT OR DELETE
+ON Service_Request FOR EACH ROW
+EXECUTE PROCEDURE openRequest(); 
+
+--Trigger for Open_Request on Closed_Request
+
+CREATE OR REPLACE FUNCTION closeRequest()
+RETURNS TRIGGER AS $closeRequest$
+BEGIN
+IF TG_OP = 'INSERT' THEN
+	DELETE FROM Open_Request WHERE rid = NEW.rid;
+	RETURN NEW;
+END IF;
+--the request is open again when its closing is deleted
+INSERT INTO Open_Request (rid, date, complexity)
+SELECT rid, date, requestComplexity(odometer) FROM Service_Request WHERE rid = OLD.rid
+ON CONFLICT (rid) DO NOTHING;
+RETURN OLD;
+END; 
+$closeRequest$
+LANGUAGE plpgsql VOLATILE; 
+
+DROP TRIGGER IF exists closeRequest on Closed_Request;
+
+CREATE TRIGGER closeRequest AFTER INSERT OR DELETE
+ON Closed_Request FOR EACH ROW
+EXECUTE PROCEDURE closeRequest(); 
+
+-------------------------------
+---LOOKUP CACHE INVALIDATION---
+-------------------------------
+--Tells every running application which dimension table changed so it can
+--drop its cached lookups (see ChangeListener.java).
+
+CREATE OR REPLACE FUNCTION notifyChange()
+RETURNS TRIGGER AS $notifyChange$
+BEGIN
+PERFORM pg_notify('dimension_changed', TG_TABLE_NAME);
+RETURN NULL;
+END; 
+$notifyChange$
+LANGUAGE plpgsql VOLATILE; 
+
+DROP TRIGGER IF exists notifyChange on Customer;
+CREATE TRIGGER notifyChange AFTER INSERT OR UPDATE OR DELETE
+ON Customer FOR EACH STATEMENT
+EXECUTE PROCEDURE notifyChange(); 
+
+DROP TRIGGER IF exists notifyChange on Mechanic;
+CREATE TRIGGER notifyChange AFTER INSERT OR UPDATE OR DELETE
+ON Mechanic FOR EACH STATEMENT
+EXECUTE PROCEDURE notifyChange(); 
+
+DROP TRIGGER IF exists notifyChange on Car;
+CREATE TRIGGER notifyChange AFTER INSERT OR UPDATE OR DELETE
+ON Car FOR EACH STATEMENT
+EXECUTE PROCEDURE notifyChange(); 
+
+DROP TRIGGER IF exists notifyChange on Owns;
+CREATE TRIGGER notifyChange AFTER INSERT OR UPDATE OR DELETE
+ON Owns FOR EACH STATEMENT
+EXECUTE PROCEDURE notifyChange(); 
+
+---------------------
+---DESK OPERATIONS---
+---------------------
+--The final write of InsertServiceRequest and CloseServiceRequest, with its
+--validation, as one statement: one round trip and one transaction.
+
+CREATE OR REPLACE FUNCTION openServiceRequest(request INTEGER, requester INTEGER, vehicle TEXT, requested DATE, miles INTEGER, complaint TEXT)
+RETURNS INTEGER AS $openServiceRequest$
+BEGIN
+IF NOT EXISTS (SELECT 1 FROM Customer WHERE id = requester) THEN
+	RAISE EXCEPTION 'Customer % does not exist', requester USING ERRCODE = 'foreign_key_violation';
+END IF;
+IF NOT EXISTS (SELECT 1 FROM Car WHERE vin = vehicle) THEN
+	RAISE EXCEPTION 'Car % does not exist', vehicle USING ERRCODE = 'foreign_key_violation';
+END IF;
+INSERT INTO Service_Request (rid, customer_id, car_vin, date, odometer, complain)
+VALUES (request, requester, vehicle, requested, miles, complaint)
+RETURNING rid INTO request;
+RETURN request;
+END;
+$openServiceRequest$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION closeServiceRequest(work INTEGER, request INTEGER, worker INTEGER, closed DATE, remark TEXT, amount INTEGER)
+RETURNS INTEGER AS $closeServiceRequest$
+DECLARE
+	requested DATE;
+	holder INTEGER;
+BEGIN
+--takes the request off the work queue in one conditional delete, which
+--also keeps two desks from closing it at the same time
+DELETE FROM Open_Request WHERE rid = request AND (claimed_by IS NULL OR claimed_by = worker)
+RETURNING date INTO requested;
+IF NOT FOUND THEN
+	SELECT claimed_by INTO holder FROM Open_Request WHERE rid = request;
+	IF FOUND THEN
+		RAISE EXCEPTION 'Service request % is claimed by mechanic %', request, holder USING ERRCODE = 'lock_not_available';
+	END IF;
+	IF EXISTS (SELECT 1 FROM Closed_Request WHERE rid = request) THEN
+		RAISE EXCEPTION 'Service request % is already closed', request USING ERRCODE = 'unique_violation';
+	END IF;
+	RAISE EXCEPTION 'Service request % does not exist', request USING ERRCODE = 'foreign_key_violation';
+END IF;
+IF NOT EXISTS (SELECT 1 FROM Mechanic WHERE id = worker) THEN
+	RAISE EXCEPTION 'Mechanic % does not exist', worker USING ERRCODE = 'foreign_key_violation';
+END IF;
+IF closed < requested THEN
+	RAISE EXCEPTION 'Service request % was made on %, after %', request, requested, closed USING ERRCODE = 'check_violation';
+END IF;
+INSERT INTO Closed_Request (wid, rid, mid, date, comment, bill)
+VALUES (work, request, worker, closed, remark, amount)
+RETURNING wid INTO work;
+RETURN work;
+END;
+$closeServiceRequest$
+LANGUAGE plpgsql VOLATILE;